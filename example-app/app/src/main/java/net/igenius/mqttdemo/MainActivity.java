@@ -5,7 +5,6 @@ import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 
 import net.igenius.mqttservice.MQTTService;
@@ -31,9 +30,7 @@ public class MainActivity extends AppCompatActivity {
             request.addProperty("lang", "en");
             request.addProperty("request_uid", "testAndroid/" + new Date().getTime());
 
-            byte[] payload = new Gson().toJson(request).getBytes();
-
-            MQTTServiceCommand.publish(context, "/advisor/topic", payload);
+            MQTTServiceCommand.publishObject(context, "/advisor/topic", request);
         }
 
         @Override
@@ -52,4 +52,12 @@ class BackgroundService extends Service {
     protected void post(Runnable job) {
         mHandler.post(job);
     }
+
+    protected void postDelayed(Runnable job, long delayMillis) {
+        mHandler.postDelayed(job, delayMillis);
+    }
+
+    protected void removeCallbacks(Runnable job) {
+        mHandler.removeCallbacks(job);
+    }
 }
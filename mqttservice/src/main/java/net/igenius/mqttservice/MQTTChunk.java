@@ -0,0 +1,120 @@
+package net.igenius.mqttservice;
+
+import java.util.zip.CRC32;
+
+/**
+ * Chunk of a transfer made with {@link MQTTChunkedSender} and reassembled by
+ * {@link MQTTChunkedReceiver}.
+ * <p>
+ * Layout: 0xC3, transfer ID (8), chunk index (4), total chunks (4), chunk size (4),
+ * total length (8), whole content CRC32 (4), chunk data CRC32 (4), chunk data.
+ */
+class MQTTChunk {
+
+    static final int MAGIC = 0xC3;
+    static final int HEADER_SIZE = 37;
+
+    final long transferId;
+    final int index;
+    final int totalChunks;
+    final int chunkSize;
+    final long totalLength;
+    final int contentCrc;
+    final byte[] payload;
+
+    private MQTTChunk(long transferId, int index, int totalChunks, int chunkSize, long totalLength,
+                      int contentCrc, byte[] payload) {
+        this.transferId = transferId;
+        this.index = index;
+        this.totalChunks = totalChunks;
+        this.chunkSize = chunkSize;
+        this.totalLength = totalLength;
+        this.contentCrc = contentCrc;
+        this.payload = payload;
+    }
+
+    int getDataLength() {
+        return payload.length - HEADER_SIZE;
+    }
+
+    /**
+     * Gets the expected data length of a chunk.
+     */
+    static int getDataLength(int index, int chunkSize, long totalLength) {
+        return (int) Math.min(chunkSize, totalLength - (long) index * chunkSize);
+    }
+
+    static int getTotalChunks(long totalLength, int chunkSize) {
+        return (int) Math.max(1, (totalLength + chunkSize - 1) / chunkSize);
+    }
+
+    private static void writeInt(byte[] dest, int index, int value) {
+        dest[index] = (byte) (value >>> 24);
+        dest[index + 1] = (byte) (value >>> 16);
+        dest[index + 2] = (byte) (value >>> 8);
+        dest[index + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] source, int index) {
+        return (source[index] & 0xff) << 24 | (source[index + 1] & 0xff) << 16
+                | (source[index + 2] & 0xff) << 8 | (source[index + 3] & 0xff);
+    }
+
+    /**
+     * Creates an empty chunk payload, whose data has to be written starting at
+     * {@link #HEADER_SIZE}, then call {@link #seal(byte[])}.
+     */
+    static byte[] allocate(long transferId, int index, int chunkSize, long totalLength, int contentCrc) {
+        byte[] payload = new byte[HEADER_SIZE + getDataLength(index, chunkSize, totalLength)];
+        payload[0] = (byte) MAGIC;
+        writeInt(payload, 1, (int) (transferId >>> 32));
+        writeInt(payload, 5, (int) transferId);
+        writeInt(payload, 9, index);
+        writeInt(payload, 13, getTotalChunks(totalLength, chunkSize));
+        writeInt(payload, 17, chunkSize);
+        writeInt(payload, 21, (int) (totalLength >>> 32));
+        writeInt(payload, 25, (int) totalLength);
+        writeInt(payload, 29, contentCrc);
+        return payload;
+    }
+
+    /**
+     * Computes and writes the chunk data CRC.
+     */
+    static void seal(byte[] payload) {
+        writeInt(payload, 33, computeCrc(payload, HEADER_SIZE, payload.length - HEADER_SIZE));
+    }
+
+    private static int computeCrc(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Parses a chunk.
+     * @param payload payload
+     * @return chunk, or null if the payload is not a valid chunk or its data is corrupted
+     */
+    static MQTTChunk parse(byte[] payload) {
+        if (payload == null || payload.length < HEADER_SIZE || (payload[0] & 0xff) != MAGIC)
+            return null;
+
+        long transferId = (long) readInt(payload, 1) << 32 | (readInt(payload, 5) & 0xffffffffL);
+        int index = readInt(payload, 9);
+        int totalChunks = readInt(payload, 13);
+        int chunkSize = readInt(payload, 17);
+        long totalLength = (long) readInt(payload, 21) << 32 | (readInt(payload, 25) & 0xffffffffL);
+
+        if (chunkSize <= 0 || totalLength < 0 || index < 0 || index >= totalChunks
+                || totalChunks != getTotalChunks(totalLength, chunkSize)
+                || payload.length - HEADER_SIZE != getDataLength(index, chunkSize, totalLength))
+            return null;
+
+        if (readInt(payload, 33) != computeCrc(payload, HEADER_SIZE, payload.length - HEADER_SIZE))
+            return null;
+
+        return new MQTTChunk(transferId, index, totalChunks, chunkSize, totalLength,
+                readInt(payload, 29), payload);
+    }
+}
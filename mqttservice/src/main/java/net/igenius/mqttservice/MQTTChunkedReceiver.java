@@ -0,0 +1,305 @@
+package net.igenius.mqttservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+/**
+ * Reassembles files published with {@link MQTTChunkedSender}. Each chunk is written directly
+ * at its offset in the destination file as soon as it arrives, in any order, so the memory
+ * used doesn't depend on the size of the file. Chunks with a wrong checksum are discarded and
+ * when all the chunks have been received, the checksum of the whole file is verified.
+ * <p>
+ * Pass it the messages arriving on the topics on which the chunks are published:
+ * <pre>
+ * &#64;Override
+ * public void onMessageArrived(Context context, String topic, byte[] payload) {
+ *     if (chunkedReceiver.onMessageArrived(topic, payload))
+ *         return;
+ *     // not a chunk, handle the message
+ * }
+ * </pre>
+ * Chunks which never arrive can be requested again to the sender, by getting them with
+ * {@link #getMissingChunks(long)}. Transfers whose sender went away can be dropped by calling
+ * {@link #expire(long)} periodically. This class is thread safe and depends only on the JVM,
+ * so it can also be used on the server side.
+ */
+public class MQTTChunkedReceiver {
+
+    /**
+     * Number of ignored, cancelled or completed transfer IDs remembered, so that their next
+     * chunks, e.g. duplicates redelivered by the broker, are discarded without asking the
+     * listener again.
+     */
+    public static int MAX_IGNORED_TRANSFERS = 256;
+
+    /**
+     * Transfer events listener. Methods are called on the thread which calls
+     * {@link #onMessageArrived(String, byte[])}.
+     */
+    public interface Listener {
+        /**
+         * Called when the first chunk of a new transfer arrives.
+         * @param topic topic on which the chunk arrived
+         * @param transferId transfer ID
+         * @param totalLength length in bytes of the file being transferred
+         * @return file in which to write the received content, or null to ignore the transfer.
+         * The next chunks of an ignored transfer are discarded
+         */
+        File onTransferStarted(String topic, long transferId, long totalLength);
+
+        /**
+         * Called each time a new chunk has been written.
+         * @param transferId transfer ID
+         * @param receivedChunks number of chunks received so far
+         * @param totalChunks number of chunks of the transfer
+         */
+        void onTransferProgress(long transferId, int receivedChunks, int totalChunks);
+
+        /**
+         * Called when all the chunks have been received and the file content has been verified.
+         * @param transferId transfer ID
+         * @param file file with the received content
+         */
+        void onTransferCompleted(long transferId, File file);
+
+        /**
+         * Called when the transfer can't be completed. The destination file is left as is.
+         * @param transferId transfer ID
+         * @param exception error
+         */
+        void onTransferFailed(long transferId, Exception exception);
+    }
+
+    private static class Transfer {
+        final File file;
+        final RandomAccessFile output;
+        final int chunkSize;
+        final long totalLength;
+        final int totalChunks;
+        final int contentCrc;
+        final BitSet received;
+        long lastActivityMillis;
+
+        Transfer(File file, RandomAccessFile output, MQTTChunk chunk) {
+            this.file = file;
+            this.output = output;
+            this.chunkSize = chunk.chunkSize;
+            this.totalLength = chunk.totalLength;
+            this.totalChunks = chunk.totalChunks;
+            this.contentCrc = chunk.contentCrc;
+            this.received = new BitSet(chunk.totalChunks);
+            this.lastActivityMillis = System.currentTimeMillis();
+        }
+
+        boolean matches(MQTTChunk chunk) {
+            return chunk.chunkSize == chunkSize && chunk.totalLength == totalLength
+                    && chunk.contentCrc == contentCrc;
+        }
+    }
+
+    private final Listener mListener;
+    private final Map<Long, Transfer> mTransfers = new HashMap<>();
+    private final Map<Long, Boolean> mIgnoredTransfers = new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > MAX_IGNORED_TRANSFERS;
+        }
+    };
+
+    /**
+     * Creates a new chunked receiver.
+     * @param listener listener of transfer events
+     */
+    public MQTTChunkedReceiver(Listener listener) {
+        if (listener == null)
+            throw new IllegalArgumentException("listener MUST not be null!");
+
+        mListener = listener;
+    }
+
+    /**
+     * Handles a message arrived from the broker.
+     * @param topic topic on which the message arrived
+     * @param payload message payload
+     * @return true if the message was a chunk, false otherwise
+     */
+    public boolean onMessageArrived(String topic, byte[] payload) {
+        if (payload == null || payload.length < MQTTChunk.HEADER_SIZE
+                || (payload[0] & 0xff) != MQTTChunk.MAGIC)
+            return false;
+
+        MQTTChunk chunk = MQTTChunk.parse(payload);
+        if (chunk == null) {
+            MQTTServiceLogger.error(getClass().getSimpleName(), "Discarding corrupted chunk arrived on " + topic);
+            return true;
+        }
+
+        synchronized (this) {
+            try {
+                onChunk(topic, chunk);
+            } catch (IOException exc) {
+                fail(chunk.transferId, exc);
+            }
+        }
+
+        return true;
+    }
+
+    private void onChunk(String topic, MQTTChunk chunk) throws IOException {
+        Transfer transfer = mTransfers.get(chunk.transferId);
+
+        if (transfer == null) {
+            if (mIgnoredTransfers.containsKey(chunk.transferId))
+                return;
+
+            File file = mListener.onTransferStarted(topic, chunk.transferId, chunk.totalLength);
+            if (file == null) {
+                mIgnoredTransfers.put(chunk.transferId, Boolean.TRUE);
+                return;
+            }
+
+            RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                output.setLength(chunk.totalLength);
+            } catch (IOException exc) {
+                output.close();
+                throw exc;
+            }
+
+            transfer = new Transfer(file, output, chunk);
+            mTransfers.put(chunk.transferId, transfer);
+
+        } else if (!transfer.matches(chunk)) {
+            MQTTServiceLogger.error(getClass().getSimpleName(), "Discarding chunk " + chunk.index
+                    + " not matching transfer " + chunk.transferId);
+            return;
+        }
+
+        transfer.lastActivityMillis = System.currentTimeMillis();
+
+        if (transfer.received.get(chunk.index))
+            return;
+
+        transfer.output.seek((long) chunk.index * transfer.chunkSize);
+        transfer.output.write(chunk.payload, MQTTChunk.HEADER_SIZE, chunk.getDataLength());
+        transfer.received.set(chunk.index);
+
+        int receivedChunks = transfer.received.cardinality();
+        mListener.onTransferProgress(chunk.transferId, receivedChunks, transfer.totalChunks);
+
+        if (receivedChunks == transfer.totalChunks) {
+            complete(chunk.transferId, transfer);
+        }
+    }
+
+    private void complete(long transferId, Transfer transfer) throws IOException {
+        int crc = computeCrc(transfer.output);
+        remove(transferId);
+
+        // late duplicates of its chunks must not start it again
+        mIgnoredTransfers.put(transferId, Boolean.TRUE);
+
+        if (crc != transfer.contentCrc) {
+            mListener.onTransferFailed(transferId, new IOException("Checksum mismatch for transfer "
+                    + transferId + " written in " + transfer.file));
+            return;
+        }
+
+        mListener.onTransferCompleted(transferId, transfer.file);
+    }
+
+    private static int computeCrc(RandomAccessFile file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8192];
+        file.seek(0);
+
+        int read;
+        while ((read = file.read(buffer)) > 0) {
+            crc.update(buffer, 0, read);
+        }
+
+        return (int) crc.getValue();
+    }
+
+    private void fail(long transferId, Exception exception) {
+        remove(transferId);
+        mListener.onTransferFailed(transferId, exception);
+    }
+
+    private Transfer remove(long transferId) {
+        Transfer transfer = mTransfers.remove(transferId);
+
+        if (transfer != null) {
+            try {
+                transfer.output.close();
+            } catch (IOException exc) {
+                MQTTServiceLogger.error(getClass().getSimpleName(), "Error while closing " + transfer.file, exc);
+            }
+        }
+
+        return transfer;
+    }
+
+    /**
+     * Gets the indexes of the chunks of a transfer which have not been received yet.
+     * @param transferId transfer ID
+     * @return indexes of the missing chunks, or null if the transfer is not in progress
+     */
+    public synchronized int[] getMissingChunks(long transferId) {
+        Transfer transfer = mTransfers.get(transferId);
+        if (transfer == null)
+            return null;
+
+        int[] missing = new int[transfer.totalChunks - transfer.received.cardinality()];
+        int count = 0;
+
+        for (int i = transfer.received.nextClearBit(0); i < transfer.totalChunks;
+             i = transfer.received.nextClearBit(i + 1)) {
+            missing[count++] = i;
+        }
+
+        return missing;
+    }
+
+    /**
+     * Stops receiving a transfer. The destination file is left as is and the next chunks of the
+     * transfer are discarded.
+     * @param transferId transfer ID
+     */
+    public synchronized void cancel(long transferId) {
+        remove(transferId);
+        mIgnoredTransfers.put(transferId, Boolean.TRUE);
+    }
+
+    /**
+     * Fails the transfers which haven't received any chunk for a while, closing their files and
+     * calling {@link Listener#onTransferFailed(long, Exception)} with a {@link TimeoutException}.
+     * If their chunks arrive again later, they are received as new transfers.
+     * @param maxIdleMillis maximum time without chunks
+     * @return number of expired transfers
+     */
+    public synchronized int expire(long maxIdleMillis) {
+        long oldest = System.currentTimeMillis() - maxIdleMillis;
+        Long[] transferIds = mTransfers.keySet().toArray(new Long[mTransfers.size()]);
+        int expired = 0;
+
+        for (Long transferId : transferIds) {
+            Transfer transfer = mTransfers.get(transferId);
+
+            if (transfer.lastActivityMillis < oldest) {
+                fail(transferId, new TimeoutException("No chunks of transfer " + transferId
+                        + " received in the last " + maxIdleMillis + "ms"));
+                expired++;
+            }
+        }
+
+        return expired;
+    }
+}
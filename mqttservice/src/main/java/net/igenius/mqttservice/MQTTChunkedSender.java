@@ -0,0 +1,324 @@
+package net.igenius.mqttservice;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Publishes files which are too big to be sent as a single MQTT message, by splitting them in
+ * sequenced chunks which are reassembled on the other side by a {@link MQTTChunkedReceiver}.
+ * <p>
+ * Chunks are read from the file only when they are about to be published and at most
+ * {@link #DEFAULT_MAX_IN_FLIGHT} publish requests are pending at the same time, so the memory
+ * used by a transfer doesn't depend on the size of the file. Chunks whose publish fails are
+ * retried up to {@link #MAX_RETRIES} times. If the receiver reports missing chunks, they can be
+ * published again with {@link #resend(Context, String, File, int, int, long, int[], Listener)}.
+ */
+public class MQTTChunkedSender {
+
+    /**
+     * Default size in bytes of each chunk.
+     */
+    public static int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Default maximum number of chunks being published at the same time.
+     */
+    public static int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    /**
+     * Number of times a chunk is published again when its publish fails, before failing the
+     * whole transfer.
+     */
+    public static int MAX_RETRIES = 3;
+
+    private static final Random sRandom = new Random();
+
+    /**
+     * Transfer events listener. All the methods are called on a library managed background thread.
+     */
+    public interface Listener {
+        /**
+         * Called each time a chunk has been published.
+         * @param transferId transfer ID
+         * @param publishedChunks number of chunks published so far
+         * @param totalChunks number of chunks to publish
+         */
+        void onProgress(long transferId, int publishedChunks, int totalChunks);
+
+        /**
+         * Called when all the chunks have been published.
+         * @param transferId transfer ID
+         */
+        void onCompleted(long transferId);
+
+        /**
+         * Called when the transfer fails.
+         * @param transferId transfer ID
+         * @param exception error
+         */
+        void onError(long transferId, Exception exception);
+    }
+
+    /**
+     * Publish a file in chunks of {@link #DEFAULT_CHUNK_SIZE} bytes, with at most
+     * {@link #DEFAULT_MAX_IN_FLIGHT} chunks published at the same time.
+     * @see #send(Context, String, File, int, int, int, Listener)
+     */
+    public static long send(final Context context, final String topic, final File file,
+                            final int qos, final Listener listener) {
+        return send(context, topic, file, qos, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_IN_FLIGHT, listener);
+    }
+
+    /**
+     * Publish a file in chunks.
+     * @param context application context
+     * @param topic topic on which to publish the chunks
+     * @param file file to publish
+     * @param qos QoS to use (0, 1 or 2). Use at least 1 if you don't want to resend lost chunks
+     * @param chunkSize size in bytes of each chunk
+     * @param maxInFlight maximum number of chunks being published at the same time
+     * @param listener listener of transfer events, or null
+     * @return transfer ID
+     */
+    public static long send(final Context context, final String topic, final File file,
+                            final int qos, final int chunkSize, final int maxInFlight,
+                            final Listener listener) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize MUST be greater than 0!");
+
+        long transferId = sRandom.nextLong();
+        start(new Transfer(context.getApplicationContext(), topic, file, qos, chunkSize,
+                maxInFlight, transferId, null, listener));
+        return transferId;
+    }
+
+    /**
+     * Publish again some chunks of a file, for example the ones reported as missing by
+     * {@link MQTTChunkedReceiver#getMissingChunks(long)}. The file and the chunk size must be
+     * the same used in the original transfer.
+     * @param context application context
+     * @param topic topic on which to publish the chunks
+     * @param file file to publish
+     * @param qos QoS to use (0, 1 or 2)
+     * @param chunkSize size in bytes of each chunk
+     * @param transferId ID of the original transfer
+     * @param chunks indexes of the chunks to publish
+     * @param listener listener of transfer events, or null
+     */
+    public static void resend(final Context context, final String topic, final File file,
+                              final int qos, final int chunkSize, final long transferId,
+                              final int[] chunks, final Listener listener) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize MUST be greater than 0!");
+
+        start(new Transfer(context.getApplicationContext(), topic, file, qos, chunkSize,
+                DEFAULT_MAX_IN_FLIGHT, transferId, chunks, listener));
+    }
+
+    private static void start(final Transfer transfer) {
+        MQTTServiceDispatcher.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                transfer.start();
+            }
+        });
+    }
+
+    private static int computeCrc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8192];
+        InputStream in = new FileInputStream(file);
+
+        try {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+
+        return (int) crc.getValue();
+    }
+
+    /**
+     * State of a transfer. It's accessed only from the dispatcher thread.
+     */
+    private static class Transfer {
+        private final Context mContext;
+        private final String mTopic;
+        private final File mFile;
+        private final int mQos;
+        private final int mChunkSize;
+        private final int mMaxInFlight;
+        private final long mTransferId;
+        private final Listener mListener;
+        private final ArrayDeque<Integer> mQueue = new ArrayDeque<>();
+        private int[] mChunks;
+        private int[] mRetries;
+        private RandomAccessFile mInput;
+        private long mLength;
+        private int mContentCrc;
+        private int mInFlight;
+        private int mPublished;
+        private boolean mFinished;
+
+        Transfer(Context context, String topic, File file, int qos, int chunkSize, int maxInFlight,
+                 long transferId, int[] chunks, Listener listener) {
+            mContext = context;
+            mTopic = topic;
+            mFile = file;
+            mQos = qos;
+            mChunkSize = chunkSize;
+            mMaxInFlight = Math.max(1, maxInFlight);
+            mTransferId = transferId;
+            mChunks = chunks;
+            mListener = listener;
+        }
+
+        void start() {
+            try {
+                mContentCrc = computeCrc(mFile);
+                mInput = new RandomAccessFile(mFile, "r");
+                mLength = mInput.length();
+            } catch (IOException exc) {
+                fail(exc);
+                return;
+            }
+
+            int totalChunks = MQTTChunk.getTotalChunks(mLength, mChunkSize);
+
+            if (mChunks == null) {
+                mChunks = new int[totalChunks];
+                for (int i = 0; i < totalChunks; i++) {
+                    mChunks[i] = i;
+                }
+            }
+
+            mRetries = new int[mChunks.length];
+
+            for (int i = 0; i < mChunks.length; i++) {
+                if (mChunks[i] < 0 || mChunks[i] >= totalChunks) {
+                    fail(new IllegalArgumentException("Chunk " + mChunks[i] + " out of range, "
+                            + mFile + " has " + totalChunks + " chunks"));
+                    return;
+                }
+                mQueue.add(i);
+            }
+
+            pump();
+        }
+
+        private void pump() {
+            while (!mFinished && mInFlight < mMaxInFlight && !mQueue.isEmpty()) {
+                final int position = mQueue.poll();
+                byte[] payload;
+
+                try {
+                    payload = readChunk(mChunks[position]);
+                } catch (IOException exc) {
+                    fail(exc);
+                    return;
+                }
+
+                mInFlight++;
+
+                MQTTServiceRequests.publish(mContext, mTopic, payload, mQos, new MQTTServiceCallback<String>() {
+                    @Override
+                    public void onSuccess(String requestId, String result) {
+                        post(position, null);
+                    }
+
+                    @Override
+                    public void onError(String requestId, Exception exception) {
+                        post(position, exception);
+                    }
+                });
+            }
+        }
+
+        private byte[] readChunk(int index) throws IOException {
+            byte[] payload = MQTTChunk.allocate(mTransferId, index, mChunkSize, mLength, mContentCrc);
+            mInput.seek((long) index * mChunkSize);
+            mInput.readFully(payload, MQTTChunk.HEADER_SIZE, payload.length - MQTTChunk.HEADER_SIZE);
+            MQTTChunk.seal(payload);
+            return payload;
+        }
+
+        // results may be delivered synchronously from inside pump(), so they are always
+        // handled in a new dispatcher loop
+        private void post(final int position, final Exception exception) {
+            MQTTServiceDispatcher.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    onPublished(position, exception);
+                }
+            });
+        }
+
+        private void onPublished(int position, Exception exception) {
+            mInFlight--;
+
+            if (mFinished)
+                return;
+
+            if (exception != null) {
+                if (++mRetries[position] > MAX_RETRIES) {
+                    fail(exception);
+                    return;
+                }
+
+                MQTTServiceLogger.debug(MQTTChunkedSender.class.getSimpleName(), "Retrying chunk "
+                        + mChunks[position] + " of transfer " + mTransferId + ": " + exception.getMessage());
+                mQueue.addFirst(position);
+                pump();
+                return;
+            }
+
+            mPublished++;
+
+            if (mListener != null) {
+                mListener.onProgress(mTransferId, mPublished, mChunks.length);
+            }
+
+            if (mPublished == mChunks.length) {
+                finish();
+                if (mListener != null) {
+                    mListener.onCompleted(mTransferId);
+                }
+            } else {
+                pump();
+            }
+        }
+
+        private void fail(Exception exception) {
+            MQTTServiceLogger.error(MQTTChunkedSender.class.getSimpleName(),
+                    "Transfer " + mTransferId + " of " + mFile + " failed", exception);
+            finish();
+
+            if (mListener != null) {
+                mListener.onError(mTransferId, exception);
+            }
+        }
+
+        private void finish() {
+            mFinished = true;
+            mQueue.clear();
+
+            if (mInput != null) {
+                try {
+                    mInput.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
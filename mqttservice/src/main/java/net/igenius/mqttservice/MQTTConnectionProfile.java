@@ -0,0 +1,151 @@
+package net.igenius.mqttservice;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Last connection parameters and auto resubscribe topics of {@link MQTTService}, stored in a
+ * small binary file in the app private files directory.
+ */
+class MQTTConnectionProfile {
+
+    private static final String FILE_NAME = "mqtt-profile";
+    private static final int VERSION = 1;
+
+    final String brokerUrl;
+    final String clientId;
+    final String username;
+    final String password;
+    final LinkedHashMap<String, Integer> topics = new LinkedHashMap<>();
+
+    MQTTConnectionProfile(String brokerUrl, String clientId, String username, String password) {
+        this.brokerUrl = brokerUrl;
+        this.clientId = clientId;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Checks if this profile has the given connection parameters.
+     * @return true if all the parameters are equal
+     */
+    boolean hasParameters(String brokerUrl, String clientId, String username, String password) {
+        return equal(this.brokerUrl, brokerUrl) && equal(this.clientId, clientId)
+                && equal(this.username, username) && equal(this.password, password);
+    }
+
+    private static boolean equal(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Loads the stored profile.
+     * @param context context
+     * @return stored profile, or null if there is none or it can't be read
+     */
+    static MQTTConnectionProfile load(Context context) {
+        DataInputStream in;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(getFile(context))));
+        } catch (FileNotFoundException exc) {
+            return null;
+        }
+
+        try {
+            if (in.readInt() != VERSION)
+                return null;
+
+            MQTTConnectionProfile profile = new MQTTConnectionProfile(in.readUTF(), in.readUTF(),
+                    readNullable(in), readNullable(in));
+
+            int topics = in.readInt();
+            for (int i = 0; i < topics; i++) {
+                String topic = in.readUTF();
+                profile.topics.put(topic, (int) in.readByte());
+            }
+
+            return profile;
+
+        } catch (IOException exc) {
+            MQTTServiceLogger.error(MQTTConnectionProfile.class.getSimpleName(), "Can't read connection profile", exc);
+            return null;
+
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Stores this profile, replacing the previous one only once it has been completely written.
+     * @param context context
+     */
+    void save(Context context) {
+        File file = getFile(context);
+        File temp = new File(file.getPath() + ".tmp");
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+
+            try {
+                out.writeInt(VERSION);
+                out.writeUTF(brokerUrl);
+                out.writeUTF(clientId);
+                writeNullable(out, username);
+                writeNullable(out, password);
+
+                out.writeInt(topics.size());
+                for (Map.Entry<String, Integer> entry : topics.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeByte(entry.getValue());
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!temp.renameTo(file))
+                throw new IOException("Can't rename " + temp + " to " + file);
+
+        } catch (IOException exc) {
+            MQTTServiceLogger.error(getClass().getSimpleName(), "Can't save connection profile", exc);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Deletes the stored profile.
+     * @param context context
+     */
+    static void clear(Context context) {
+        getFile(context).delete();
+    }
+}
@@ -0,0 +1,72 @@
+package net.igenius.mqttservice;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Deferred publishing of non-urgent topics, to reduce the number of times the cellular radio
+ * is woken up and kept in its high power state.
+ * <p>
+ * Publishes on topics matching a registered filter are buffered by the service and flushed
+ * all together when the radio is already active, i.e. when a message has been sent or received
+ * in the last {@link #RADIO_ACTIVE_MILLIS}, or when the oldest buffered publish has waited
+ * {@link #MAX_DELAY_MILLIS}. Publishes on all the other topics are considered urgent and they
+ * are sent right away, flushing also the buffered ones. Publishes made with
+ * {@link MQTTServiceRequests}, whose caller waits for them with a timeout, are urgent too.
+ * Buffered publishes are still subject to the {@link MQTTRateLimits}.
+ * <pre>
+ * MQTTDeferredPublishing.addTopicFilter("telemetry/#");
+ * </pre>
+ * The number of radio wakeups saved is reported by
+ * {@link MQTTServiceMetrics#getRadioWakeupsSaved()}.
+ */
+public class MQTTDeferredPublishing {
+
+    /**
+     * Maximum time a publish can be buffered.
+     */
+    public static long MAX_DELAY_MILLIS = 60000;
+
+    /**
+     * Time after the last network activity in which the radio is considered still active.
+     * It should be lower than the tail time of the radio, which is around 5 to 15 seconds on
+     * 3G and LTE networks.
+     */
+    public static long RADIO_ACTIVE_MILLIS = 5000;
+
+    private static final CopyOnWriteArrayList<String> sTopicFilters = new CopyOnWriteArrayList<>();
+
+    private MQTTDeferredPublishing() { }
+
+    /**
+     * Marks the topics matching a filter as non-urgent.
+     * @param topicFilter topic filter, which may contain + and # wildcards
+     */
+    public static void addTopicFilter(String topicFilter) {
+        if (topicFilter == null)
+            throw new IllegalArgumentException("topicFilter MUST not be null!");
+
+        MqttTopic.validate(topicFilter, true);
+        sTopicFilters.add(topicFilter);
+    }
+
+    /**
+     * Removes all the non-urgent topic filters. Publishes already buffered are flushed normally.
+     */
+    public static void clearTopicFilters() {
+        sTopicFilters.clear();
+    }
+
+    static boolean isDeferred(String topic) {
+        if (topic == null)
+            return false;
+
+        for (String topicFilter : sTopicFilters) {
+            if (MqttTopic.isMatched(topicFilter, topic))
+                return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,122 @@
+package net.igenius.mqttservice;
+
+import java.util.ArrayDeque;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Payload codec which compresses with deflate. It gives the best compression ratio among the
+ * built-in codecs, at the cost of more CPU time. Deflater and inflater instances are pooled,
+ * so no native memory is allocated for each payload.
+ */
+public class MQTTDeflateCodec implements MQTTPayloadCodec {
+
+    public static final int ID = 1;
+
+    private static final int MAX_POOLED = 4;
+
+    private final int mLevel;
+    private final ArrayDeque<Deflater> mDeflaters = new ArrayDeque<>(MAX_POOLED);
+    private final ArrayDeque<Inflater> mInflaters = new ArrayDeque<>(MAX_POOLED);
+
+    /**
+     * Creates a new deflate codec with the default compression level.
+     */
+    public MQTTDeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a new deflate codec.
+     * @param level compression level, from 0 to 9
+     */
+    public MQTTDeflateCodec(int level) {
+        mLevel = level;
+    }
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public void encode(byte[] input, int offset, int length, MQTTPayloadBuffer output) {
+        Deflater deflater;
+        synchronized (mDeflaters) {
+            deflater = mDeflaters.poll();
+        }
+        if (deflater == null) {
+            deflater = new Deflater(mLevel, true);
+        }
+
+        try {
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+
+            while (!deflater.finished()) {
+                output.ensureCapacity(output.size() + Math.max(length / 2, 64));
+                byte[] buffer = output.getBuffer();
+                int written = deflater.deflate(buffer, output.size(), buffer.length - output.size());
+                output.setSize(output.size() + written);
+            }
+        } finally {
+            deflater.reset();
+            synchronized (mDeflaters) {
+                if (mDeflaters.size() < MAX_POOLED) {
+                    mDeflaters.offer(deflater);
+                } else {
+                    deflater.end();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void decode(byte[] input, int offset, int length, byte[] output) {
+        Inflater inflater;
+        synchronized (mInflaters) {
+            inflater = mInflaters.poll();
+        }
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+
+        try {
+            inflater.setInput(input, offset, length);
+            int inflated = 0;
+
+            while (inflated < output.length) {
+                int count = inflater.inflate(output, inflated, output.length - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflated += count;
+            }
+
+            if (inflated != output.length)
+                throw new IllegalArgumentException("Decoded " + inflated + " bytes, expected " + output.length);
+
+            if (!inflater.finished()) {
+                // the output is full, the rest of the stream must be only its end
+                if (inflater.inflate(new byte[1]) != 0 || !inflater.finished())
+                    throw new IllegalArgumentException("Truncated or too long deflate payload");
+            }
+
+            if (inflater.getRemaining() != 0)
+                throw new IllegalArgumentException("Trailing bytes after deflate payload");
+
+        } catch (DataFormatException exc) {
+            throw new IllegalArgumentException("Invalid deflate payload", exc);
+
+        } finally {
+            inflater.reset();
+            synchronized (mInflaters) {
+                if (mInflaters.size() < MAX_POOLED) {
+                    mInflaters.offer(inflater);
+                } else {
+                    inflater.end();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package net.igenius.mqttservice;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Always-on, low overhead flight recorder for MQTT protocol events.
+ * Events are stored as fixed size binary records in a ring buffer, so the last
+ * {@link #getCapacity()} events are always available for post-mortem analysis, without the
+ * cost of text logging. The buffer can be dumped to a file on demand with {@link #dump(File)}
+ * or automatically on crash with {@link #setCrashDumpFile(File)}. Dumps can be decoded on
+ * any JVM with {@link MQTTFlightRecorderDecoder}.
+ */
+public class MQTTFlightRecorder {
+
+    public static final int EVENT_CONNECT = 1;
+    public static final int EVENT_CONNECT_COMPLETE = 2;
+    public static final int EVENT_CONNECT_FAILED = 3;
+    public static final int EVENT_CONNECTION_LOST = 4;
+    public static final int EVENT_DISCONNECT = 5;
+    public static final int EVENT_SUBSCRIBE = 6;
+    public static final int EVENT_SUBSCRIBE_FAILED = 7;
+    public static final int EVENT_PUBLISH = 8;
+    public static final int EVENT_PUBLISH_FAILED = 9;
+    public static final int EVENT_MESSAGE_ARRIVED = 10;
+    public static final int EVENT_DELIVERY_COMPLETE = 11;
+    public static final int EVENT_CRASH = 12;
+
+    static final int DUMP_MAGIC = 0x4D514652; // "MQFR"
+    static final int DUMP_VERSION = 1;
+
+    /**
+     * Record layout (big endian):
+     * timestamp (8), type (1), flags (1), code (2), topic ID (4), size (4), request ID (4).
+     */
+    static final int RECORD_SIZE = 24;
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int MAX_TOPIC_NAMES = 512;
+
+    private boolean mEnabled = true;
+    private ByteBuffer mBuffer = ByteBuffer.allocate(DEFAULT_CAPACITY * RECORD_SIZE);
+    private int mCapacity = DEFAULT_CAPACITY;
+    private long mWritten = 0;
+    private final Map<Integer, String> mTopicNames = new HashMap<>();
+    private File mCrashDumpFile;
+    private boolean mCrashHandlerInstalled = false;
+
+    private MQTTFlightRecorder() { }
+
+    private static class SingletonHolder {
+        private static final MQTTFlightRecorder instance = new MQTTFlightRecorder();
+    }
+
+    /**
+     * Enables or disables event recording. Recording is enabled by default.
+     * @param enabled true to record events, false to ignore them
+     */
+    public static void setEnabled(boolean enabled) {
+        synchronized (SingletonHolder.instance) {
+            SingletonHolder.instance.mEnabled = enabled;
+        }
+    }
+
+    /**
+     * Sets how many events the ring buffer keeps. Already recorded events are discarded.
+     * @param capacity number of events to keep
+     */
+    public static void setCapacity(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity MUST be greater than zero!");
+
+        synchronized (SingletonHolder.instance) {
+            MQTTFlightRecorder recorder = SingletonHolder.instance;
+            recorder.mBuffer = ByteBuffer.allocate(capacity * RECORD_SIZE);
+            recorder.mCapacity = capacity;
+            recorder.mWritten = 0;
+            recorder.mTopicNames.clear();
+        }
+    }
+
+    public static int getCapacity() {
+        synchronized (SingletonHolder.instance) {
+            return SingletonHolder.instance.mCapacity;
+        }
+    }
+
+    /**
+     * Sets the file in which to dump the recorded events if the app crashes.
+     * The first invocation installs a default uncaught exception handler which dumps the events
+     * and then delegates to the previously installed handler.
+     * @param file file in which to dump the events, or null to disable the crash dump
+     */
+    public static void setCrashDumpFile(File file) {
+        synchronized (SingletonHolder.instance) {
+            MQTTFlightRecorder recorder = SingletonHolder.instance;
+            recorder.mCrashDumpFile = file;
+
+            if (file != null && !recorder.mCrashHandlerInstalled) {
+                recorder.mCrashHandlerInstalled = true;
+                final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+
+                Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException(Thread thread, Throwable exc) {
+                        onCrash(exc);
+
+                        if (previous != null) {
+                            previous.uncaughtException(thread, exc);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private static void onCrash(Throwable exc) {
+        File file;
+
+        synchronized (SingletonHolder.instance) {
+            file = SingletonHolder.instance.mCrashDumpFile;
+        }
+
+        if (file == null)
+            return;
+
+        record(EVENT_CRASH, 0, 0, exc.getClass().getName(), 0, null);
+
+        try {
+            dump(file);
+        } catch (Throwable dumpExc) {
+            MQTTServiceLogger.error("MQTTFlightRecorder", "Error while dumping events on crash", dumpExc);
+        }
+    }
+
+    // topics not in the cache get a negative ID, so they never clash with the cached ones.
+    // Only topics of arrived messages are interned, so recording doesn't fill the cache
+    private static int getTopicId(String topicName) {
+        if (topicName == null)
+            return 0;
+
+        MQTTInternedTopic topic = MQTTTopicCache.find(topicName);
+        return topic != null && topic.getId() != 0 ? topic.getId() : topicName.hashCode() | Integer.MIN_VALUE;
+    }
+
+    /**
+     * Records an event.
+     * @param type event type, one of the EVENT_ constants
+     * @param flags event specific flags (e.g. QoS or reconnect flag)
+     * @param code event specific code (e.g. MQTT reason code)
+     * @param topic topic associated to the event, or null
+     * @param size payload size associated to the event
+     * @param requestId request ID associated to the event, or null
+     */
+    static void record(int type, int flags, int code, String topicName, int size, String requestId) {
+        int topicId = getTopicId(topicName);
+        int request = requestId == null ? 0 : requestId.hashCode();
+        long timestamp = System.currentTimeMillis();
+
+        MQTTFlightRecorder recorder = SingletonHolder.instance;
+
+        synchronized (recorder) {
+            if (!recorder.mEnabled)
+                return;
+
+            int position = (int) (recorder.mWritten % recorder.mCapacity) * RECORD_SIZE;
+            ByteBuffer buffer = recorder.mBuffer;
+            buffer.putLong(position, timestamp);
+            buffer.put(position + 8, (byte) type);
+            buffer.put(position + 9, (byte) flags);
+            buffer.putShort(position + 10, (short) code);
+            buffer.putInt(position + 12, topicId);
+            buffer.putInt(position + 16, size);
+            buffer.putInt(position + 20, request);
+            recorder.mWritten++;
+
+            if (topicName != null && recorder.mTopicNames.size() < MAX_TOPIC_NAMES
+                    && !recorder.mTopicNames.containsKey(topicId)) {
+                recorder.mTopicNames.put(topicId, topicName);
+            }
+        }
+    }
+
+    /**
+     * Dumps the recorded events into a file, from the oldest to the most recent.
+     * Recording is not interrupted.
+     * @param file destination file
+     * @throws IOException if an error occurs while writing the file
+     */
+    public static void dump(File file) throws IOException {
+        byte[] records;
+        long written;
+        int capacity;
+        int count;
+        Map<Integer, String> topicNames;
+
+        MQTTFlightRecorder recorder = SingletonHolder.instance;
+
+        synchronized (recorder) {
+            written = recorder.mWritten;
+            capacity = recorder.mCapacity;
+            count = (int) Math.min(written, capacity);
+            records = new byte[count * RECORD_SIZE];
+
+            int oldest = (int) ((written - count) % capacity) * RECORD_SIZE;
+            int firstChunk = Math.min(records.length, recorder.mBuffer.capacity() - oldest);
+            System.arraycopy(recorder.mBuffer.array(), oldest, records, 0, firstChunk);
+            System.arraycopy(recorder.mBuffer.array(), 0, records, firstChunk, records.length - firstChunk);
+
+            topicNames = new HashMap<>(recorder.mTopicNames);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+        try {
+            out.writeInt(DUMP_MAGIC);
+            out.writeShort(DUMP_VERSION);
+            out.writeShort(RECORD_SIZE);
+            out.writeInt(capacity);
+            out.writeLong(written);
+            out.writeInt(count);
+            out.write(records);
+
+            out.writeInt(topicNames.size());
+            for (Map.Entry<Integer, String> entry : topicNames.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Gets a human readable name for an event type.
+     * @param type event type
+     * @return event name
+     */
+    public static String getEventName(int type) {
+        switch (type) {
+            case EVENT_CONNECT: return "CONNECT";
+            case EVENT_CONNECT_COMPLETE: return "CONNECT_COMPLETE";
+            case EVENT_CONNECT_FAILED: return "CONNECT_FAILED";
+            case EVENT_CONNECTION_LOST: return "CONNECTION_LOST";
+            case EVENT_DISCONNECT: return "DISCONNECT";
+            case EVENT_SUBSCRIBE: return "SUBSCRIBE";
+            case EVENT_SUBSCRIBE_FAILED: return "SUBSCRIBE_FAILED";
+            case EVENT_PUBLISH: return "PUBLISH";
+            case EVENT_PUBLISH_FAILED: return "PUBLISH_FAILED";
+            case EVENT_MESSAGE_ARRIVED: return "MESSAGE_ARRIVED";
+            case EVENT_DELIVERY_COMPLETE: return "DELIVERY_COMPLETE";
+            case EVENT_CRASH: return "CRASH";
+            default: return "UNKNOWN(" + type + ")";
+        }
+    }
+}
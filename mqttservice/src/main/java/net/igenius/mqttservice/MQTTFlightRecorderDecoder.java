@@ -0,0 +1,99 @@
+package net.igenius.mqttservice;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decodes a {@link MQTTFlightRecorder} dump into human readable text.
+ * It depends only on the JVM, so it can be run on a workstation, after pulling the dump
+ * from the device:
+ * <pre>
+ * unzip -o mqttservice-release.aar classes.jar
+ * java -cp classes.jar net.igenius.mqttservice.MQTTFlightRecorderDecoder dump.bin
+ * </pre>
+ */
+public class MQTTFlightRecorderDecoder {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: MQTTFlightRecorderDecoder <dump file>");
+            System.exit(1);
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])));
+
+        try {
+            decode(in, System.out);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decodes a dump, printing one line per event, from the oldest to the most recent.
+     * @param in stream from which to read the dump
+     * @param out stream on which to print the decoded events
+     * @throws IOException if the dump can't be read or is not valid
+     */
+    public static void decode(DataInputStream in, PrintStream out) throws IOException {
+        if (in.readInt() != MQTTFlightRecorder.DUMP_MAGIC)
+            throw new IOException("Not a flight recorder dump");
+
+        int version = in.readShort();
+        if (version != MQTTFlightRecorder.DUMP_VERSION)
+            throw new IOException("Unsupported dump version: " + version);
+
+        int recordSize = in.readShort();
+        int capacity = in.readInt();
+        long written = in.readLong();
+        int count = in.readInt();
+
+        byte[] records = new byte[count * recordSize];
+        in.readFully(records);
+
+        int topics = in.readInt();
+        Map<Integer, String> topicNames = new HashMap<>(topics);
+        for (int i = 0; i < topics; i++) {
+            topicNames.put(in.readInt(), in.readUTF());
+        }
+
+        out.println("# capacity: " + capacity + ", total events: " + written + ", dumped: " + count);
+        out.println("# timestamp type flags code topic size requestId");
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        DataInputStream recordsIn = new DataInputStream(new ByteArrayInputStream(records));
+
+        for (int i = 0; i < count; i++) {
+            long timestamp = recordsIn.readLong();
+            int type = recordsIn.readByte();
+            int flags = recordsIn.readByte() & 0xff;
+            int code = recordsIn.readUnsignedShort();
+            int topicId = recordsIn.readInt();
+            int size = recordsIn.readInt();
+            int requestId = recordsIn.readInt();
+            recordsIn.skipBytes(recordSize - MQTTFlightRecorder.RECORD_SIZE);
+
+            String topic = topicId == 0 ? "-" : topicNames.get(topicId);
+            if (topic == null) {
+                topic = String.format(Locale.US, "#%08x", topicId);
+            }
+
+            out.println(dateFormat.format(new Date(timestamp)) + " "
+                    + MQTTFlightRecorder.getEventName(type) + " "
+                    + flags + " "
+                    + code + " "
+                    + topic + " "
+                    + size + " "
+                    + (requestId == 0 ? "-" : String.format(Locale.US, "%08x", requestId)));
+        }
+    }
+}
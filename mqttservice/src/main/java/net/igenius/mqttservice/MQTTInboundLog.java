@@ -0,0 +1,509 @@
+package net.igenius.mqttservice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Log of segment files used by {@link MQTTInboundStore}, without Android dependencies.
+ * <p>
+ * Each record has the arrival timestamp, the topic and the payload, followed by the CRC32 of
+ * the payload. Segments are read in batches, and the records of a batch are marked as consumed
+ * only when it gets committed, after its messages have been delivered. Consumed records are
+ * kept in a bitmap file next to each segment, so they are skipped by the next reads, also after
+ * a restart. Records which don't match the topic filters of the reader are left in place for
+ * other readers, so the arrival order is kept, and a segment is deleted once all its records
+ * have been consumed or have expired.
+ */
+class MQTTInboundLog {
+
+    static final String SEGMENT_EXTENSION = ".log";
+    private static final String CONSUMED_EXTENSION = ".consumed";
+    private static final int SEGMENTS = 4;
+    private static final int MAX_TOPIC_LENGTH = 65535;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static class Message {
+        final long timestamp;
+        final String topic;
+        final byte[] payload;
+
+        Message(long timestamp, String topic, byte[] payload) {
+            this.timestamp = timestamp;
+            this.topic = topic;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Messages read from a segment, which are marked as consumed by {@link #commit(Batch)}.
+     */
+    static class Batch {
+        final File segment;
+        final List<Message> messages = new ArrayList<>();
+        /** indexes of the read messages, and of the expired and corrupted records */
+        final BitSet consumed = new BitSet();
+        long endOffset;
+        int endIndex;
+        boolean endOfSegment;
+
+        Batch(File segment) {
+            this.segment = segment;
+        }
+    }
+
+    private final File mDirectory;
+    private FileOutputStream mSegment;
+    private long mSegmentSize;
+    private int mSegmentSequence = 0;
+
+    private final Map<String, BitSet> mConsumed = new HashMap<>();
+
+    MQTTInboundLog(File directory) {
+        mDirectory = directory;
+    }
+
+    synchronized void append(String topic, byte[] payload) throws IOException {
+        append(System.currentTimeMillis(), topic, payload);
+    }
+
+    synchronized void append(long timestamp, String topic, byte[] payload) throws IOException {
+        MQTTPayloadBuffer record = MQTTPayloadBuffer.obtain();
+
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            byte[] topicBytes = topic.getBytes(UTF_8);
+            writeLong(record, timestamp);
+            writeInt(record, topicBytes.length);
+            record.write(topicBytes, 0, topicBytes.length);
+            writeInt(record, payload.length);
+            record.write(payload, 0, payload.length);
+            writeInt(record, (int) crc.getValue());
+
+            if (mSegment == null || mSegmentSize >= MQTTInboundStore.MAX_SIZE_BYTES / SEGMENTS) {
+                closeSegment();
+                enforceRetention();
+                openSegment();
+            }
+
+            mSegment.write(record.getBuffer(), 0, record.size());
+            mSegmentSize += record.size();
+
+        } catch (IOException exc) {
+            closeSegment();
+            throw exc;
+
+        } finally {
+            record.recycle();
+        }
+    }
+
+    /**
+     * Closes the segment being written, so the next messages are appended to a new one, and
+     * lists the segments to read, oldest first.
+     * @return segments
+     */
+    synchronized List<File> startReading() {
+        closeSegment();
+        return new ArrayList<>(Arrays.asList(getSegments()));
+    }
+
+    /**
+     * Reads the first messages of a segment which have not been consumed yet. Expired and
+     * corrupted records are skipped.
+     * @param segment segment returned by {@link #startReading()}
+     * @param topicFilters filters, already split in levels, of the messages to read, or null
+     *                     or empty to read all the messages
+     * @param maxRecords maximum number of messages to read
+     * @return read batch, which must be committed once its messages have been delivered
+     */
+    synchronized Batch read(File segment, String[][] topicFilters, int maxRecords) {
+        return read(segment, 0, 0, topicFilters, maxRecords);
+    }
+
+    /**
+     * Reads the next messages of a segment which have not been consumed yet, after the ones of
+     * a previous batch.
+     * @param previous previous batch read from the same segment
+     * @param topicFilters filters, already split in levels, of the messages to read, or null
+     *                     or empty to read all the messages
+     * @param maxRecords maximum number of messages to read
+     * @return read batch, which must be committed once its messages have been delivered
+     */
+    synchronized Batch readNext(Batch previous, String[][] topicFilters, int maxRecords) {
+        if (previous.endOfSegment) {
+            Batch batch = new Batch(previous.segment);
+            batch.endOffset = previous.endOffset;
+            batch.endIndex = previous.endIndex;
+            batch.endOfSegment = true;
+            return batch;
+        }
+
+        return read(previous.segment, previous.endOffset, previous.endIndex, topicFilters, maxRecords);
+    }
+
+    private Batch read(File segment, long offset, int index, String[][] topicFilters, int maxRecords) {
+        BitSet consumed = getConsumed(segment);
+
+        Batch batch = new Batch(segment);
+        batch.endOffset = offset;
+        batch.endIndex = index;
+
+        long oldest = System.currentTimeMillis() - MQTTInboundStore.MAX_AGE_MILLIS;
+        DataInputStream in = null;
+
+        try {
+            FileInputStream file = new FileInputStream(segment);
+            in = new DataInputStream(new BufferedInputStream(file));
+
+            if (file.skip(offset) != offset) {
+                batch.endOfSegment = true;
+                return batch;
+            }
+
+            while (batch.messages.size() < maxRecords) {
+                long timestamp;
+                byte[] topic;
+                byte[] payload = null;
+                int payloadLength;
+                int expectedCrc;
+                boolean skip = consumed.get(batch.endIndex);
+
+                try {
+                    timestamp = in.readLong();
+                    topic = new byte[readLength(in, MAX_TOPIC_LENGTH)];
+                    in.readFully(topic);
+                    payloadLength = readLength(in, MQTTInboundStore.MAX_SIZE_BYTES);
+
+                    if (skip) {
+                        skipFully(in, payloadLength);
+                    } else {
+                        payload = new byte[payloadLength];
+                        in.readFully(payload);
+                    }
+
+                    expectedCrc = in.readInt();
+                } catch (EOFException exc) {
+                    // end of segment, or truncated last record
+                    batch.endOfSegment = true;
+                    break;
+                }
+
+                int recordIndex = batch.endIndex++;
+                batch.endOffset += 8 + 4 + topic.length + 4 + payloadLength + 4;
+
+                if (skip)
+                    continue;
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+
+                if ((int) crc.getValue() != expectedCrc || timestamp < oldest) {
+                    batch.consumed.set(recordIndex);
+                    continue;
+                }
+
+                Message message = new Message(timestamp, new String(topic, UTF_8), payload);
+
+                // records of other readers are left in place
+                if (accepts(message.topic, topicFilters)) {
+                    batch.messages.add(message);
+                    batch.consumed.set(recordIndex);
+                }
+            }
+
+        } catch (FileNotFoundException exc) {
+            // already deleted by the retention
+            batch.endOfSegment = true;
+
+        } catch (IOException exc) {
+            // the rest of the segment can't be parsed
+            MQTTServiceLogger.error("MQTTInboundStore", "Error while reading " + segment, exc);
+            batch.endOfSegment = true;
+
+        } finally {
+            closeQuietly(in);
+        }
+
+        return batch;
+    }
+
+    /**
+     * Marks the messages of a batch as consumed. Call it only after they have been delivered:
+     * if the batch is not committed, the next read returns the same messages. The segment is
+     * deleted if all its records have been consumed.
+     * @param batch batch returned by {@link #read(File, String[][], int)} or
+     *              {@link #readNext(Batch, String[][], int)}
+     */
+    synchronized void commit(Batch batch) {
+        if (!batch.segment.exists()) {
+            mConsumed.remove(batch.segment.getName());
+            return;
+        }
+
+        BitSet consumed = getConsumed(batch.segment);
+        int before = consumed.cardinality();
+        consumed.or(batch.consumed);
+
+        // the whole segment has been read, so its number of records is known
+        if (batch.endOfSegment && consumed.nextClearBit(0) >= batch.endIndex) {
+            deleteSegment(batch.segment);
+            return;
+        }
+
+        if (consumed.cardinality() != before) {
+            saveConsumed(batch.segment, consumed);
+        }
+    }
+
+    /**
+     * Deletes all the stored messages.
+     */
+    synchronized void clear() {
+        closeSegment();
+
+        for (File segment : getSegments()) {
+            deleteSegment(segment);
+        }
+    }
+
+    private static boolean accepts(String topic, String[][] topicFilters) {
+        if (topicFilters == null || topicFilters.length == 0)
+            return true;
+
+        MQTTInternedTopic interned = MQTTTopicCache.lookup(topic);
+
+        for (String[] topicFilter : topicFilters) {
+            if (interned.matches(topicFilter))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static int readLength(DataInputStream in, long max) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > max)
+            throw new IOException("Corrupted segment, invalid length: " + length);
+        return length;
+    }
+
+    private static void writeInt(MQTTPayloadBuffer buffer, int value) {
+        buffer.write(value >>> 24);
+        buffer.write(value >>> 16);
+        buffer.write(value >>> 8);
+        buffer.write(value);
+    }
+
+    private static void writeLong(MQTTPayloadBuffer buffer, long value) {
+        writeInt(buffer, (int) (value >>> 32));
+        writeInt(buffer, (int) value);
+    }
+
+    private File getDirectory() {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            MQTTServiceLogger.error("MQTTInboundStore", "Can't create " + mDirectory);
+        }
+
+        return mDirectory;
+    }
+
+    private File[] getSegments() {
+        File[] segments = getDirectory().listFiles();
+        if (segments == null)
+            return new File[0];
+
+        List<File> logs = new ArrayList<>(segments.length);
+        for (File segment : segments) {
+            if (segment.getName().endsWith(SEGMENT_EXTENSION)) {
+                logs.add(segment);
+            }
+        }
+
+        // names sort in creation order
+        segments = logs.toArray(new File[logs.size()]);
+        Arrays.sort(segments);
+
+        return segments;
+    }
+
+    private void openSegment() throws IOException {
+        String name = String.format(Locale.US, "%013d-%06d", System.currentTimeMillis(),
+                                    mSegmentSequence++ % 1000000);
+        File file = new File(getDirectory(), name + SEGMENT_EXTENSION);
+        mSegment = new FileOutputStream(file, true);
+        mSegmentSize = 0;
+    }
+
+    private void closeSegment() {
+        if (mSegment == null)
+            return;
+
+        try {
+            mSegment.close();
+        } catch (IOException exc) {
+            MQTTServiceLogger.error("MQTTInboundStore", "Error while closing segment", exc);
+        }
+
+        mSegment = null;
+        mSegmentSize = 0;
+    }
+
+    private void enforceRetention() {
+        File[] segments = getSegments();
+        long totalSize = 0;
+        for (File segment : segments) {
+            totalSize += segment.length();
+        }
+
+        long oldest = System.currentTimeMillis() - MQTTInboundStore.MAX_AGE_MILLIS;
+        long segmentSize = MQTTInboundStore.MAX_SIZE_BYTES / SEGMENTS;
+
+        // always leave room for the new segment
+        for (File segment : segments) {
+            if (totalSize + segmentSize <= MQTTInboundStore.MAX_SIZE_BYTES && segment.lastModified() >= oldest)
+                break;
+
+            totalSize -= segment.length();
+            deleteSegment(segment);
+        }
+    }
+
+    private static File getConsumedFile(File segment) {
+        return new File(segment.getParentFile(), segment.getName() + CONSUMED_EXTENSION);
+    }
+
+    /**
+     * Gets the indexes of the consumed records of a segment.
+     */
+    private BitSet getConsumed(File segment) {
+        BitSet consumed = mConsumed.get(segment.getName());
+        if (consumed != null)
+            return consumed;
+
+        consumed = new BitSet();
+        mConsumed.put(segment.getName(), consumed);
+
+        File file = getConsumedFile(segment);
+        if (!file.exists())
+            return consumed;
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int words = in.readInt();
+
+            for (int word = 0; word < words; word++) {
+                long bits = in.readLong();
+
+                for (int bit = 0; bit < 64; bit++) {
+                    if ((bits & (1L << bit)) != 0) {
+                        consumed.set(word * 64 + bit);
+                    }
+                }
+            }
+        } catch (IOException exc) {
+            // the records are replayed again rather than lost
+            MQTTServiceLogger.error("MQTTInboundStore", "Can't read the consumed records of " + segment, exc);
+            consumed.clear();
+        } finally {
+            closeQuietly(in);
+        }
+
+        return consumed;
+    }
+
+    private void saveConsumed(File segment, BitSet consumed) {
+        File file = getConsumedFile(segment);
+
+        // write and rename, so the bitmap is never left half written
+        File temp = new File(getDirectory(), file.getName() + ".tmp");
+        DataOutputStream out = null;
+
+        try {
+            int words = (consumed.length() + 63) / 64;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(words);
+
+            for (int word = 0; word < words; word++) {
+                long bits = 0;
+                for (int bit = 0; bit < 64; bit++) {
+                    if (consumed.get(word * 64 + bit)) {
+                        bits |= 1L << bit;
+                    }
+                }
+                out.writeLong(bits);
+            }
+
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file))
+                throw new IOException("Can't rename " + temp + " to " + file);
+
+        } catch (IOException exc) {
+            MQTTServiceLogger.error("MQTTInboundStore", "Can't save the consumed records of " + segment, exc);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void deleteSegment(File segment) {
+        mConsumed.remove(segment.getName());
+
+        if (segment.exists()) {
+            deleteFile(segment);
+        }
+
+        File consumed = getConsumedFile(segment);
+        if (consumed.exists()) {
+            deleteFile(consumed);
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        if (in.skipBytes(length) != length)
+            throw new EOFException();
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            MQTTServiceLogger.error("MQTTInboundStore", "Can't delete " + file);
+        }
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in == null)
+            return;
+
+        try {
+            in.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package net.igenius.mqttservice;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static net.igenius.mqttservice.MQTTServiceCommand.BROADCAST_MESSAGE_ARRIVED;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_BROADCAST_TYPE;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_PAYLOAD;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_REQUEST_ID;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_TOPIC;
+import static net.igenius.mqttservice.MQTTServiceCommand.getBroadcastAction;
+
+/**
+ * Opt-in disk store for messages which arrive when no receiver is registered, e.g. while the
+ * app is in background and the receivers have been unregistered in onPause.
+ * <p>
+ * Messages arriving on a topic matching one of the filters added with
+ * {@link #addTopicFilter(String)}, for which no registered {@link MQTTServiceReceiver} or
+ * {@link MQTTServiceTypedReceiver} has a matching topic filter, are appended to a log of segment
+ * files. Segments exceeding {@link #MAX_SIZE_BYTES} or {@link #MAX_AGE_MILLIS} are deleted,
+ * oldest first. When a receiver registers, the stored messages matching its topic filters are
+ * replayed to it in batches of {@link #REPLAY_BATCH_SIZE}, on the same thread on which it
+ * receives broadcasts, in arrival order. A batch is marked as consumed only after it has been
+ * handed to the receiver, so if the receiver gets unregistered during the replay, the remaining
+ * messages are replayed to the next one. The messages not matching the receiver are left in
+ * place for the other ones, and each stored message is replayed once.
+ * Receivers declared in the manifest are not taken into account.
+ */
+public class MQTTInboundStore {
+
+    public static long MAX_SIZE_BYTES = 1024 * 1024;
+    public static long MAX_AGE_MILLIS = 24 * 60 * 60 * 1000;
+    public static int REPLAY_BATCH_SIZE = 50;
+
+    private static final String DIRECTORY = "mqtt-inbound";
+
+    private static final CopyOnWriteArrayList<String[]> sTopicFilters = new CopyOnWriteArrayList<>();
+    private static final ConcurrentHashMap<BroadcastReceiver, Consumer> sConsumers = new ConcurrentHashMap<>();
+
+    private static final Object sLock = new Object();
+    private static final Queue<BroadcastReceiver> sPendingReplays = new ArrayDeque<>();
+    private static MQTTInboundLog sLog;
+    private static boolean sReplaying = false;
+
+    private static class Consumer {
+        final Context context;
+        final Handler handler;
+        final String[][] topicFilters;
+
+        Consumer(Context context, Handler handler, String[][] topicFilters) {
+            this.context = context;
+            this.handler = handler;
+            this.topicFilters = topicFilters;
+        }
+
+        boolean accepts(MQTTInternedTopic topic) {
+            if (topicFilters == null || topicFilters.length == 0)
+                return true;
+
+            for (String[] topicFilter : topicFilters) {
+                if (topic.matches(topicFilter))
+                    return true;
+            }
+
+            return false;
+        }
+    }
+
+    private static class Replay {
+        final BroadcastReceiver receiver;
+        final Consumer consumer;
+        final MQTTInboundLog log;
+        final List<File> segments;
+        MQTTInboundLog.Batch last;
+
+        Replay(BroadcastReceiver receiver, Consumer consumer, MQTTInboundLog log) {
+            this.receiver = receiver;
+            this.consumer = consumer;
+            this.log = log;
+            this.segments = log.startReading();
+        }
+
+        boolean isRegistered() {
+            return sConsumers.get(receiver) == consumer;
+        }
+
+        /**
+         * Reads the next batch with messages for the receiver.
+         * @return batch, or null if there are no more messages
+         */
+        MQTTInboundLog.Batch nextBatch() {
+            while (!segments.isEmpty()) {
+                MQTTInboundLog.Batch batch = last == null
+                        ? log.read(segments.get(0), consumer.topicFilters, REPLAY_BATCH_SIZE)
+                        : log.readNext(last, consumer.topicFilters, REPLAY_BATCH_SIZE);
+                if (!batch.messages.isEmpty())
+                    return batch;
+
+                commit(batch);
+            }
+
+            return null;
+        }
+
+        void commit(MQTTInboundLog.Batch batch) {
+            log.commit(batch);
+            last = batch;
+
+            if (batch.endOfSegment) {
+                segments.remove(0);
+                last = null;
+            }
+        }
+    }
+
+    private MQTTInboundStore() { }
+
+    /**
+     * Stores the messages arriving on the topics matching a filter while no receiver is registered.
+     * @param topicFilter topic filter, which may contain + and # wildcards
+     */
+    public static void addTopicFilter(String topicFilter) {
+        MqttTopic.validate(topicFilter, true);
+        String[] levels = MQTTTopicCache.split(topicFilter);
+
+        synchronized (sTopicFilters) {
+            for (String[] existing : sTopicFilters) {
+                if (Arrays.equals(existing, levels))
+                    return;
+            }
+
+            sTopicFilters.add(levels);
+        }
+    }
+
+    public static void clearTopicFilters() {
+        sTopicFilters.clear();
+    }
+
+    /**
+     * Deletes all the stored messages.
+     * @param context application context
+     */
+    public static void clear(Context context) {
+        getLog(context).clear();
+    }
+
+    /**
+     * Checks if a registered receiver gets the messages arriving on a topic.
+     * @param topic topic
+     * @return true if at least one registered receiver has a topic filter matching it
+     */
+    static boolean hasConsumer(MQTTInternedTopic topic) {
+        for (Consumer consumer : sConsumers.values()) {
+            if (consumer.accepts(topic))
+                return true;
+        }
+        return false;
+    }
+
+    static boolean accepts(MQTTInternedTopic topic) {
+        for (String[] topicFilter : sTopicFilters) {
+            if (topic.matches(topicFilter))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called when a receiver gets registered. Replays the stored messages to the receiver.
+     * @param context context in which the receiver has been registered
+     * @param receiver registered receiver
+     * @param handler handler on which the receiver gets broadcasts
+     * @param topicFilters topic filters of the receiver, already split in levels, or null or
+     *                     empty if it gets the messages of all the topics
+     */
+    static void onConsumerRegistered(Context context, BroadcastReceiver receiver,
+                                     Handler handler, String[][] topicFilters) {
+        Context appContext = context.getApplicationContext();
+        sConsumers.put(receiver, new Consumer(appContext, handler, topicFilters));
+
+        if (sTopicFilters.isEmpty())
+            return;
+
+        synchronized (sLock) {
+            sPendingReplays.add(receiver);
+        }
+
+        getLog(appContext);
+
+        // disk access happens on the dispatcher thread
+        MQTTServiceDispatcher.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                startNextReplay();
+            }
+        });
+    }
+
+    static void onConsumerUnregistered(BroadcastReceiver receiver) {
+        sConsumers.remove(receiver);
+    }
+
+    /**
+     * Appends a message to the store, if it arrived on a topic matching a filter.
+     * @param context context
+     * @param topic topic on which the message arrived
+     * @param payload message payload
+     */
+    static void append(Context context, MQTTInternedTopic topic, byte[] payload) {
+        if (sTopicFilters.isEmpty() || !accepts(topic))
+            return;
+
+        try {
+            getLog(context).append(topic.getName(), payload);
+        } catch (IOException exc) {
+            MQTTServiceLogger.error("MQTTInboundStore", "Can't store message arrived on " + topic, exc);
+        }
+    }
+
+    private static MQTTInboundLog getLog(Context context) {
+        synchronized (sLock) {
+            if (sLog == null) {
+                sLog = new MQTTInboundLog(new File(context.getApplicationContext().getFilesDir(), DIRECTORY));
+            }
+            return sLog;
+        }
+    }
+
+    /**
+     * Starts the replay to the next registered receiver waiting for it, if no replay is running.
+     * Runs on the dispatcher thread.
+     */
+    private static void startNextReplay() {
+        Replay replay;
+
+        synchronized (sLock) {
+            if (sReplaying)
+                return;
+
+            BroadcastReceiver receiver;
+            Consumer consumer;
+
+            do {
+                receiver = sPendingReplays.poll();
+                if (receiver == null)
+                    return;
+
+                consumer = sConsumers.get(receiver);
+            } while (consumer == null);
+
+            sReplaying = true;
+            replay = new Replay(receiver, consumer, sLog);
+        }
+
+        replayNextBatch(replay);
+    }
+
+    private static void endReplay() {
+        synchronized (sLock) {
+            sReplaying = false;
+        }
+
+        startNextReplay();
+    }
+
+    /**
+     * Reads the next batch and hands it to the receiver. Runs on the dispatcher thread.
+     */
+    private static void replayNextBatch(final Replay replay) {
+        final MQTTInboundLog.Batch batch = replay.isRegistered() ? replay.nextBatch() : null;
+
+        if (batch == null) {
+            endReplay();
+            return;
+        }
+
+        replay.consumer.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                final boolean delivered = replay.isRegistered();
+
+                if (delivered) {
+                    for (MQTTInboundLog.Message message : batch.messages) {
+                        replay.receiver.onReceive(replay.consumer.context, toIntent(message));
+                    }
+                }
+
+                MQTTServiceDispatcher.getHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!delivered) {
+                            // unregistered in the meantime, the batch is not committed and
+                            // gets replayed to the next receiver
+                            endReplay();
+                            return;
+                        }
+
+                        replay.commit(batch);
+                        replayNextBatch(replay);
+                    }
+                });
+            }
+        });
+    }
+
+    private static Intent toIntent(MQTTInboundLog.Message message) {
+        Intent intent = new Intent();
+
+        intent.setAction(getBroadcastAction());
+        intent.putExtra(PARAM_BROADCAST_TYPE, BROADCAST_MESSAGE_ARRIVED);
+        intent.putExtra(PARAM_REQUEST_ID, UUID.randomUUID().toString());
+        intent.putExtra(PARAM_PAYLOAD, message.payload);
+        intent.putExtra(PARAM_TOPIC, message.topic);
+
+        return intent;
+    }
+}
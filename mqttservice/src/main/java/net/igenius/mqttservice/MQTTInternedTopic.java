@@ -0,0 +1,72 @@
+package net.igenius.mqttservice;
+
+/**
+ * Canonical instance of a topic name, obtained from {@link MQTTTopicCache}, with its levels
+ * already split and a small integer ID, unique within the process.
+ */
+public final class MQTTInternedTopic {
+
+    private final String mName;
+    private final String[] mLevels;
+    private final int mId;
+
+    MQTTInternedTopic(String name, int id) {
+        mName = name;
+        mLevels = MQTTTopicCache.split(name);
+        mId = id;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Gets the ID of this topic.
+     * @return ID, or 0 if the topic has not been cached because the cache was full
+     */
+    public int getId() {
+        return mId;
+    }
+
+    public int getLevelCount() {
+        return mLevels.length;
+    }
+
+    public String getLevel(int index) {
+        return mLevels[index];
+    }
+
+    /**
+     * Checks if this topic matches a topic filter already split in levels with
+     * {@link MQTTTopicCache#split(String)}, without allocating anything.
+     * @param filterLevels topic filter levels
+     * @return true if this topic matches the filter
+     */
+    boolean matches(String[] filterLevels) {
+        // topics starting with $ are not matched by wildcards in the first level
+        if (mLevels[0].startsWith("$") && ("+".equals(filterLevels[0]) || "#".equals(filterLevels[0])))
+            return false;
+
+        int index = 0;
+
+        for (; index < filterLevels.length; index++) {
+            String filterLevel = filterLevels[index];
+
+            if ("#".equals(filterLevel))
+                return true;
+
+            if (index >= mLevels.length)
+                return false;
+
+            if (!"+".equals(filterLevel) && !filterLevel.equals(mLevels[index]))
+                return false;
+        }
+
+        return index == mLevels.length;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,167 @@
+package net.igenius.mqttservice;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+
+/**
+ * Streaming JSON encoding and decoding of payloads with Gson.
+ * Objects are written as UTF-8 straight into a pooled {@link MQTTPayloadBuffer} and read
+ * straight from the payload bytes, without building intermediate Strings.
+ */
+public class MQTTJson {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static volatile Gson sGson = new Gson();
+
+    private MQTTJson() { }
+
+    /**
+     * Sets the Gson instance to use, e.g. to register custom type adapters.
+     * @param gson Gson instance
+     */
+    public static void setGson(Gson gson) {
+        if (gson == null)
+            throw new IllegalArgumentException("gson MUST not be null!");
+
+        sGson = gson;
+    }
+
+    public static Gson getGson() {
+        return sGson;
+    }
+
+    /**
+     * Encodes an object to a UTF-8 JSON payload.
+     * @param object object to encode
+     * @return JSON payload
+     */
+    public static byte[] encode(Object object) {
+        return encode(object, object == null ? Object.class : object.getClass());
+    }
+
+    /**
+     * Encodes an object to a UTF-8 JSON payload.
+     * @param object object to encode
+     * @param type type of the object, useful for generic types
+     * @return JSON payload
+     */
+    public static byte[] encode(Object object, Type type) {
+        MQTTPayloadBuffer buffer = MQTTPayloadBuffer.obtain();
+
+        try {
+            JsonWriter writer = new JsonWriter(new Utf8Writer(buffer));
+            sGson.toJson(object, type, writer);
+            writer.flush();
+            return buffer.toByteArray();
+
+        } catch (IOException exc) {
+            // the buffer never throws, so this should never happen
+            throw new IllegalStateException(exc);
+
+        } finally {
+            buffer.recycle();
+        }
+    }
+
+    /**
+     * Decodes a UTF-8 JSON payload.
+     * @param payload JSON payload
+     * @param type type of the object to decode
+     * @param <T> type of the object to decode
+     * @return decoded object
+     * @throws com.google.gson.JsonParseException if the payload is not valid JSON for the type
+     */
+    public static <T> T decode(byte[] payload, Type type) {
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(payload), UTF_8));
+        return sGson.fromJson(reader, type);
+    }
+
+    /**
+     * Writer which encodes chars as UTF-8 directly into a payload buffer.
+     */
+    private static class Utf8Writer extends Writer {
+
+        private final MQTTPayloadBuffer mBuffer;
+        private int mHighSurrogate = -1;
+
+        Utf8Writer(MQTTPayloadBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public void write(int c) {
+            if (mHighSurrogate >= 0) {
+                int high = mHighSurrogate;
+                mHighSurrogate = -1;
+
+                if (Character.isLowSurrogate((char) c)) {
+                    writeCodePoint(Character.toCodePoint((char) high, (char) c));
+                    return;
+                }
+                mBuffer.write('?');
+            }
+
+            if (Character.isHighSurrogate((char) c)) {
+                mHighSurrogate = c;
+            } else if (Character.isLowSurrogate((char) c)) {
+                mBuffer.write('?');
+            } else {
+                writeCodePoint(c);
+            }
+        }
+
+        private void writeCodePoint(int codePoint) {
+            if (codePoint < 0x80) {
+                mBuffer.write(codePoint);
+            } else if (codePoint < 0x800) {
+                mBuffer.write(0xc0 | (codePoint >> 6));
+                mBuffer.write(0x80 | (codePoint & 0x3f));
+            } else if (codePoint < 0x10000) {
+                mBuffer.write(0xe0 | (codePoint >> 12));
+                mBuffer.write(0x80 | ((codePoint >> 6) & 0x3f));
+                mBuffer.write(0x80 | (codePoint & 0x3f));
+            } else {
+                mBuffer.write(0xf0 | (codePoint >> 18));
+                mBuffer.write(0x80 | ((codePoint >> 12) & 0x3f));
+                mBuffer.write(0x80 | ((codePoint >> 6) & 0x3f));
+                mBuffer.write(0x80 | (codePoint & 0x3f));
+            }
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                write(chars[i]);
+            }
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                write(string.charAt(i));
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (mHighSurrogate >= 0) {
+                mHighSurrogate = -1;
+                mBuffer.write('?');
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package net.igenius.mqttservice;
+
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer, which can be recycled to avoid allocating a new one for every payload.
+ * Obtain a buffer with {@link #obtain()} and give it back with {@link #recycle()} when done.
+ */
+public class MQTTPayloadBuffer extends OutputStream {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_POOLED_BUFFERS = 8;
+    private static final int MAX_POOLED_CAPACITY = 256 * 1024;
+
+    private static final ArrayDeque<MQTTPayloadBuffer> sPool = new ArrayDeque<>(MAX_POOLED_BUFFERS);
+
+    private byte[] mBuffer;
+    private int mSize;
+
+    private MQTTPayloadBuffer(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * Gets an empty buffer from the pool, or creates a new one if the pool is empty.
+     * @return empty buffer
+     */
+    public static MQTTPayloadBuffer obtain() {
+        synchronized (sPool) {
+            MQTTPayloadBuffer buffer = sPool.poll();
+            if (buffer != null)
+                return buffer;
+        }
+
+        return new MQTTPayloadBuffer(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Gives this buffer back to the pool. The buffer must not be used anymore after this call.
+     */
+    public void recycle() {
+        if (mBuffer.length > MAX_POOLED_CAPACITY)
+            return;
+
+        mSize = 0;
+
+        synchronized (sPool) {
+            if (sPool.size() < MAX_POOLED_BUFFERS) {
+                sPool.offer(this);
+            }
+        }
+    }
+
+    /**
+     * Makes sure the buffer can hold at least the given number of bytes without growing.
+     * @param capacity minimum capacity
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(capacity, mBuffer.length * 2));
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(mSize + 1);
+        mBuffer[mSize++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(mSize + len);
+        System.arraycopy(b, off, mBuffer, mSize, len);
+        mSize += len;
+    }
+
+    /**
+     * Writes an unsigned variable length integer, 7 bits per byte.
+     * @param value value to write
+     */
+    public void writeVarInt(int value) {
+        while ((value & ~0x7f) != 0) {
+            write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        write(value);
+    }
+
+    /**
+     * Gets the internal array. Only the first {@link #size()} bytes are valid.
+     * @return internal array
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Sets the number of valid bytes, after writing directly into {@link #getBuffer()}.
+     * @param size number of valid bytes
+     */
+    public void setSize(int size) {
+        if (size < 0 || size > mBuffer.length)
+            throw new IllegalArgumentException("Invalid size: " + size);
+
+        mSize = size;
+    }
+
+    public void reset() {
+        mSize = 0;
+    }
+
+    /**
+     * Copies the valid bytes into a new array.
+     * @return new array with the buffer content
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mSize);
+    }
+}
@@ -0,0 +1,36 @@
+package net.igenius.mqttservice;
+
+/**
+ * Transforms payloads before they are published and after they arrive.
+ * Register codecs for topic filters with {@link MQTTPayloadCodecs#register(String, MQTTPayloadCodec)}.
+ * Implementations must be thread safe, because the same instance is used from different threads.
+ */
+public interface MQTTPayloadCodec {
+
+    /**
+     * Gets the ID of this codec, written in each encoded payload header to detect which codec
+     * has to be used to decode it. It must be between 1 and 127 and unique among registered codecs.
+     * @return codec ID
+     */
+    int getId();
+
+    /**
+     * Encodes a payload.
+     * @param input array containing the payload
+     * @param offset offset of the payload in the array
+     * @param length payload length
+     * @param output buffer on which to append the encoded payload
+     */
+    void encode(byte[] input, int offset, int length, MQTTPayloadBuffer output);
+
+    /**
+     * Decodes a payload.
+     * @param input array containing the encoded payload
+     * @param offset offset of the encoded payload in the array
+     * @param length encoded payload length
+     * @param output array on which to write the decoded payload. Its length is exactly the
+     *               length of the decoded payload
+     * @throws IllegalArgumentException if the encoded payload is not valid
+     */
+    void decode(byte[] input, int offset, int length, byte[] output);
+}
@@ -0,0 +1,181 @@
+package net.igenius.mqttservice;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Payload codec pipeline, configured per topic filter.
+ * <p>
+ * Payloads published on a topic matching a registered filter are encoded with the codec
+ * registered for that filter, and prefixed with a small header: a magic byte (0xC0, which never
+ * appears as the first byte of UTF-8 text), the codec ID and the decoded length as a variable
+ * length integer. Payloads arriving on a topic matching any registered filter are decoded with
+ * the codec detected from the header, so the receivers always get the original payload.
+ * Payloads without the header are delivered as they are.
+ * <p>
+ * Payloads smaller than {@link #MIN_PAYLOAD_SIZE} are not encoded, and if the encoded payload
+ * is not smaller than the original one, the original is published.
+ * <p>
+ * The two sides of a topic must agree on the configuration, e.g.:
+ * <pre>
+ * MQTTPayloadCodecs.register("telemetry/#", new MQTTDeflateCodec());
+ * </pre>
+ */
+public class MQTTPayloadCodecs {
+
+    public static int MIN_PAYLOAD_SIZE = 64;
+    public static int MAX_DECODED_SIZE = 16 * 1024 * 1024;
+
+    static final int MAGIC = 0xC0;
+
+    private static final int MAX_CODEC_ID = 127;
+
+    private static class Entry {
+        final String[] filterLevels;
+        final MQTTPayloadCodec codec;
+
+        Entry(String topicFilter, MQTTPayloadCodec codec) {
+            this.filterLevels = MQTTTopicCache.split(topicFilter);
+            this.codec = codec;
+        }
+    }
+
+    private static final CopyOnWriteArrayList<Entry> sEntries = new CopyOnWriteArrayList<>();
+    private static final MQTTPayloadCodec[] sCodecsById = new MQTTPayloadCodec[MAX_CODEC_ID + 1];
+
+    private MQTTPayloadCodecs() { }
+
+    /**
+     * Registers a codec for a topic filter. If a topic matches more than one filter, the first
+     * registered one wins.
+     * @param topicFilter topic filter, which may contain + and # wildcards
+     * @param codec codec to use for the topics matching the filter
+     */
+    public static void register(String topicFilter, MQTTPayloadCodec codec) {
+        if (topicFilter == null || codec == null)
+            throw new IllegalArgumentException("topicFilter and codec MUST not be null!");
+
+        int id = codec.getId();
+        if (id < 1 || id > MAX_CODEC_ID)
+            throw new IllegalArgumentException("codec ID must be between 1 and " + MAX_CODEC_ID);
+
+        MqttTopic.validate(topicFilter, true);
+
+        synchronized (sCodecsById) {
+            MQTTPayloadCodec existing = sCodecsById[id];
+            if (existing != null && existing.getClass() != codec.getClass())
+                throw new IllegalArgumentException("codec ID " + id + " already used by "
+                        + existing.getClass().getName());
+            sCodecsById[id] = codec;
+        }
+
+        sEntries.add(new Entry(topicFilter, codec));
+    }
+
+    /**
+     * Removes all the registered codecs.
+     */
+    public static void clear() {
+        sEntries.clear();
+
+        synchronized (sCodecsById) {
+            for (int i = 0; i < sCodecsById.length; i++) {
+                sCodecsById[i] = null;
+            }
+        }
+    }
+
+    private static Entry find(MQTTInternedTopic topic) {
+        if (topic == null)
+            return null;
+
+        for (Entry entry : sEntries) {
+            if (topic.matches(entry.filterLevels))
+                return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Encodes a payload to be published on a topic.
+     * @param topic topic on which the payload is going to be published
+     * @param payload payload to encode
+     * @return encoded payload, or the original payload if no codec is registered for the topic
+     * or if encoding doesn't make it smaller
+     */
+    public static byte[] encode(String topic, byte[] payload) {
+        if (payload == null || payload.length < MIN_PAYLOAD_SIZE || sEntries.isEmpty())
+            return payload;
+
+        // outbound topics are not interned, so they don't fill the cache
+        Entry entry = find(MQTTTopicCache.lookup(topic));
+        if (entry == null)
+            return payload;
+
+        MQTTPayloadBuffer buffer = MQTTPayloadBuffer.obtain();
+
+        try {
+            buffer.write(MAGIC);
+            buffer.write(entry.codec.getId());
+            buffer.writeVarInt(payload.length);
+            entry.codec.encode(payload, 0, payload.length, buffer);
+
+            return buffer.size() < payload.length ? buffer.toByteArray() : payload;
+
+        } finally {
+            buffer.recycle();
+        }
+    }
+
+    /**
+     * Decodes a payload arrived on a topic.
+     * @param topic topic on which the payload arrived
+     * @param payload payload to decode
+     * @return decoded payload, or the original payload if no codec is registered for the topic
+     * or if the payload has not been encoded
+     * @throws IllegalArgumentException if the payload has a codec header but can't be decoded
+     */
+    public static byte[] decode(String topic, byte[] payload) {
+        return decode(MQTTTopicCache.lookup(topic), payload);
+    }
+
+    /**
+     * Decodes a payload arrived on an interned topic.
+     * @see #decode(String, byte[])
+     */
+    static byte[] decode(MQTTInternedTopic topic, byte[] payload) {
+        if (payload == null || payload.length < 3 || (payload[0] & 0xff) != MAGIC
+                || sEntries.isEmpty() || find(topic) == null)
+            return payload;
+
+        int codecId = payload[1] & 0xff;
+        MQTTPayloadCodec codec = null;
+        if (codecId <= MAX_CODEC_ID) {
+            synchronized (sCodecsById) {
+                codec = sCodecsById[codecId];
+            }
+        }
+        if (codec == null)
+            throw new IllegalArgumentException("Unknown codec ID: " + codecId);
+
+        int index = 2;
+        int length = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (index >= payload.length || shift > 28)
+                throw new IllegalArgumentException("Invalid codec header");
+            b = payload[index++] & 0xff;
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        if (length < 0 || length > MAX_DECODED_SIZE)
+            throw new IllegalArgumentException("Invalid decoded length: " + length);
+
+        byte[] decoded = new byte[length];
+        codec.decode(payload, index, payload.length - index, decoded);
+        return decoded;
+    }
+}
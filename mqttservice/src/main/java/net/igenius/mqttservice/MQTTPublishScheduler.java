@@ -0,0 +1,269 @@
+package net.igenius.mqttservice;
+
+import android.content.Intent;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per topic publish queues of {@link MQTTService}, dispatched weighted round-robin within the
+ * limits configured in {@link MQTTRateLimits}. Queues of the {@link MQTTDeferredPublishing}
+ * topics are held back until the radio is active or their maximum delay expires.
+ * It must be used only from the service worker thread, except {@link #onRadioActivity()}.
+ */
+class MQTTPublishScheduler {
+
+    interface Dispatcher {
+        void dispatch(Intent intent);
+    }
+
+    private static class Pending {
+        final Intent intent;
+        final long enqueuedAt;
+        boolean throttled;
+
+        Pending(Intent intent, long enqueuedAt) {
+            this.intent = intent;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private static class TopicQueue {
+        final String topic;
+        final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        MQTTRateLimits.Rule rule;
+        int credits;
+        boolean deferred;
+
+        TopicQueue(String topic) {
+            this.topic = topic;
+        }
+
+        int getWeight() {
+            return rule != null ? rule.weight : 1;
+        }
+    }
+
+    private final Dispatcher mDispatcher;
+    private final Map<String, TopicQueue> mQueues = new HashMap<>();
+    private final ArrayDeque<TopicQueue> mActive = new ArrayDeque<>();
+    private final ArrayDeque<TopicQueue> mDeferred = new ArrayDeque<>();
+    private int mRulesVersion = -1;
+
+    private volatile long mLastRadioActivity = Long.MIN_VALUE / 2;
+    private volatile boolean mHasDeferred = false;
+    private long mOldestDeferred;
+    private long mVirtualRadioActiveUntil = Long.MIN_VALUE / 2;
+    private int mWakeupsAvoided;
+
+    MQTTPublishScheduler(Dispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * Queues a publish.
+     * @param topic topic of the publish
+     * @param intent publish command
+     * @param awaited true if the caller waits for the publish with a timeout, in which case
+     *                the deferred publishes are flushed instead of holding it back
+     * @return false if the queue of the topic is full
+     */
+    boolean enqueue(String topic, Intent intent, boolean awaited) {
+        TopicQueue queue = mQueues.get(topic);
+
+        if (queue == null) {
+            queue = new TopicQueue(topic);
+            queue.rule = MQTTRateLimits.getRule(topic);
+            queue.credits = queue.getWeight();
+            mQueues.put(topic, queue);
+
+            if (MQTTDeferredPublishing.isDeferred(topic)) {
+                defer(queue);
+            } else {
+                mActive.addLast(queue);
+            }
+
+        } else if (queue.pending.size() >= MQTTRateLimits.MAX_QUEUED_PER_TOPIC) {
+            MQTTServiceMetrics.onPublishRejected();
+            return false;
+        }
+
+        long now = System.nanoTime();
+        queue.pending.addLast(new Pending(intent, now));
+        MQTTServiceMetrics.onPublishQueued();
+
+        if (awaited && queue.deferred) {
+            flushDeferred(!isRadioActive(now));
+        }
+
+        if (queue.deferred) {
+            MQTTServiceMetrics.onPublishDeferred();
+
+            // a publish sent right away would wake up the radio if it's not in its tail time
+            long radioActiveUntil = Math.max(mVirtualRadioActiveUntil,
+                    mLastRadioActivity + MQTTDeferredPublishing.RADIO_ACTIVE_MILLIS * 1000000);
+            if (now > radioActiveUntil) {
+                mWakeupsAvoided++;
+                mVirtualRadioActiveUntil = now + MQTTDeferredPublishing.RADIO_ACTIVE_MILLIS * 1000000;
+            }
+        }
+
+        return true;
+    }
+
+    private void defer(TopicQueue queue) {
+        if (mDeferred.isEmpty()) {
+            mOldestDeferred = System.nanoTime();
+            mHasDeferred = true;
+        }
+
+        queue.deferred = true;
+        mDeferred.addLast(queue);
+    }
+
+    /**
+     * Notifies that something has been sent or received, so the radio is active.
+     * It can be called from any thread.
+     * @return true if there are deferred publishes which can be dispatched now
+     */
+    boolean onRadioActivity() {
+        mLastRadioActivity = System.nanoTime();
+        return mHasDeferred;
+    }
+
+    private boolean isRadioActive(long now) {
+        return now - mLastRadioActivity < MQTTDeferredPublishing.RADIO_ACTIVE_MILLIS * 1000000;
+    }
+
+    private long getDeferredDeadline() {
+        return mOldestDeferred + MQTTDeferredPublishing.MAX_DELAY_MILLIS * 1000000;
+    }
+
+    private void flushDeferred(boolean wakesRadio) {
+        MQTTServiceMetrics.onRadioWakeupsSaved(Math.max(0, mWakeupsAvoided - (wakesRadio ? 1 : 0)));
+        mWakeupsAvoided = 0;
+        mVirtualRadioActiveUntil = Long.MIN_VALUE / 2;
+
+        for (TopicQueue queue : mDeferred) {
+            queue.deferred = false;
+            mActive.addLast(queue);
+        }
+        mDeferred.clear();
+        mHasDeferred = false;
+    }
+
+    /**
+     * Dispatches all the publishes allowed by the current limits.
+     * @return milliseconds after which this method has to be called again, or -1 if there
+     * are no more queued publishes
+     */
+    long dispatch() {
+        if (mRulesVersion != MQTTRateLimits.getVersion()) {
+            mRulesVersion = MQTTRateLimits.getVersion();
+            for (TopicQueue queue : mQueues.values()) {
+                queue.rule = MQTTRateLimits.getRule(queue.topic);
+                queue.credits = Math.min(queue.credits, queue.getWeight());
+            }
+        }
+
+        long now = System.nanoTime();
+
+        if (!mDeferred.isEmpty() && (isRadioActive(now) || now >= getDeferredDeadline())) {
+            flushDeferred(!isRadioActive(now));
+        }
+
+        long waitNanos = dispatchActive();
+
+        // publishes just sent woke up the radio, so the deferred ones can follow them
+        if (!mDeferred.isEmpty() && isRadioActive(System.nanoTime())) {
+            flushDeferred(false);
+            waitNanos = dispatchActive();
+        }
+
+        if (!mDeferred.isEmpty()) {
+            waitNanos = Math.min(waitNanos, getDeferredDeadline() - System.nanoTime());
+        } else if (mActive.isEmpty()) {
+            return -1;
+        }
+
+        return Math.max(1, (waitNanos + 999999) / 1000000);
+    }
+
+    private long dispatchActive() {
+        MQTTTokenBucket global = MQTTRateLimits.getGlobalBucket();
+        long waitNanos = Long.MAX_VALUE;
+        int blocked = 0;
+
+        while (!mActive.isEmpty() && blocked < mActive.size()) {
+            long now = System.nanoTime();
+            TopicQueue queue = mActive.peekFirst();
+            Pending next = queue.pending.peekFirst();
+
+            if (global != null && !global.hasToken(now)) {
+                throttle(next);
+                waitNanos = Math.min(waitNanos, global.getWaitNanos());
+                break;
+            }
+
+            MQTTTokenBucket bucket = queue.rule != null ? queue.rule.bucket : null;
+
+            if (bucket != null && !bucket.hasToken(now)) {
+                throttle(next);
+                waitNanos = Math.min(waitNanos, bucket.getWaitNanos());
+                nextTurn(queue);
+                blocked++;
+                continue;
+            }
+
+            blocked = 0;
+            if (global != null) global.take();
+            if (bucket != null) bucket.take();
+
+            queue.pending.pollFirst();
+
+            if (queue.pending.isEmpty()) {
+                mActive.pollFirst();
+                mQueues.remove(queue.topic);
+            } else if (--queue.credits <= 0) {
+                nextTurn(queue);
+            }
+
+            MQTTServiceMetrics.onPublishDispatched((now - next.enqueuedAt) / 1000000);
+            mLastRadioActivity = now;
+            mDispatcher.dispatch(next.intent);
+        }
+
+        return waitNanos;
+    }
+
+    private void throttle(Pending pending) {
+        if (!pending.throttled) {
+            pending.throttled = true;
+            MQTTServiceMetrics.onPublishThrottled();
+        }
+    }
+
+    private void nextTurn(TopicQueue queue) {
+        mActive.pollFirst();
+        mActive.addLast(queue);
+        queue.credits = queue.getWeight();
+    }
+
+    /**
+     * Removes all the queued publishes.
+     */
+    void clear() {
+        int count = 0;
+        for (TopicQueue queue : mQueues.values()) {
+            count += queue.pending.size();
+        }
+
+        mActive.clear();
+        mDeferred.clear();
+        mHasDeferred = false;
+        mWakeupsAvoided = 0;
+        mQueues.clear();
+        MQTTServiceMetrics.onPublishesDropped(count);
+    }
+}
@@ -0,0 +1,116 @@
+package net.igenius.mqttservice;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Outbound publish rate limits and scheduling weights.
+ * <p>
+ * Publish commands are queued per topic inside the service and dispatched weighted
+ * round-robin across topics: each topic sends up to its weight messages before passing
+ * the turn to the next one. Messages wait in their queue while the global limit or the
+ * limit of their topic filter has no tokens left, so a chatty topic can only slow down
+ * itself. For example:
+ * <pre>
+ * MQTTRateLimits.setGlobalLimit(50, 20); // 50 msg/s, bursts of 20
+ * MQTTRateLimits.addTopicRule("telemetry/#", 5, 10, 1);
+ * MQTTRateLimits.addTopicRule("commands/#", 0, 0, 4); // unlimited, 4x weight
+ * </pre>
+ * Throttling and queueing delays are reported by {@link MQTTServiceMetrics}.
+ */
+public class MQTTRateLimits {
+
+    /**
+     * Maximum number of publishes waiting on each topic. Further publishes on the same topic
+     * fail immediately with an exception broadcast.
+     */
+    public static int MAX_QUEUED_PER_TOPIC = 1000;
+
+    static class Rule {
+        final String topicFilter;
+        final MQTTTokenBucket bucket;
+        final int weight;
+
+        Rule(String topicFilter, MQTTTokenBucket bucket, int weight) {
+            this.topicFilter = topicFilter;
+            this.bucket = bucket;
+            this.weight = weight;
+        }
+    }
+
+    private static final CopyOnWriteArrayList<Rule> sRules = new CopyOnWriteArrayList<>();
+    private static volatile MQTTTokenBucket sGlobalBucket = null;
+    private static volatile int sVersion = 0;
+
+    private MQTTRateLimits() { }
+
+    /**
+     * Limits the publishes of all the topics.
+     * @param messagesPerSecond maximum sustained rate
+     * @param burst maximum number of messages which can be published at once after a pause
+     */
+    public static synchronized void setGlobalLimit(double messagesPerSecond, int burst) {
+        sGlobalBucket = new MQTTTokenBucket(messagesPerSecond, burst);
+        sVersion++;
+    }
+
+    /**
+     * Removes the global limit.
+     */
+    public static synchronized void clearGlobalLimit() {
+        sGlobalBucket = null;
+        sVersion++;
+    }
+
+    /**
+     * Adds a rule for the topics matching a filter. The limit is shared by all the matching
+     * topics. If a topic matches more than one filter, the first added rule wins.
+     * @param topicFilter topic filter, which may contain + and # wildcards
+     * @param messagesPerSecond maximum sustained rate, or 0 for no limit
+     * @param burst maximum number of messages which can be published at once after a pause
+     * @param weight number of messages each matching topic can publish in its round-robin turn
+     */
+    public static synchronized void addTopicRule(String topicFilter, double messagesPerSecond, int burst, int weight) {
+        if (topicFilter == null)
+            throw new IllegalArgumentException("topicFilter MUST not be null!");
+
+        if (weight < 1)
+            throw new IllegalArgumentException("weight MUST be at least 1!");
+
+        MqttTopic.validate(topicFilter, true);
+
+        MQTTTokenBucket bucket = messagesPerSecond > 0 ? new MQTTTokenBucket(messagesPerSecond, burst) : null;
+        sRules.add(new Rule(topicFilter, bucket, weight));
+        sVersion++;
+    }
+
+    /**
+     * Removes the global limit and all the topic rules.
+     */
+    public static synchronized void clear() {
+        sRules.clear();
+        sGlobalBucket = null;
+        sVersion++;
+    }
+
+    static MQTTTokenBucket getGlobalBucket() {
+        return sGlobalBucket;
+    }
+
+    static int getVersion() {
+        return sVersion;
+    }
+
+    static Rule getRule(String topic) {
+        if (topic == null)
+            return null;
+
+        for (Rule rule : sRules) {
+            if (MqttTopic.isMatched(rule.topicFilter, topic))
+                return rule;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,218 @@
+package net.igenius.mqttservice;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request/response over MQTT.
+ * <p>
+ * Each request gets a correlation ID and carries the reply topic of this client, on which the
+ * client subscribes only once, in {@link #start()}. Many requests can be in flight at the same
+ * time, each one with its own timeout, and every reply is matched to its request with a single
+ * hash lookup. The other side processes requests with {@link MQTTRpcServer}.
+ * <p>
+ * Messages arriving on the reply topic must be passed to {@link #onMessageArrived(String, byte[])}.
+ * On Android, use {@link MQTTServiceRpc}, which does that for you.
+ */
+public class MQTTRpcClient {
+
+    public static long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    private static ScheduledExecutorService sTimer;
+
+    private static class PendingCall {
+        final MQTTServiceFuture<byte[]> future;
+        volatile ScheduledFuture<?> timeout;
+
+        PendingCall(MQTTServiceFuture<byte[]> future) {
+            this.future = future;
+        }
+    }
+
+    private final MQTTRpcTransport mTransport;
+    private final String mReplyTopic;
+    private final int mQos;
+    private final AtomicLong mNextCorrelationId = new AtomicLong(new Random().nextLong());
+    private final ConcurrentHashMap<Long, PendingCall> mPending = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new RPC client.
+     * @param transport transport to use
+     * @param replyTopic topic on which to receive the replies. It must be unique for this client
+     * @param qos QoS to use for requests, replies and the reply topic subscription
+     */
+    public MQTTRpcClient(MQTTRpcTransport transport, String replyTopic, int qos) {
+        if (transport == null || replyTopic == null || replyTopic.isEmpty())
+            throw new IllegalArgumentException("transport and replyTopic MUST not be null or empty!");
+
+        mTransport = transport;
+        mReplyTopic = replyTopic;
+        mQos = qos;
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MQTTRpcTimeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+
+    public String getReplyTopic() {
+        return mReplyTopic;
+    }
+
+    /**
+     * Subscribes to the reply topic.
+     * @throws Exception if the subscription fails
+     */
+    public void start() throws Exception {
+        mTransport.subscribe(mReplyTopic, mQos);
+    }
+
+    /**
+     * Gets the number of requests waiting for a reply.
+     * @return number of in-flight requests
+     */
+    public int getInFlightCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Sends a request.
+     * @param topic topic on which to send the request
+     * @param body request body
+     * @param timeoutMillis milliseconds after which the request fails with a
+     *                      {@link TimeoutException} if no reply arrives
+     * @param callback callback to invoke when the reply arrives or the request fails, or null
+     * @return pending reply body. If the remote handler fails, it fails with a {@link MQTTRpcException},
+     *         if the request can't be published, it fails with the publish exception
+     */
+    public MQTTServiceFuture<byte[]> call(String topic, byte[] body, long timeoutMillis,
+                                          MQTTServiceCallback<byte[]> callback) {
+        final long correlationId = mNextCorrelationId.incrementAndGet();
+        final String requestId = Long.toHexString(correlationId);
+
+        MQTTServiceFuture<byte[]> future = new MQTTServiceFuture<>(requestId, callback, new Runnable() {
+            @Override
+            public void run() {
+                remove(correlationId);
+            }
+        });
+
+        PendingCall pending = new PendingCall(future);
+        mPending.put(correlationId, pending);
+
+        pending.timeout = getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                PendingCall expired = mPending.remove(correlationId);
+                if (expired != null) {
+                    expired.future.fail(new TimeoutException("No reply to request " + requestId));
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        MQTTServiceCallback<String> onPublished = new MQTTServiceCallback<String>() {
+            @Override
+            public void onSuccess(String publishRequestId, String result) {
+            }
+
+            @Override
+            public void onError(String publishRequestId, Exception exception) {
+                fail(correlationId, exception);
+            }
+        };
+
+        try {
+            mTransport.publish(topic, MQTTRpcMessage.encodeRequest(correlationId, mReplyTopic, body),
+                    mQos, onPublished);
+        } catch (Exception exc) {
+            fail(correlationId, exc);
+        }
+
+        return future;
+    }
+
+    /**
+     * Sends a request with {@link #DEFAULT_TIMEOUT_MILLIS} timeout.
+     * @see #call(String, byte[], long, MQTTServiceCallback)
+     */
+    public MQTTServiceFuture<byte[]> call(String topic, byte[] body, MQTTServiceCallback<byte[]> callback) {
+        return call(topic, body, DEFAULT_TIMEOUT_MILLIS, callback);
+    }
+
+    private PendingCall remove(long correlationId) {
+        PendingCall pending = mPending.remove(correlationId);
+
+        if (pending != null && pending.timeout != null) {
+            pending.timeout.cancel(false);
+        }
+
+        return pending;
+    }
+
+    private void fail(long correlationId, Exception exception) {
+        PendingCall failed = remove(correlationId);
+        if (failed != null) {
+            failed.future.fail(exception);
+        }
+    }
+
+    /**
+     * Processes a message. Pass here all the messages arriving on the reply topic.
+     * @param topic topic on which the message arrived
+     * @param payload message payload
+     * @return true if the message was a reply to one of the requests of this client
+     */
+    public boolean onMessageArrived(String topic, byte[] payload) {
+        if (!mReplyTopic.equals(topic))
+            return false;
+
+        MQTTRpcMessage reply = MQTTRpcMessage.parseReply(payload);
+        if (reply == null)
+            return false;
+
+        PendingCall pending = remove(reply.correlationId);
+        if (pending == null) {
+            MQTTServiceLogger.debug(getClass().getSimpleName(), "Discarding late or unknown reply "
+                    + Long.toHexString(reply.correlationId));
+            return true;
+        }
+
+        if (reply.status == MQTTRpcMessage.STATUS_OK) {
+            pending.future.complete(reply.body);
+        } else {
+            pending.future.fail(new MQTTRpcException(reply.getBodyAsString()));
+        }
+
+        return true;
+    }
+
+    /**
+     * Cancels all the in-flight requests.
+     */
+    public void close() {
+        for (Map.Entry<Long, PendingCall> entry : mPending.entrySet()) {
+            PendingCall pending = remove(entry.getKey());
+            if (pending != null) {
+                pending.future.fail(new CancellationException("RPC client closed"));
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package net.igenius.mqttservice;
+
+/**
+ * Error returned by the remote {@link MQTTRpcHandler} while processing a request.
+ */
+public class MQTTRpcException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public MQTTRpcException(String message) {
+        super(message);
+    }
+}
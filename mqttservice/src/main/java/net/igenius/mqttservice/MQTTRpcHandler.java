@@ -0,0 +1,17 @@
+package net.igenius.mqttservice;
+
+/**
+ * Processes the requests received by a {@link MQTTRpcServer}.
+ */
+public interface MQTTRpcHandler {
+
+    /**
+     * Processes a request.
+     * @param topic topic on which the request arrived
+     * @param body request body
+     * @return reply body
+     * @throws Exception if the request can't be processed. The exception message is sent
+     * back to the caller, which gets a {@link MQTTRpcException}
+     */
+    byte[] onRequest(String topic, byte[] body) throws Exception;
+}
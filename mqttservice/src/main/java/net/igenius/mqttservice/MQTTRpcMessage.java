@@ -0,0 +1,120 @@
+package net.igenius.mqttservice;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * RPC envelope, which carries the correlation data MQTT 3.1.1 doesn't have.
+ * <p>
+ * Request: 0xC1, correlation ID (8), reply topic length (2), reply topic (UTF-8), body.<br>
+ * Reply: 0xC2, correlation ID (8), status (1), body.
+ * <p>
+ * The magic bytes never appear as the first byte of UTF-8 text, so plain payloads are never
+ * mistaken for RPC messages.
+ */
+class MQTTRpcMessage {
+
+    static final int REQUEST_MAGIC = 0xC1;
+    static final int REPLY_MAGIC = 0xC2;
+
+    static final int STATUS_OK = 0;
+    static final int STATUS_ERROR = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    final long correlationId;
+    final String replyTopic;
+    final int status;
+    final byte[] body;
+
+    private MQTTRpcMessage(long correlationId, String replyTopic, int status, byte[] body) {
+        this.correlationId = correlationId;
+        this.replyTopic = replyTopic;
+        this.status = status;
+        this.body = body;
+    }
+
+    private static void writeLong(byte[] dest, int index, long value) {
+        for (int i = 7; i >= 0; i--) {
+            dest[index + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readLong(byte[] source, int index) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (source[index + i] & 0xff);
+        }
+        return value;
+    }
+
+    static byte[] encodeRequest(long correlationId, String replyTopic, byte[] body) {
+        byte[] topic = replyTopic.getBytes(UTF_8);
+        if (topic.length > 0xffff)
+            throw new IllegalArgumentException("reply topic too long");
+
+        int bodyLength = body == null ? 0 : body.length;
+        byte[] payload = new byte[11 + topic.length + bodyLength];
+        payload[0] = (byte) REQUEST_MAGIC;
+        writeLong(payload, 1, correlationId);
+        payload[9] = (byte) (topic.length >>> 8);
+        payload[10] = (byte) topic.length;
+        System.arraycopy(topic, 0, payload, 11, topic.length);
+        if (bodyLength > 0) {
+            System.arraycopy(body, 0, payload, 11 + topic.length, bodyLength);
+        }
+        return payload;
+    }
+
+    static byte[] encodeReply(long correlationId, int status, byte[] body) {
+        int bodyLength = body == null ? 0 : body.length;
+        byte[] payload = new byte[10 + bodyLength];
+        payload[0] = (byte) REPLY_MAGIC;
+        writeLong(payload, 1, correlationId);
+        payload[9] = (byte) status;
+        if (bodyLength > 0) {
+            System.arraycopy(body, 0, payload, 10, bodyLength);
+        }
+        return payload;
+    }
+
+    /**
+     * Parses a request.
+     * @param payload payload
+     * @return request, or null if the payload is not a valid request
+     */
+    static MQTTRpcMessage parseRequest(byte[] payload) {
+        if (payload == null || payload.length < 11 || (payload[0] & 0xff) != REQUEST_MAGIC)
+            return null;
+
+        int topicLength = (payload[9] & 0xff) << 8 | (payload[10] & 0xff);
+        if (topicLength == 0 || 11 + topicLength > payload.length)
+            return null;
+
+        return new MQTTRpcMessage(readLong(payload, 1),
+                new String(payload, 11, topicLength, UTF_8), STATUS_OK,
+                Arrays.copyOfRange(payload, 11 + topicLength, payload.length));
+    }
+
+    /**
+     * Parses a reply.
+     * @param payload payload
+     * @return reply, or null if the payload is not a valid reply
+     */
+    static MQTTRpcMessage parseReply(byte[] payload) {
+        if (payload == null || payload.length < 10 || (payload[0] & 0xff) != REPLY_MAGIC)
+            return null;
+
+        return new MQTTRpcMessage(readLong(payload, 1), null, payload[9] & 0xff,
+                Arrays.copyOfRange(payload, 10, payload.length));
+    }
+
+    String getBodyAsString() {
+        return new String(body, UTF_8);
+    }
+
+    static byte[] toBytes(String string) {
+        return string == null ? new byte[0] : string.getBytes(UTF_8);
+    }
+}
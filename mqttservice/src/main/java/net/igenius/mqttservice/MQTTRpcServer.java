@@ -0,0 +1,70 @@
+package net.igenius.mqttservice;
+
+/**
+ * Processes the requests sent by {@link MQTTRpcClient} and sends back the replies.
+ * Pass to {@link #onMessageArrived(String, byte[])} all the messages arriving on the topics
+ * on which requests are sent.
+ */
+public class MQTTRpcServer {
+
+    private final MQTTRpcTransport mTransport;
+    private final int mQos;
+    private final MQTTRpcHandler mHandler;
+
+    /**
+     * Creates a new RPC server.
+     * @param transport transport to use to send the replies
+     * @param qos QoS to use for the replies
+     * @param handler handler which processes the requests
+     */
+    public MQTTRpcServer(MQTTRpcTransport transport, int qos, MQTTRpcHandler handler) {
+        if (transport == null || handler == null)
+            throw new IllegalArgumentException("transport and handler MUST not be null!");
+
+        mTransport = transport;
+        mQos = qos;
+        mHandler = handler;
+    }
+
+    /**
+     * Processes a message.
+     * @param topic topic on which the message arrived
+     * @param payload message payload
+     * @return true if the message was a request
+     */
+    public boolean onMessageArrived(String topic, byte[] payload) {
+        MQTTRpcMessage request = MQTTRpcMessage.parseRequest(payload);
+        if (request == null)
+            return false;
+
+        byte[] reply;
+        try {
+            reply = MQTTRpcMessage.encodeReply(request.correlationId, MQTTRpcMessage.STATUS_OK,
+                    mHandler.onRequest(topic, request.body));
+        } catch (Exception exc) {
+            reply = MQTTRpcMessage.encodeReply(request.correlationId, MQTTRpcMessage.STATUS_ERROR,
+                    MQTTRpcMessage.toBytes(exc.getMessage() != null ? exc.getMessage() : exc.toString()));
+        }
+
+        final String replyTopic = request.replyTopic;
+        MQTTServiceCallback<String> onPublished = new MQTTServiceCallback<String>() {
+            @Override
+            public void onSuccess(String requestId, String result) {
+            }
+
+            @Override
+            public void onError(String requestId, Exception exception) {
+                MQTTServiceLogger.error(MQTTRpcServer.class.getSimpleName(),
+                        "Can't send reply on " + replyTopic, exception);
+            }
+        };
+
+        try {
+            mTransport.publish(replyTopic, reply, mQos, onPublished);
+        } catch (Exception exc) {
+            onPublished.onError(null, exc);
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,28 @@
+package net.igenius.mqttservice;
+
+/**
+ * Connection used by {@link MQTTRpcClient} and {@link MQTTRpcServer} to exchange messages.
+ * On Android it's provided by {@link MQTTServiceRpc}, which uses the MQTT service.
+ */
+public interface MQTTRpcTransport {
+
+    /**
+     * Publishes a payload on a topic.
+     * @param topic topic on which to publish
+     * @param payload payload to publish
+     * @param qos QoS to use (0, 1 or 2)
+     * @param callback callback to invoke when the payload has been published or the publish
+     *                 failed, or null
+     * @throws Exception if the payload can't be published
+     */
+    void publish(String topic, byte[] payload, int qos, MQTTServiceCallback<String> callback)
+            throws Exception;
+
+    /**
+     * Subscribes to a topic filter.
+     * @param topicFilter topic filter
+     * @param qos QoS to use (0, 1 or 2)
+     * @throws Exception if the subscription fails
+     */
+    void subscribe(String topicFilter, int qos) throws Exception;
+}
@@ -0,0 +1,45 @@
+package net.igenius.mqttservice;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor which runs tasks one at a time, in submission order, on top of another executor,
+ * even if the underlying executor uses many threads.
+ */
+class MQTTSerialExecutor implements Executor {
+
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private final Executor mExecutor;
+    private Runnable mActive;
+
+    MQTTSerialExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    @Override
+    public synchronized void execute(final Runnable task) {
+        mTasks.offer(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    scheduleNext();
+                }
+            }
+        });
+
+        if (mActive == null) {
+            scheduleNext();
+        }
+    }
+
+    private synchronized void scheduleNext() {
+        mActive = mTasks.poll();
+
+        if (mActive != null) {
+            mExecutor.execute(mActive);
+        }
+    }
+}
@@ -8,8 +8,11 @@ import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -31,6 +34,7 @@ import static net.igenius.mqttservice.MQTTServiceCommand.BROADCAST_PUBLISH_SUCCE
 import static net.igenius.mqttservice.MQTTServiceCommand.BROADCAST_SUBSCRIPTION_ERROR;
 import static net.igenius.mqttservice.MQTTServiceCommand.BROADCAST_SUBSCRIPTION_SUCCESS;
 import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_AUTO_RESUBSCRIBE_ON_RECONNECT;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_AWAITED;
 import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_BROADCAST_TYPE;
 import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_BROKER_URL;
 import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_CLIENT_ID;
@@ -41,6 +45,7 @@ import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_PAYLOAD;
 import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_QOS;
 import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_REQUEST_ID;
 import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_TOPIC;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_TOPIC_ID;
 import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_TOPICS;
 import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_USERNAME;
 import static net.igenius.mqttservice.MQTTServiceCommand.getBroadcastAction;
@@ -51,11 +56,60 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
     public static int KEEP_ALIVE_INTERVAL = 60; //measured in seconds
     public static int CONNECT_TIMEOUT = 30; //measured in seconds
 
+    /**
+     * If true, the last connection parameters and auto resubscribe topics are stored in the app
+     * private files, and the service connects and resubscribes as soon as it's created, also
+     * after being restarted by the system. The profile is deleted on disconnect. Since the
+     * password is stored in plain text, enable this only if that's acceptable for your app.
+     */
+    public static boolean PERSIST_CONNECTION_PROFILE = false;
+
+    /**
+     * Minimum and maximum delay between the attempts to restore the persisted connection, while
+     * the broker can't be reached. Paho reconnects automatically only after the first successful
+     * connection, so until then the service retries with an exponential backoff.
+     */
+    public static long RESTORE_MIN_DELAY_MILLIS = 5000;
+    public static long RESTORE_MAX_DELAY_MILLIS = 5 * 60 * 1000;
+
     private BlockingQueue<Intent> mIntents = new LinkedBlockingQueue<>();
     private MqttClient mClient;
     private boolean mShutdown = false;
-    private String mConnectionRequestId = null;
+    private volatile String mConnectionRequestId = null;
     private HashMap<String, Integer> mTopicsToAutoResubscribe = new LinkedHashMap<>();
+    private MQTTConnectionProfile mProfile = null;
+    private long mRestoreDelayMillis;
+    private final MQTTSubscriptionOptimizer mOptimizer = new MQTTSubscriptionOptimizer();
+
+    private final Runnable mUpdateSubscriptions = new Runnable() {
+        @Override
+        public void run() {
+            if (!clientIsConnected())
+                return;
+
+            try {
+                updateSubscriptions(UUID.randomUUID().toString());
+            } catch (Exception exc) {
+                MQTTServiceLogger.error(getClass().getSimpleName(), "Error while updating subscriptions", exc);
+            }
+        }
+    };
+
+    private final MQTTPublishScheduler mPublishScheduler = new MQTTPublishScheduler(
+            new MQTTPublishScheduler.Dispatcher() {
+                @Override
+                public void dispatch(Intent intent) {
+                    onPublish(getParameter(intent, PARAM_REQUEST_ID), getParameter(intent, PARAM_TOPIC),
+                            intent.getByteArrayExtra(PARAM_PAYLOAD), getInt(getParameter(intent, PARAM_QOS)));
+                }
+            });
+
+    private final Runnable mDispatchPublishes = new Runnable() {
+        @Override
+        public void run() {
+            dispatchPublishes();
+        }
+    };
 
     private String getParameter(Intent intent, String key) {
         return intent.getStringExtra(key);
@@ -80,14 +134,15 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
         sendBroadcast(intent);
     }
 
-    private void broadcastPayload(String type, String requestId, byte[] payload, String topic) {
+    private void broadcastPayload(String type, String requestId, byte[] payload, MQTTInternedTopic topic) {
         Intent intent = new Intent();
 
         intent.setAction(getBroadcastAction());
         intent.putExtra(PARAM_BROADCAST_TYPE, type);
         intent.putExtra(PARAM_REQUEST_ID, requestId);
         intent.putExtra(PARAM_PAYLOAD, payload);
-        intent.putExtra(PARAM_TOPIC, topic);
+        intent.putExtra(PARAM_TOPIC, topic.getName());
+        intent.putExtra(PARAM_TOPIC_ID, topic.getId());
 
         sendBroadcast(intent);
     }
@@ -120,6 +175,161 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
         sendBroadcast(intent);
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        MQTTServiceMetrics.onServiceCreated();
+
+        if (PERSIST_CONNECTION_PROFILE) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    restoreProfile();
+                }
+            });
+        }
+    }
+
+    private final Runnable mRestoreConnection = new Runnable() {
+        @Override
+        public void run() {
+            restoreConnection();
+        }
+    };
+
+    private void restoreProfile() {
+        if (mClient != null || mProfile != null)
+            return;
+
+        MQTTConnectionProfile profile = MQTTConnectionProfile.load(this);
+        if (profile == null)
+            return;
+
+        // the topics of the profile are resubscribed by onConnect
+        mProfile = profile;
+        mRestoreDelayMillis = RESTORE_MIN_DELAY_MILLIS;
+        restoreConnection();
+    }
+
+    private void restoreConnection() {
+        MQTTConnectionProfile profile = mProfile;
+
+        // disconnected or connected by the app in the meantime
+        if (profile == null || mClient != null)
+            return;
+
+        MQTTServiceLogger.debug(getClass().getSimpleName(), "Restoring connection to " + profile.brokerUrl);
+
+        if (!onConnect(UUID.randomUUID().toString(), profile.brokerUrl, profile.clientId,
+                profile.username, profile.password)) {
+            MQTTServiceLogger.debug(getClass().getSimpleName(), "Can't restore connection, retrying in "
+                    + mRestoreDelayMillis + "ms");
+            postDelayed(mRestoreConnection, mRestoreDelayMillis);
+            mRestoreDelayMillis = Math.min(mRestoreDelayMillis * 2, RESTORE_MAX_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Subscribes again to a set of topics with a single request, instead of one round trip
+     * each, and notifies the result for each topic.
+     * @return true if the topics have been subscribed
+     */
+    private boolean resubscribe(String requestId, Map<String, Integer> topics) {
+        if (topics.isEmpty())
+            return true;
+
+        try {
+            if (MQTTSubscriptionOptimizer.ENABLED) {
+                mOptimizer.reset(topics);
+                updateSubscriptions(requestId);
+            } else {
+                subscribeOnBroker(requestId, topics);
+            }
+
+        } catch (Exception exc) {
+            MQTTServiceLogger.error(getClass().getSimpleName(), "Error while resubscribing to topics", exc);
+
+            for (String topic : topics.keySet()) {
+                broadcastException(BROADCAST_SUBSCRIPTION_ERROR, requestId, new MqttException(exc),
+                        PARAM_TOPIC, topic);
+            }
+            return false;
+        }
+
+        for (String topic : topics.keySet()) {
+            broadcast(BROADCAST_SUBSCRIPTION_SUCCESS, requestId, PARAM_TOPIC, topic);
+        }
+        return true;
+    }
+
+    private void subscribeOnBroker(String requestId, Map<String, Integer> topics) throws MqttException {
+        String[] topicFilters = new String[topics.size()];
+        int[] qos = new int[topicFilters.length];
+        int index = 0;
+
+        for (Map.Entry<String, Integer> entry : topics.entrySet()) {
+            topicFilters[index] = entry.getKey();
+            qos[index++] = entry.getValue();
+        }
+
+        mClient.subscribe(topicFilters, qos);
+
+        for (int i = 0; i < topicFilters.length; i++) {
+            MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_SUBSCRIBE, qos[i], 0, topicFilters[i], 0, requestId);
+        }
+    }
+
+    /**
+     * Brings the broker subscriptions in line with the ones computed by the optimizer.
+     * New subscriptions are made before removing the old ones, so no message is lost.
+     */
+    private void updateSubscriptions(String requestId) throws MqttException {
+        Map<String, Integer> target = mOptimizer.compute();
+        Map<String, Integer> current = mOptimizer.getSubscribed();
+        LinkedHashMap<String, Integer> toSubscribe = mOptimizer.startUpdate(target);
+
+        if (!toSubscribe.isEmpty()) {
+            try {
+                subscribeOnBroker(requestId, toSubscribe);
+            } catch (MqttException exc) {
+                mOptimizer.setSubscribed(current);
+                throw exc;
+            }
+        }
+
+        LinkedHashMap<String, Integer> subscribed = new LinkedHashMap<>(target);
+        ArrayList<String> toUnsubscribe = new ArrayList<>();
+        for (String topicFilter : current.keySet()) {
+            if (!target.containsKey(topicFilter)) {
+                toUnsubscribe.add(topicFilter);
+            }
+        }
+
+        if (!toUnsubscribe.isEmpty()) {
+            try {
+                mClient.unsubscribe(toUnsubscribe.toArray(new String[toUnsubscribe.size()]));
+            } catch (Exception exc) {
+                MQTTServiceLogger.error(getClass().getSimpleName(), "Can't unsubscribe from " + toUnsubscribe, exc);
+                // still subscribed, keep filtering their messages
+                for (String topicFilter : toUnsubscribe) {
+                    subscribed.put(topicFilter, current.get(topicFilter));
+                }
+            }
+        }
+
+        mOptimizer.setSubscribed(subscribed);
+        MQTTServiceLogger.debug(getClass().getSimpleName(), "Broker subscriptions: " + subscribed.keySet());
+    }
+
+    private void saveProfile() {
+        if (!PERSIST_CONNECTION_PROFILE || mProfile == null)
+            return;
+
+        mProfile.topics.clear();
+        mProfile.topics.putAll(mTopicsToAutoResubscribe);
+        mProfile.save(this);
+    }
+
     @Override
     public int onStartCommand(final Intent intent, int flags, int startId) {
 
@@ -151,6 +361,9 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
             String requestId = getParameter(intent, PARAM_REQUEST_ID);
 
             if (ACTION_CONNECT.equals(action) || ACTION_CONNECT_AND_SUBSCRIBE.equals(action)) {
+                // the app takes over the retries of the restored connection
+                removeCallbacks(mRestoreConnection);
+
                 boolean connected = onConnect(requestId, getParameter(intent, PARAM_BROKER_URL),
                         getParameter(intent, PARAM_CLIENT_ID), getParameter(intent, PARAM_USERNAME),
                         getParameter(intent, PARAM_PASSWORD));
@@ -164,6 +377,8 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
 
             } else if (ACTION_DISCONNECT.equals(action)) {
                 onDisconnect(requestId);
+                mProfile = null;
+                MQTTConnectionProfile.clear(this);
 
             } else if (ACTION_SUBSCRIBE.equals(action)) {
                 onSubscribe(requestId, getInt(getParameter(intent, PARAM_QOS)),
@@ -171,7 +386,16 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
                         intent.getStringArrayExtra(PARAM_TOPICS));
 
             } else if (ACTION_PUBLISH.equals(action)) {
-                onPublish(requestId, getParameter(intent, PARAM_TOPIC), intent.getByteArrayExtra(PARAM_PAYLOAD));
+                String topic = getParameter(intent, PARAM_TOPIC);
+
+                boolean awaited = Boolean.parseBoolean(getParameter(intent, PARAM_AWAITED));
+
+                if (mPublishScheduler.enqueue(topic, intent, awaited)) {
+                    dispatchPublishes();
+                } else {
+                    broadcastException(BROADCAST_EXCEPTION, requestId,
+                            new Exception("Too many pending publishes on topic: " + topic));
+                }
 
             } else if (ACTION_CHECK_CONNECTION.equals(action)) {
                 broadcastConnectionStatus(requestId);
@@ -181,6 +405,21 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
         }
     }
 
+    private void onRadioActivity() {
+        if (mPublishScheduler.onRadioActivity()) {
+            post(mDispatchPublishes);
+        }
+    }
+
+    private void dispatchPublishes() {
+        removeCallbacks(mDispatchPublishes);
+        long delay = mPublishScheduler.dispatch();
+
+        if (delay >= 0) {
+            postDelayed(mDispatchPublishes, delay);
+        }
+    }
+
     private int getInt(String string) {
         try {
             return Integer.parseInt(string, 10);
@@ -200,12 +439,26 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
                 + brokerUrl + " with user: " + username + " and password: " + password);
 
         mConnectionRequestId = requestId;
+        MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_CONNECT, 0, 0, null, 0, requestId);
 
         try {
+            if (mClient != null && mProfile != null
+                    && !mProfile.hasParameters(brokerUrl, clientId, username, password)) {
+                MQTTServiceLogger.debug("onConnect", "Connection parameters changed, closing current connection");
+                closeClient(requestId);
+            }
+
             if (mClient == null) {
                 MQTTServiceLogger.debug("onConnect", "Creating new MQTT connection");
 
+                // a restored profile keeps its topics, to subscribe them again once connected
+                if (mProfile == null || !mProfile.hasParameters(brokerUrl, clientId, username, password)) {
+                    mProfile = new MQTTConnectionProfile(brokerUrl, clientId, username, password);
+                }
+
                 mTopicsToAutoResubscribe.clear();
+                mTopicsToAutoResubscribe.putAll(mProfile.topics);
+                mOptimizer.clear();
                 mClient = new MqttClient(brokerUrl, clientId, new MemoryPersistence());
                 mClient.setCallback(this);
 
@@ -219,8 +472,32 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
                 connectOptions.setKeepAliveInterval(KEEP_ALIVE_INTERVAL);
                 connectOptions.setConnectionTimeout(CONNECT_TIMEOUT);
 
-                mClient.connect(connectOptions);
+                if (brokerUrl != null && brokerUrl.startsWith("ssl://")) {
+                    String host = URI.create(brokerUrl).getHost();
+                    connectOptions.setSocketFactory(MQTTTlsConfig.getSocketFactory(host));
+                }
+
+                try {
+                    mClient.connect(connectOptions);
+                } catch (Exception exc) {
+                    // automatic reconnect starts only after the first connection, so a client
+                    // which never connected is useless
+                    mClient = null;
+                    throw exc;
+                }
+
                 MQTTServiceLogger.debug("onConnect", "Connected");
+                saveProfile();
+
+                if (!mTopicsToAutoResubscribe.isEmpty()) {
+                    resubscribe(requestId, new LinkedHashMap<>(mTopicsToAutoResubscribe));
+                }
+
+            } else if (mClient.isConnected()) {
+                MQTTServiceLogger.debug("onConnect", "Client already connected, nothing to do");
+                mConnectionRequestId = null;
+                broadcastConnectionStatus(requestId);
+                broadcast(BROADCAST_CONNECTION_SUCCESS, requestId);
 
             } else {
                 reconnect(requestId);
@@ -229,6 +506,9 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
             return true;
 
         } catch (Exception exc) {
+            mConnectionRequestId = null;
+            MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_CONNECT_FAILED, 0, getReasonCode(exc),
+                    null, 0, requestId);
             broadcastException(BROADCAST_EXCEPTION, requestId, new MqttException(exc));
             return false;
         }
@@ -252,14 +532,31 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
     }
 
     private void onDisconnect(final String requestId) {
-        if (!clientIsConnected()) {
+        removeCallbacks(mRestoreConnection);
+
+        if (mClient == null) {
             MQTTServiceLogger.info("onDisconnect", "No client connected, nothing to disconnect!");
             return;
         }
 
+        closeClient(requestId);
+        mShutdown = true;
+    }
+
+    /**
+     * Disconnects the client, or stops its automatic reconnection if it's not connected.
+     */
+    private void closeClient(final String requestId) {
+        MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_DISCONNECT, 0, 0, null, 0, requestId);
+
         try {
-            MQTTServiceLogger.debug("onDisconnect", "Disconnecting MQTT");
-            mClient.disconnect();
+            if (mClient.isConnected()) {
+                MQTTServiceLogger.debug("onDisconnect", "Disconnecting MQTT");
+                mClient.disconnect();
+            } else {
+                MQTTServiceLogger.debug("onDisconnect", "Stopping MQTT reconnection");
+                mClient.disconnectForcibly();
+            }
 
         } catch (Exception e) {
             MQTTServiceLogger.error("onDisconnect",
@@ -274,7 +571,7 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
         } finally {
             mClient = null;
             mTopicsToAutoResubscribe.clear();
-            mShutdown = true;
+            mOptimizer.clear();
         }
     }
 
@@ -299,13 +596,22 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
             return;
         }
 
+        if (MQTTSubscriptionOptimizer.ENABLED) {
+            onOptimizedSubscribe(requestId, qos, autoResubscribeOnConnect, topics);
+            return;
+        }
+
         for (String topic : topics) {
             try {
                 MQTTServiceLogger.debug("onSubscribe", "Subscribing to topic: " + topic + " with QoS " + qos);
                 mClient.subscribe(topic, qos);
+                MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_SUBSCRIBE, qos, 0, topic, 0, requestId);
 
                 if (autoResubscribeOnConnect) {
-                    mTopicsToAutoResubscribe.put(topic, qos);
+                    Integer previousQos = mTopicsToAutoResubscribe.put(topic, qos);
+                    if (previousQos == null || previousQos != qos) {
+                        saveProfile();
+                    }
                 }
 
                 MQTTServiceLogger.debug("onSubscribe", "Successfully subscribed to topic: " + topic);
@@ -314,6 +620,8 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
                         PARAM_TOPIC, topic
                 );
             } catch (Exception e) {
+                MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_SUBSCRIBE_FAILED, qos, getReasonCode(e),
+                        topic, 0, requestId);
                 broadcastException(BROADCAST_SUBSCRIPTION_ERROR, requestId, new MqttException(e),
                         PARAM_TOPIC, topic
                 );
@@ -321,7 +629,49 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
         }
     }
 
-    private void onPublish(final String requestId, final String topic, final byte[] payload) {
+    private void onOptimizedSubscribe(final String requestId, final int qos,
+                                      final boolean autoResubscribeOnConnect,
+                                      final String... topics) {
+        ArrayList<String> valid = new ArrayList<>();
+
+        for (String topic : topics) {
+            try {
+                MqttTopic.validate(topic, true);
+                mOptimizer.add(topic, qos);
+                valid.add(topic);
+            } catch (Exception exc) {
+                broadcastException(BROADCAST_SUBSCRIPTION_ERROR, requestId, new MqttException(exc),
+                        PARAM_TOPIC, topic);
+            }
+        }
+
+        try {
+            updateSubscriptions(requestId);
+
+        } catch (Exception exc) {
+            for (String topic : valid) {
+                mOptimizer.remove(topic);
+                MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_SUBSCRIBE_FAILED, qos, getReasonCode(exc),
+                        topic, 0, requestId);
+                broadcastException(BROADCAST_SUBSCRIPTION_ERROR, requestId, new MqttException(exc),
+                        PARAM_TOPIC, topic);
+            }
+            return;
+        }
+
+        for (String topic : valid) {
+            if (autoResubscribeOnConnect) {
+                Integer previousQos = mTopicsToAutoResubscribe.put(topic, qos);
+                if (previousQos == null || previousQos != qos) {
+                    saveProfile();
+                }
+            }
+
+            broadcast(BROADCAST_SUBSCRIPTION_SUCCESS, requestId, PARAM_TOPIC, topic);
+        }
+    }
+
+    private void onPublish(final String requestId, final String topic, final byte[] payload, final int qos) {
         if (!clientIsConnected()) {
             broadcastException(BROADCAST_EXCEPTION, requestId,
                                new Exception("Can't publish to topic: " + topic + ", client not connected!"));
@@ -330,9 +680,11 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
 
         try {
             MQTTServiceLogger.debug("onPublish", "Publishing to topic: " + topic + ", payload with size " + payload.length);
-            MqttMessage message = new MqttMessage(payload);
-            message.setQos(0);
+            MqttMessage message = new MqttMessage(MQTTPayloadCodecs.encode(topic, payload));
+            message.setQos(qos);
             mClient.publish(topic, message);
+            MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_PUBLISH, 0, 0, topic,
+                    message.getPayload().length, requestId);
             MQTTServiceLogger.debug("onPublish", "Successfully published to topic: " + topic + ", payload: " + payload);
 
             broadcast(BROADCAST_PUBLISH_SUCCESS, requestId,
@@ -340,39 +692,89 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
             );
 
         } catch (Exception exc) {
+            MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_PUBLISH_FAILED, 0, getReasonCode(exc),
+                    topic, payload.length, requestId);
             broadcastException(BROADCAST_EXCEPTION, requestId, new MqttException(exc));
         }
     }
 
+    private int getReasonCode(Throwable exc) {
+        return exc instanceof MqttException ? ((MqttException) exc).getReasonCode() : 0;
+    }
+
     @Override
     public void connectionLost(Throwable cause) {
+        MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_CONNECTION_LOST, 0, getReasonCode(cause), null, 0, null);
         broadcastConnectionStatus(UUID.randomUUID().toString());
         broadcastException(BROADCAST_EXCEPTION, UUID.randomUUID().toString(), new Exception(cause));
     }
 
     @Override
-    public void messageArrived(String topic, MqttMessage message) throws Exception {
-        broadcastPayload(BROADCAST_MESSAGE_ARRIVED, UUID.randomUUID().toString(),
-                message.getPayload(), topic);
+    public void messageArrived(String topicName, MqttMessage message) throws Exception {
+        // Paho creates a new string for each message, use the shared instance from now on
+        MQTTInternedTopic topic = MQTTTopicCache.intern(topicName);
+
+        MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_MESSAGE_ARRIVED, message.getQos(), 0,
+                topic.getName(), message.getPayload().length, null);
+        onRadioActivity();
+
+        if (MQTTSubscriptionOptimizer.ENABLED) {
+            boolean accepted = mOptimizer.accept(topic, message.isRetained());
+
+            if (mOptimizer.needsUpdate()) {
+                removeCallbacks(mUpdateSubscriptions);
+                post(mUpdateSubscriptions);
+            }
+
+            if (!accepted) {
+                // arrived through a wildcard subscription but not requested by the app, or
+                // retained and already delivered
+                MQTTServiceMetrics.onMessageFiltered();
+                return;
+            }
+        }
+
+        MQTTServiceMetrics.onMessageArrived(topic);
+
+        byte[] payload;
+        try {
+            payload = MQTTPayloadCodecs.decode(topic, message.getPayload());
+        } catch (Exception exc) {
+            MQTTServiceLogger.error("messageArrived", "Can't decode payload arrived on topic: "
+                    + topic + ", delivering it as it is", exc);
+            payload = message.getPayload();
+        }
+
+        if (!MQTTInboundStore.hasConsumer(topic)) {
+            MQTTInboundStore.append(this, topic, payload);
+        }
+
+        broadcastPayload(BROADCAST_MESSAGE_ARRIVED, UUID.randomUUID().toString(), payload, topic);
     }
 
     @Override
     public void deliveryComplete(IMqttDeliveryToken token) {
-        //TODO: check what this does
+        MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_DELIVERY_COMPLETE, 0, token.getMessageId(),
+                null, 0, null);
+        onRadioActivity();
     }
 
     @Override
     public void connectComplete(boolean reconnect, String serverURI) {
-        String requestId = reconnect ? UUID.randomUUID().toString() : mConnectionRequestId;
+        // report the completion to the pending connect request, if any
+        String requestId = mConnectionRequestId != null ? mConnectionRequestId : UUID.randomUUID().toString();
+        mConnectionRequestId = null;
+        MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_CONNECT_COMPLETE, reconnect ? 1 : 0, 0,
+                null, 0, requestId);
+        onRadioActivity();
+        MQTTServiceMetrics.onConnected();
 
         if (reconnect) {
             MQTTServiceLogger.debug("reconnect", "Reconnected to " + serverURI);
 
             if (!mTopicsToAutoResubscribe.isEmpty()) {
                 MQTTServiceLogger.debug("reconnect", "auto resubscribing to topics");
-                for (Map.Entry<String, Integer> entry : mTopicsToAutoResubscribe.entrySet()) {
-                    onSubscribe(requestId, entry.getValue(), true, entry.getKey());
-                }
+                resubscribe(requestId, new LinkedHashMap<>(mTopicsToAutoResubscribe));
             }
         }
 
@@ -384,6 +786,12 @@ public class MQTTService extends BackgroundService implements Runnable, MqttCall
     public void onDestroy() {
         // Disconnect the connection when the service gets destroyed
         onDisconnect("MQTTService@onDestroy");
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mPublishScheduler.clear();
+            }
+        });
         super.onDestroy();
     }
 }
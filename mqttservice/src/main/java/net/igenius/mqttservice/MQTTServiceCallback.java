@@ -0,0 +1,25 @@
+package net.igenius.mqttservice;
+
+/**
+ * Callback invoked when a request made with {@link MQTTServiceRequests} completes.
+ * Callbacks are invoked on a library managed background thread.
+ * @param <T> type of the request result
+ */
+public interface MQTTServiceCallback<T> {
+
+    /**
+     * Called when the request completes successfully.
+     * @param requestId request ID
+     * @param result request result
+     */
+    void onSuccess(String requestId, T result);
+
+    /**
+     * Called when the request fails, times out or gets cancelled.
+     * @param requestId request ID
+     * @param exception error. It's a {@link java.util.concurrent.TimeoutException} if the
+     *                  request timed out, or a {@link java.util.concurrent.CancellationException}
+     *                  if it has been cancelled
+     */
+    void onError(String requestId, Exception exception);
+}
@@ -28,6 +28,7 @@ public class MQTTServiceCommand {
     public static final String PARAM_PASSWORD = "password";
     public static final String PARAM_TOPIC = "topic";
     public static final String PARAM_TOPICS = "topics";
+    public static final String PARAM_TOPIC_ID = "topicId";
     public static final String PARAM_PAYLOAD = "payload";
     public static final String PARAM_CONNECTED = "connected";
     public static final String PARAM_QOS = "qos";
@@ -35,6 +36,7 @@ public class MQTTServiceCommand {
     public static final String PARAM_BROADCAST_TYPE = "broadcastType";
     public static final String PARAM_EXCEPTION = "exception";
     public static final String PARAM_AUTO_RESUBSCRIBE_ON_RECONNECT = "autoResubscribeOnReconnect";
+    static final String PARAM_AWAITED = "awaited";
 
     public static final String BROADCAST_EXCEPTION = "exception";
     public static final String BROADCAST_CONNECTION_SUCCESS = "connectionSuccess";
@@ -56,7 +58,13 @@ public class MQTTServiceCommand {
     public static String connect(final Context context, final String brokerUrl,
                                  final String clientId, final String username,
                                  final String password) {
-        return startService(context, ACTION_CONNECT, null,
+        return connect(context, newRequestId(), brokerUrl, clientId, username, password);
+    }
+
+    static String connect(final Context context, final String requestId, final String brokerUrl,
+                          final String clientId, final String username,
+                          final String password) {
+        return startService(context, ACTION_CONNECT, requestId, null,
                 PARAM_BROKER_URL, brokerUrl,
                 PARAM_CLIENT_ID, clientId,
                 PARAM_USERNAME, username,
@@ -70,11 +78,11 @@ public class MQTTServiceCommand {
      * @return request Id, to be used in receiver to track events associated to this request
      */
     public static String disconnect(final Context context) {
-        return startService(context, ACTION_DISCONNECT, null);
+        return startService(context, ACTION_DISCONNECT, newRequestId(), null);
     }
 
     public static String checkConnectionStatus(final Context context) {
-        return startService(context, ACTION_CHECK_CONNECTION, null);
+        return startService(context, ACTION_CHECK_CONNECTION, newRequestId(), null);
     }
 
     /**
@@ -90,19 +98,23 @@ public class MQTTServiceCommand {
     public static String subscribe(final Context context, final int qos,
                                    final boolean autoResubscribeOnReconnect,
                                    final String... topics) {
+        return subscribe(context, newRequestId(), qos, autoResubscribeOnReconnect, topics);
+    }
+
+    static String subscribe(final Context context, final String requestId, final int qos,
+                            final boolean autoResubscribeOnReconnect,
+                            final String... topics) {
         Intent intent = new Intent(context, MQTTService.class);
         intent.setAction(ACTION_SUBSCRIBE);
 
         intent.putExtra(PARAM_QOS, Integer.toString(qos));
         intent.putExtra(PARAM_AUTO_RESUBSCRIBE_ON_RECONNECT, autoResubscribeOnReconnect);
         intent.putExtra(PARAM_TOPICS, topics);
-
-        String uuid = UUID.randomUUID().toString();
-        intent.putExtra(PARAM_REQUEST_ID, ACTION_SUBSCRIBE + "/" + uuid);
+        intent.putExtra(PARAM_REQUEST_ID, requestId);
 
         context.startService(intent);
 
-        return uuid;
+        return requestId;
     }
 
     /**
@@ -151,12 +163,12 @@ public class MQTTServiceCommand {
         intent.putExtra(PARAM_AUTO_RESUBSCRIBE_ON_RECONNECT, autoResubscribeOnReconnect);
         intent.putExtra(PARAM_TOPICS, topics);
 
-        String uuid = UUID.randomUUID().toString();
-        intent.putExtra(PARAM_REQUEST_ID, ACTION_CONNECT_AND_SUBSCRIBE + "/" + uuid);
+        String requestId = newRequestId();
+        intent.putExtra(PARAM_REQUEST_ID, requestId);
 
         context.startService(intent);
 
-        return uuid;
+        return requestId;
     }
 
     /**
@@ -169,9 +181,25 @@ public class MQTTServiceCommand {
      */
     public static String publish(final Context context, final String topic, final byte[] payload,
                                  final int qos) {
-        return startService(context, ACTION_PUBLISH, payload,
+        return publish(context, newRequestId(), topic, payload, qos);
+    }
+
+    static String publish(final Context context, final String requestId, final String topic,
+                          final byte[] payload, final int qos) {
+        return publish(context, requestId, topic, payload, qos, false);
+    }
+
+    /**
+     * Publish some content on a topic.
+     * @param awaited true if the caller waits for the publish with a timeout, so it must not be
+     *                deferred by {@link MQTTDeferredPublishing}
+     */
+    static String publish(final Context context, final String requestId, final String topic,
+                          final byte[] payload, final int qos, final boolean awaited) {
+        return startService(context, ACTION_PUBLISH, requestId, payload,
                 PARAM_TOPIC, topic,
-                PARAM_QOS, Integer.toString(qos)
+                PARAM_QOS, Integer.toString(qos),
+                PARAM_AWAITED, Boolean.toString(awaited)
         );
     }
 
@@ -186,12 +214,41 @@ public class MQTTServiceCommand {
         return publish(context, topic, payload, 0);
     }
 
+    /**
+     * Publish an object on a topic, encoded as JSON with {@link MQTTJson}.
+     * @param context application context
+     * @param topic topic on which to publish
+     * @param object object to publish
+     * @param qos QoS to use (0, 1 or 2)
+     * @return request Id, to be used in receiver to track events associated to this request
+     */
+    public static String publishObject(final Context context, final String topic, final Object object,
+                                       final int qos) {
+        return publish(context, topic, MQTTJson.encode(object), qos);
+    }
+
+    /**
+     * Publish an object on a topic with QoS 0, encoded as JSON with {@link MQTTJson}.
+     * @param context application context
+     * @param topic topic on which to publish
+     * @param object object to publish
+     * @return request Id, to be used in receiver to track events associated to this request
+     */
+    public static String publishObject(final Context context, final String topic, final Object object) {
+        return publishObject(context, topic, object, 0);
+    }
+
     public static String getBroadcastAction() {
         return NAMESPACE + BROADCAST_ACTION_SUFFIX;
     }
 
+    static String newRequestId() {
+        return UUID.randomUUID().toString();
+    }
+
     private static String startService(final Context context,
                                        final String action,
+                                       final String requestId,
                                        final byte[] payload,
                                        String... params) {
         if (params != null && params.length > 0 && params.length % 2 != 0)
@@ -206,8 +263,7 @@ public class MQTTServiceCommand {
             }
         }
 
-        String uuid = UUID.randomUUID().toString();
-        intent.putExtra(PARAM_REQUEST_ID, action + "/" + uuid);
+        intent.putExtra(PARAM_REQUEST_ID, requestId);
 
         if (payload != null) {
             intent.putExtra(PARAM_PAYLOAD, payload);
@@ -215,6 +271,6 @@ public class MQTTServiceCommand {
 
         context.startService(intent);
 
-        return uuid;
+        return requestId;
     }
 }
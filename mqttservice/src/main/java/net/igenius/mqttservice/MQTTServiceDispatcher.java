@@ -0,0 +1,38 @@
+package net.igenius.mqttservice;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+/**
+ * Library managed background thread, on which broadcasts can be received and processed
+ * without blocking the main thread.
+ */
+class MQTTServiceDispatcher {
+
+    private static Handler sHandler;
+    private static Handler sMainHandler;
+
+    private MQTTServiceDispatcher() { }
+
+    /**
+     * Gets the handler of the dispatcher thread, starting it on first use.
+     * @return dispatcher thread handler
+     */
+    static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("MQTTServiceDispatcher",
+                    android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
+    static synchronized Handler getMainHandler() {
+        if (sMainHandler == null) {
+            sMainHandler = new Handler(Looper.getMainLooper());
+        }
+        return sMainHandler;
+    }
+}
@@ -0,0 +1,139 @@
+package net.igenius.mqttservice;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pending result of a request made with {@link MQTTServiceRequests} or {@link MQTTRpcClient}.
+ * Never call {@link #get()} on the main thread.
+ * @param <T> type of the request result
+ */
+public class MQTTServiceFuture<T> implements Future<T> {
+
+    private final String mRequestId;
+    private final Runnable mOnCancel;
+    private MQTTServiceCallback<T> mCallback;
+    private boolean mDone = false;
+    private T mResult;
+    private Exception mException;
+
+    /**
+     * Creates a new pending result.
+     * @param requestId request ID
+     * @param callback callback to invoke on completion, or null
+     * @param onCancel invoked when the request gets cancelled, to remove it from its in-flight table
+     */
+    MQTTServiceFuture(String requestId, MQTTServiceCallback<T> callback, Runnable onCancel) {
+        mRequestId = requestId;
+        mCallback = callback;
+        mOnCancel = onCancel;
+    }
+
+    /**
+     * Gets the request ID, which is the same one received by {@link MQTTServiceReceiver}.
+     * @return request ID
+     */
+    public String getRequestId() {
+        return mRequestId;
+    }
+
+    boolean complete(T result) {
+        MQTTServiceCallback<T> callback;
+
+        synchronized (this) {
+            if (mDone)
+                return false;
+
+            mDone = true;
+            mResult = result;
+            callback = mCallback;
+            mCallback = null;
+            notifyAll();
+        }
+
+        if (callback != null) {
+            callback.onSuccess(mRequestId, result);
+        }
+
+        return true;
+    }
+
+    boolean fail(Exception exception) {
+        MQTTServiceCallback<T> callback;
+
+        synchronized (this) {
+            if (mDone)
+                return false;
+
+            mDone = true;
+            mException = exception;
+            callback = mCallback;
+            mCallback = null;
+            notifyAll();
+        }
+
+        if (callback != null) {
+            callback.onError(mRequestId, exception);
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!fail(new CancellationException("Request " + mRequestId + " cancelled")))
+            return false;
+
+        if (mOnCancel != null) {
+            mOnCancel.run();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mException instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (!mDone) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                throw new TimeoutException("Request " + mRequestId + " not completed in time");
+
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+        if (mException instanceof CancellationException)
+            throw (CancellationException) mException;
+
+        if (mException != null)
+            throw new ExecutionException(mException);
+
+        return mResult;
+    }
+}
@@ -0,0 +1,300 @@
+package net.igenius.mqttservice;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and timings collected by the MQTT service since the process started, or since the
+ * last {@link #reset()}. All the methods can be called from any thread.
+ */
+public class MQTTServiceMetrics {
+
+    // bucket i counts delays lower than 2^i milliseconds, the last one all the others
+    private static final int DELAY_BUCKETS = 20;
+
+    private static final AtomicInteger sQueuedPublishes = new AtomicInteger();
+    private static final AtomicLong sDispatchedPublishes = new AtomicLong();
+    private static final AtomicLong sThrottledPublishes = new AtomicLong();
+    private static final AtomicLong sRejectedPublishes = new AtomicLong();
+    private static final AtomicLong sDeferredPublishes = new AtomicLong();
+    private static final AtomicLong sRadioWakeupsSaved = new AtomicLong();
+    private static final AtomicLong sFilteredMessages = new AtomicLong();
+    private static final AtomicLong sMaxQueueDelayMillis = new AtomicLong();
+    private static final AtomicLongArray sQueueDelays = new AtomicLongArray(DELAY_BUCKETS);
+
+    private static final AtomicLong sTlsHandshakes = new AtomicLong();
+    private static final AtomicLong sTlsResumedHandshakes = new AtomicLong();
+    private static final AtomicLong sTlsHandshakeMillis = new AtomicLong();
+    private static volatile long sLastTlsHandshakeMillis = -1;
+
+    private static volatile AtomicLongArray sArrivedByTopic = null;
+
+    private static volatile long sServiceCreatedAt = 0;
+    private static volatile long sTimeToConnect = -1;
+    private static volatile long sTimeToFirstMessage = -1;
+
+    private MQTTServiceMetrics() { }
+
+    /**
+     * Gets the number of publishes currently waiting to be dispatched.
+     */
+    public static int getQueuedPublishes() {
+        return sQueuedPublishes.get();
+    }
+
+    /**
+     * Gets the number of publishes dispatched to the client.
+     */
+    public static long getDispatchedPublishes() {
+        return sDispatchedPublishes.get();
+    }
+
+    /**
+     * Gets the number of publishes which had to wait because of a {@link MQTTRateLimits} limit.
+     */
+    public static long getThrottledPublishes() {
+        return sThrottledPublishes.get();
+    }
+
+    /**
+     * Gets the number of publishes rejected because their topic queue was full.
+     */
+    public static long getRejectedPublishes() {
+        return sRejectedPublishes.get();
+    }
+
+    /**
+     * Gets the number of publishes buffered because of {@link MQTTDeferredPublishing}.
+     */
+    public static long getDeferredPublishes() {
+        return sDeferredPublishes.get();
+    }
+
+    /**
+     * Gets an estimate of the radio wakeups saved by {@link MQTTDeferredPublishing}: the number
+     * of times buffered publishes would have woken up the radio if sent right away, minus the
+     * times in which they had to wake it up when their maximum delay expired.
+     */
+    public static long getRadioWakeupsSaved() {
+        return sRadioWakeupsSaved.get();
+    }
+
+    /**
+     * Gets the maximum time a publish waited in the queue, in milliseconds.
+     */
+    public static long getMaxPublishQueueDelayMillis() {
+        return sMaxQueueDelayMillis.get();
+    }
+
+    /**
+     * Gets an upper bound of a publish queue delay percentile, with power of two resolution.
+     * @param percentile percentile, between 0 and 100
+     * @return delay in milliseconds below which the given percentile of the dispatched publishes
+     * waited, or 0 if nothing has been dispatched
+     */
+    public static long getPublishQueueDelayMillis(double percentile) {
+        long total = 0;
+        for (int i = 0; i < DELAY_BUCKETS; i++) {
+            total += sQueueDelays.get(i);
+        }
+
+        if (total == 0)
+            return 0;
+
+        long threshold = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long count = 0;
+
+        for (int i = 0; i < DELAY_BUCKETS - 1; i++) {
+            count += sQueueDelays.get(i);
+            if (count >= threshold)
+                return 1L << i;
+        }
+
+        return sMaxQueueDelayMillis.get();
+    }
+
+    /**
+     * Gets the time from the creation of the service to its first successful connection.
+     * @return time in milliseconds, or -1 if the service has not connected yet
+     */
+    public static long getTimeToConnectMillis() {
+        return sTimeToConnect;
+    }
+
+    /**
+     * Gets the time from the creation of the service to the first message arrived, which
+     * measures the startup latency after a cold start or a restart of the service.
+     * @return time in milliseconds, or -1 if no message has arrived yet
+     */
+    public static long getTimeToFirstMessageMillis() {
+        return sTimeToFirstMessage;
+    }
+
+    /**
+     * Gets the number of messages dropped by the {@link MQTTSubscriptionOptimizer} because they
+     * arrived through a wildcard subscription, but the app didn't request them.
+     */
+    public static long getLocallyFilteredMessages() {
+        return sFilteredMessages.get();
+    }
+
+    /**
+     * Gets the number of messages arrived on a topic.
+     * @param topic topic name
+     * @return number of messages, or 0 if the topic is not in the {@link MQTTTopicCache}
+     */
+    public static long getArrivedMessages(String topic) {
+        AtomicLongArray arrived = sArrivedByTopic;
+        MQTTInternedTopic interned = MQTTTopicCache.find(topic);
+
+        if (arrived == null || interned == null || interned.getId() <= 0 || interned.getId() >= arrived.length())
+            return 0;
+
+        return arrived.get(interned.getId());
+    }
+
+    /**
+     * Gets the number of TLS handshakes completed.
+     */
+    public static long getTlsHandshakes() {
+        return sTlsHandshakes.get();
+    }
+
+    /**
+     * Gets the number of TLS handshakes which resumed a cached session.
+     */
+    public static long getTlsResumedHandshakes() {
+        return sTlsResumedHandshakes.get();
+    }
+
+    /**
+     * Gets the duration of the last TLS connection setup, from the socket creation to the end of
+     * the handshake, so including the TCP connection.
+     * @return time in milliseconds, or -1 if no handshake has been completed
+     */
+    public static long getLastTlsHandshakeMillis() {
+        return sLastTlsHandshakeMillis;
+    }
+
+    /**
+     * Gets the average duration of the TLS connection setups.
+     * @return time in milliseconds, or -1 if no handshake has been completed
+     * @see #getLastTlsHandshakeMillis()
+     */
+    public static long getAverageTlsHandshakeMillis() {
+        long handshakes = sTlsHandshakes.get();
+        return handshakes == 0 ? -1 : sTlsHandshakeMillis.get() / handshakes;
+    }
+
+    /**
+     * Resets all the counters, except the ones about the current state.
+     */
+    public static void reset() {
+        sDispatchedPublishes.set(0);
+        sThrottledPublishes.set(0);
+        sRejectedPublishes.set(0);
+        sDeferredPublishes.set(0);
+        sRadioWakeupsSaved.set(0);
+        sFilteredMessages.set(0);
+        sMaxQueueDelayMillis.set(0);
+        sTlsHandshakes.set(0);
+        sTlsResumedHandshakes.set(0);
+        sTlsHandshakeMillis.set(0);
+        sLastTlsHandshakeMillis = -1;
+        sArrivedByTopic = null;
+        for (int i = 0; i < DELAY_BUCKETS; i++) {
+            sQueueDelays.set(i, 0);
+        }
+    }
+
+    static void onServiceCreated() {
+        sServiceCreatedAt = System.nanoTime();
+        sTimeToConnect = -1;
+        sTimeToFirstMessage = -1;
+    }
+
+    static void onConnected() {
+        if (sTimeToConnect < 0) {
+            sTimeToConnect = (System.nanoTime() - sServiceCreatedAt) / 1000000;
+        }
+    }
+
+    static void onMessageArrived(MQTTInternedTopic topic) {
+        if (sTimeToFirstMessage < 0) {
+            sTimeToFirstMessage = (System.nanoTime() - sServiceCreatedAt) / 1000000;
+        }
+
+        if (topic.getId() > 0) {
+            AtomicLongArray arrived = sArrivedByTopic;
+
+            if (arrived == null) {
+                synchronized (MQTTServiceMetrics.class) {
+                    if (sArrivedByTopic == null) {
+                        sArrivedByTopic = new AtomicLongArray(MQTTTopicCache.MAX_SIZE + 1);
+                    }
+                    arrived = sArrivedByTopic;
+                }
+            }
+
+            if (topic.getId() < arrived.length()) {
+                arrived.incrementAndGet(topic.getId());
+            }
+        }
+    }
+
+    static void onTlsHandshake(long millis, boolean resumed) {
+        sLastTlsHandshakeMillis = millis;
+        sTlsHandshakeMillis.addAndGet(millis);
+        sTlsHandshakes.incrementAndGet();
+
+        if (resumed) {
+            sTlsResumedHandshakes.incrementAndGet();
+        }
+    }
+
+    static void onMessageFiltered() {
+        sFilteredMessages.incrementAndGet();
+    }
+
+    static void onPublishQueued() {
+        sQueuedPublishes.incrementAndGet();
+    }
+
+    static void onPublishRejected() {
+        sRejectedPublishes.incrementAndGet();
+    }
+
+    static void onPublishDeferred() {
+        sDeferredPublishes.incrementAndGet();
+    }
+
+    static void onRadioWakeupsSaved(int count) {
+        sRadioWakeupsSaved.addAndGet(count);
+    }
+
+    static void onPublishThrottled() {
+        sThrottledPublishes.incrementAndGet();
+    }
+
+    static void onPublishesDropped(int count) {
+        sQueuedPublishes.addAndGet(-count);
+    }
+
+    static void onPublishDispatched(long queueDelayMillis) {
+        sQueuedPublishes.decrementAndGet();
+        sDispatchedPublishes.incrementAndGet();
+
+        int bucket = 0;
+        while (bucket < DELAY_BUCKETS - 1 && queueDelayMillis >= 1L << bucket) {
+            bucket++;
+        }
+        sQueueDelays.incrementAndGet(bucket);
+
+        long max;
+        while (queueDelayMillis > (max = sMaxQueueDelayMillis.get())) {
+            if (sMaxQueueDelayMillis.compareAndSet(max, queueDelayMillis))
+                break;
+        }
+    }
+}
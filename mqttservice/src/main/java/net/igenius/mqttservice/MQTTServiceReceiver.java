@@ -6,6 +6,8 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.support.v4.content.WakefulBroadcastReceiver;
 
+import java.util.concurrent.Executor;
+
 import static net.igenius.mqttservice.MQTTServiceCommand.BROADCAST_CONNECTION_STATUS;
 import static net.igenius.mqttservice.MQTTServiceCommand.BROADCAST_CONNECTION_SUCCESS;
 import static net.igenius.mqttservice.MQTTServiceCommand.BROADCAST_EXCEPTION;
@@ -19,6 +21,7 @@ import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_EXCEPTION;
 import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_PAYLOAD;
 import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_REQUEST_ID;
 import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_TOPIC;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_TOPIC_ID;
 import static net.igenius.mqttservice.MQTTServiceCommand.getBroadcastAction;
 
 /**
@@ -27,12 +30,29 @@ import static net.igenius.mqttservice.MQTTServiceCommand.getBroadcastAction;
 
 public abstract class MQTTServiceReceiver extends BroadcastReceiver {
 
+    private Executor mExecutor;
+
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onReceive(final Context context, final Intent intent) {
         if (intent == null || intent.getAction() == null
                 || !getBroadcastAction().equals(intent.getAction()))
             return;
 
+        Executor executor = mExecutor;
+
+        if (executor == null) {
+            dispatch(context, intent);
+        } else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(context, intent);
+                }
+            });
+        }
+    }
+
+    private void dispatch(Context context, Intent intent) {
         String broadcastType = intent.getStringExtra(PARAM_BROADCAST_TYPE);
         String requestId = intent.getStringExtra(PARAM_REQUEST_ID);
 
@@ -50,7 +70,9 @@ public abstract class MQTTServiceReceiver extends BroadcastReceiver {
             onConnectionSuccessful(context, requestId);
 
         } else if (BROADCAST_MESSAGE_ARRIVED.equals(broadcastType)) {
-            onMessageArrived(context, intent.getStringExtra(PARAM_TOPIC),
+            MQTTInternedTopic topic = MQTTTopicCache.intern(intent.getIntExtra(PARAM_TOPIC_ID, 0),
+                                                            intent.getStringExtra(PARAM_TOPIC));
+            onMessageArrived(context, topic != null ? topic.getName() : null,
                              intent.getByteArrayExtra(PARAM_PAYLOAD));
 
         } else if (BROADCAST_SUBSCRIPTION_SUCCESS.equals(broadcastType)) {
@@ -79,9 +101,41 @@ public abstract class MQTTServiceReceiver extends BroadcastReceiver {
      * @param context context in which to register this receiver
      */
     public void register(final Context context) {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(getBroadcastAction());
-        context.registerReceiver(this, intentFilter);
+        mExecutor = null;
+        context.registerReceiver(this, getIntentFilter());
+        MQTTInboundStore.onConsumerRegistered(context, this, MQTTServiceDispatcher.getMainHandler(), null);
+    }
+
+    /**
+     * Register this receiver, so that all the callbacks are invoked on a library managed
+     * background thread, one at a time and in the same order in which the broadcasts are sent.
+     * Use this when processing messages on the main thread would slow down the UI.
+     * Register and unregister it in the same places as {@link #register(Context)}.
+     *
+     * @param context context in which to register this receiver
+     */
+    public void registerInBackground(final Context context) {
+        mExecutor = null;
+        context.registerReceiver(this, getIntentFilter(), null, MQTTServiceDispatcher.getHandler());
+        MQTTInboundStore.onConsumerRegistered(context, this, MQTTServiceDispatcher.getHandler(), null);
+    }
+
+    /**
+     * Register this receiver, so that all the callbacks are invoked with the given executor.
+     * Callbacks are invoked one at a time and in the same order in which the broadcasts are
+     * sent, even if the executor uses many threads.
+     * Register and unregister it in the same places as {@link #register(Context)}.
+     *
+     * @param context context in which to register this receiver
+     * @param executor executor with which to invoke the callbacks
+     */
+    public void register(final Context context, final Executor executor) {
+        if (executor == null)
+            throw new IllegalArgumentException("executor MUST not be null!");
+
+        mExecutor = new MQTTSerialExecutor(executor);
+        context.registerReceiver(this, getIntentFilter(), null, MQTTServiceDispatcher.getHandler());
+        MQTTInboundStore.onConsumerRegistered(context, this, MQTTServiceDispatcher.getHandler(), null);
     }
 
     /**
@@ -94,6 +148,7 @@ public abstract class MQTTServiceReceiver extends BroadcastReceiver {
      * @param context context in which to unregister this receiver
      */
     public void unregister(final Context context) {
+        MQTTInboundStore.onConsumerUnregistered(this);
         context.unregisterReceiver(this);
     }
 
@@ -0,0 +1,300 @@
+package net.igenius.mqttservice;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+import static net.igenius.mqttservice.MQTTServiceCommand.BROADCAST_CONNECTION_SUCCESS;
+import static net.igenius.mqttservice.MQTTServiceCommand.BROADCAST_EXCEPTION;
+import static net.igenius.mqttservice.MQTTServiceCommand.BROADCAST_PUBLISH_SUCCESS;
+import static net.igenius.mqttservice.MQTTServiceCommand.BROADCAST_SUBSCRIPTION_ERROR;
+import static net.igenius.mqttservice.MQTTServiceCommand.BROADCAST_SUBSCRIPTION_SUCCESS;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_BROADCAST_TYPE;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_EXCEPTION;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_REQUEST_ID;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_TOPIC;
+
+/**
+ * Awaitable variants of the {@link MQTTServiceCommand} requests.
+ * Each request is kept in an in-flight table until its result broadcast arrives or its timeout
+ * expires, and the result is delivered with a {@link MQTTServiceFuture} and an optional
+ * {@link MQTTServiceCallback}. Many requests can be in flight at the same time, and each
+ * broadcast is matched to its request with a single lookup.
+ * <p>
+ * Set {@link MQTTService#NAMESPACE} before making the first request.
+ */
+public class MQTTServiceRequests {
+
+    public static long CONNECT_TIMEOUT_MILLIS = 60000;
+    public static long SUBSCRIBE_TIMEOUT_MILLIS = 30000;
+    public static long PUBLISH_TIMEOUT_MILLIS = 30000;
+
+    private static final int TYPE_CONNECT = 1;
+    private static final int TYPE_SUBSCRIBE = 2;
+    private static final int TYPE_PUBLISH = 3;
+
+    private static class PendingRequest<T> {
+        final int type;
+        final Class<T> resultType;
+        final MQTTServiceFuture<T> future;
+        final Runnable timeout;
+        final List<String> topics;
+        int remainingTopics;
+
+        PendingRequest(int type, Class<T> resultType, MQTTServiceFuture<T> future, Runnable timeout,
+                       int topics) {
+            this.type = type;
+            this.resultType = resultType;
+            this.future = future;
+            this.timeout = timeout;
+            this.remainingTopics = topics;
+            this.topics = new ArrayList<>(topics);
+        }
+    }
+
+    private static final ConcurrentHashMap<String, PendingRequest<?>> sPending = new ConcurrentHashMap<>();
+    private static boolean sReceiverRegistered = false;
+
+    private static final BroadcastReceiver sReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String requestId = intent.getStringExtra(PARAM_REQUEST_ID);
+            if (requestId == null)
+                return;
+
+            PendingRequest<?> pending = sPending.get(requestId);
+            if (pending == null)
+                return;
+
+            onBroadcast(requestId, pending, intent);
+        }
+    };
+
+    private MQTTServiceRequests() { }
+
+    /**
+     * Gets the number of requests waiting for a result.
+     * @return number of in-flight requests
+     */
+    public static int getInFlightCount() {
+        return sPending.size();
+    }
+
+    /**
+     * Connects to an MQTT broker. The request completes when the connection is successful.
+     * @param context application context
+     * @param brokerUrl Url to which to connect. Example: ssl://mqtt.server.com:1234 or tcp://mqtt.server.com:1234
+     * @param clientId client ID to give to this client
+     * @param username username
+     * @param password password
+     * @param timeoutMillis milliseconds after which the request fails with a timeout
+     * @param callback callback to invoke when the request completes, or null
+     * @return pending request result
+     */
+    public static MQTTServiceFuture<Void> connect(final Context context, final String brokerUrl,
+                                                  final String clientId, final String username,
+                                                  final String password, final long timeoutMillis,
+                                                  final MQTTServiceCallback<Void> callback) {
+        String requestId = MQTTServiceCommand.newRequestId();
+        MQTTServiceFuture<Void> future = add(context, TYPE_CONNECT, Void.class, requestId, 0, timeoutMillis, callback);
+
+        try {
+            MQTTServiceCommand.connect(context, requestId, brokerUrl, clientId, username, password);
+        } catch (Exception exc) {
+            fail(requestId, exc);
+        }
+
+        return future;
+    }
+
+    /**
+     * Connects to an MQTT broker, with {@link #CONNECT_TIMEOUT_MILLIS} timeout.
+     * @see #connect(Context, String, String, String, String, long, MQTTServiceCallback)
+     */
+    public static MQTTServiceFuture<Void> connect(final Context context, final String brokerUrl,
+                                                  final String clientId, final String username,
+                                                  final String password,
+                                                  final MQTTServiceCallback<Void> callback) {
+        return connect(context, brokerUrl, clientId, username, password, CONNECT_TIMEOUT_MILLIS, callback);
+    }
+
+    /**
+     * Subscribes to one or many topics at once. The request completes when all the
+     * subscriptions are successful, with the subscribed topics as result, and fails at the first
+     * subscription error.
+     * @param context application context
+     * @param qos QoS to use (0, 1 or 2)
+     * @param autoResubscribeOnReconnect if you want the topics passed as parameters to be
+     *                                   automatically resubscribed after each one automatic
+     *                                   reconnection
+     * @param timeoutMillis milliseconds after which the request fails with a timeout
+     * @param callback callback to invoke when the request completes, or null
+     * @param topics topics on which to subscribe
+     * @return pending request result
+     */
+    public static MQTTServiceFuture<String[]> subscribe(final Context context, final int qos,
+                                                        final boolean autoResubscribeOnReconnect,
+                                                        final long timeoutMillis,
+                                                        final MQTTServiceCallback<String[]> callback,
+                                                        final String... topics) {
+        String requestId = MQTTServiceCommand.newRequestId();
+        MQTTServiceFuture<String[]> future = add(context, TYPE_SUBSCRIBE, String[].class, requestId,
+                topics == null ? 0 : topics.length, timeoutMillis, callback);
+
+        try {
+            MQTTServiceCommand.subscribe(context, requestId, qos, autoResubscribeOnReconnect, topics);
+        } catch (Exception exc) {
+            fail(requestId, exc);
+        }
+
+        return future;
+    }
+
+    /**
+     * Subscribes to one or many topics at once, with {@link #SUBSCRIBE_TIMEOUT_MILLIS} timeout.
+     * @see #subscribe(Context, int, boolean, long, MQTTServiceCallback, String...)
+     */
+    public static MQTTServiceFuture<String[]> subscribe(final Context context, final int qos,
+                                                        final boolean autoResubscribeOnReconnect,
+                                                        final MQTTServiceCallback<String[]> callback,
+                                                        final String... topics) {
+        return subscribe(context, qos, autoResubscribeOnReconnect, SUBSCRIBE_TIMEOUT_MILLIS, callback, topics);
+    }
+
+    /**
+     * Publish some content on a topic. The request completes when the content has been
+     * published, with the topic as result.
+     * @param context application context
+     * @param topic topic on which to publish
+     * @param payload payload to publish
+     * @param qos QoS to use (0, 1 or 2)
+     * @param timeoutMillis milliseconds after which the request fails with a timeout
+     * @param callback callback to invoke when the request completes, or null
+     * @return pending request result
+     */
+    public static MQTTServiceFuture<String> publish(final Context context, final String topic,
+                                                    final byte[] payload, final int qos,
+                                                    final long timeoutMillis,
+                                                    final MQTTServiceCallback<String> callback) {
+        String requestId = MQTTServiceCommand.newRequestId();
+        MQTTServiceFuture<String> future = add(context, TYPE_PUBLISH, String.class, requestId, 0, timeoutMillis, callback);
+
+        try {
+            // awaited publishes are not deferred, or they would time out while buffered
+            MQTTServiceCommand.publish(context, requestId, topic, payload, qos, true);
+        } catch (Exception exc) {
+            fail(requestId, exc);
+        }
+
+        return future;
+    }
+
+    /**
+     * Publish some content on a topic, with {@link #PUBLISH_TIMEOUT_MILLIS} timeout.
+     * @see #publish(Context, String, byte[], int, long, MQTTServiceCallback)
+     */
+    public static MQTTServiceFuture<String> publish(final Context context, final String topic,
+                                                    final byte[] payload, final int qos,
+                                                    final MQTTServiceCallback<String> callback) {
+        return publish(context, topic, payload, qos, PUBLISH_TIMEOUT_MILLIS, callback);
+    }
+
+    private static synchronized void registerReceiver(Context context) {
+        if (sReceiverRegistered)
+            return;
+
+        context.getApplicationContext().registerReceiver(sReceiver, MQTTServiceReceiver.getIntentFilter(),
+                null, MQTTServiceDispatcher.getHandler());
+        sReceiverRegistered = true;
+    }
+
+    private static <T> MQTTServiceFuture<T> add(final Context context, final int type,
+                                                final Class<T> resultType, final String requestId, final int topics,
+                                                final long timeoutMillis,
+                                                final MQTTServiceCallback<T> callback) {
+        registerReceiver(context);
+
+        MQTTServiceFuture<T> future = new MQTTServiceFuture<>(requestId, callback, new Runnable() {
+            @Override
+            public void run() {
+                removePending(requestId);
+            }
+        });
+
+        Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                fail(requestId, new TimeoutException("Request " + requestId
+                        + " not completed in " + timeoutMillis + "ms"));
+            }
+        };
+
+        sPending.put(requestId, new PendingRequest<>(type, resultType, future, timeout, topics));
+        MQTTServiceDispatcher.getHandler().postDelayed(timeout, timeoutMillis);
+
+        return future;
+    }
+
+    private static PendingRequest<?> removePending(String requestId) {
+        PendingRequest<?> pending = sPending.remove(requestId);
+
+        if (pending != null) {
+            MQTTServiceDispatcher.getHandler().removeCallbacks(pending.timeout);
+        }
+
+        return pending;
+    }
+
+    private static void fail(String requestId, Exception exception) {
+        PendingRequest<?> pending = removePending(requestId);
+
+        if (pending != null) {
+            pending.future.fail(exception);
+        }
+    }
+
+    private static void complete(String requestId, Object result) {
+        PendingRequest<?> pending = removePending(requestId);
+
+        if (pending != null) {
+            complete(pending, result);
+        }
+    }
+
+    private static <T> void complete(PendingRequest<T> pending, Object result) {
+        pending.future.complete(pending.resultType.cast(result));
+    }
+
+    private static void onBroadcast(String requestId, PendingRequest<?> pending, Intent intent) {
+        String broadcastType = intent.getStringExtra(PARAM_BROADCAST_TYPE);
+
+        if (BROADCAST_EXCEPTION.equals(broadcastType)) {
+            Exception exception = (Exception) intent.getSerializableExtra(PARAM_EXCEPTION);
+            fail(requestId, exception != null ? exception : new Exception("Request " + requestId + " failed"));
+
+        } else if (pending.type == TYPE_CONNECT && BROADCAST_CONNECTION_SUCCESS.equals(broadcastType)) {
+            complete(requestId, null);
+
+        } else if (pending.type == TYPE_PUBLISH && BROADCAST_PUBLISH_SUCCESS.equals(broadcastType)) {
+            complete(requestId, intent.getStringExtra(PARAM_TOPIC));
+
+        } else if (pending.type == TYPE_SUBSCRIBE && BROADCAST_SUBSCRIPTION_ERROR.equals(broadcastType)) {
+            Exception exception = (Exception) intent.getSerializableExtra(PARAM_EXCEPTION);
+            fail(requestId, exception != null ? exception
+                    : new Exception("Can't subscribe to " + intent.getStringExtra(PARAM_TOPIC)));
+
+        } else if (pending.type == TYPE_SUBSCRIBE && BROADCAST_SUBSCRIPTION_SUCCESS.equals(broadcastType)) {
+            pending.topics.add(intent.getStringExtra(PARAM_TOPIC));
+            pending.remainingTopics--;
+
+            if (pending.remainingTopics <= 0) {
+                complete(requestId, pending.topics.toArray(new String[pending.topics.size()]));
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package net.igenius.mqttservice;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import static net.igenius.mqttservice.MQTTServiceCommand.BROADCAST_MESSAGE_ARRIVED;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_BROADCAST_TYPE;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_PAYLOAD;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_TOPIC;
+
+/**
+ * Request/response over the MQTT service, with a {@link MQTTRpcClient}.
+ * <pre>
+ * MQTTServiceRpc rpc = new MQTTServiceRpc(context, "devices/" + clientId + "/reply", 1);
+ * rpc.start();
+ * rpc.call("devices/42/commands", command, 5000, callback);
+ * </pre>
+ * Call {@link #start()} after the connection is successful, and {@link #stop()} when you don't
+ * need it anymore. Callbacks are invoked on a library managed background thread.
+ */
+public class MQTTServiceRpc {
+
+    private final Context mContext;
+    private final MQTTRpcClient mClient;
+    private boolean mStarted = false;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (BROADCAST_MESSAGE_ARRIVED.equals(intent.getStringExtra(PARAM_BROADCAST_TYPE))) {
+                mClient.onMessageArrived(intent.getStringExtra(PARAM_TOPIC),
+                        intent.getByteArrayExtra(PARAM_PAYLOAD));
+            }
+        }
+    };
+
+    /**
+     * Creates a new RPC client which uses the MQTT service.
+     * @param context application context
+     * @param replyTopic topic on which to receive the replies. It must be unique for this client
+     * @param qos QoS to use for requests and for the reply topic subscription
+     */
+    public MQTTServiceRpc(final Context context, final String replyTopic, final int qos) {
+        mContext = context.getApplicationContext();
+        mClient = new MQTTRpcClient(new MQTTRpcTransport() {
+            @Override
+            public void publish(String topic, byte[] payload, int qos,
+                                MQTTServiceCallback<String> callback) {
+                MQTTServiceRequests.publish(mContext, topic, payload, qos, callback);
+            }
+
+            @Override
+            public void subscribe(String topicFilter, int qos) {
+                MQTTServiceCommand.subscribe(mContext, qos, true, topicFilter);
+            }
+        }, replyTopic, qos);
+    }
+
+    /**
+     * Starts receiving replies and subscribes to the reply topic. The subscription is
+     * automatically renewed after each reconnection.
+     */
+    public synchronized void start() {
+        if (mStarted)
+            return;
+
+        mContext.registerReceiver(mReceiver, MQTTServiceReceiver.getIntentFilter(), null,
+                MQTTServiceDispatcher.getHandler());
+        mStarted = true;
+
+        try {
+            mClient.start();
+        } catch (Exception exc) {
+            MQTTServiceLogger.error(getClass().getSimpleName(), "Can't subscribe to reply topic", exc);
+        }
+    }
+
+    /**
+     * Stops receiving replies and cancels all the in-flight requests.
+     */
+    public synchronized void stop() {
+        if (!mStarted)
+            return;
+
+        mContext.unregisterReceiver(mReceiver);
+        mStarted = false;
+        mClient.close();
+    }
+
+    /**
+     * Sends a request.
+     * @see MQTTRpcClient#call(String, byte[], long, MQTTServiceCallback)
+     */
+    public MQTTServiceFuture<byte[]> call(String topic, byte[] body, long timeoutMillis,
+                                          MQTTServiceCallback<byte[]> callback) {
+        return mClient.call(topic, body, timeoutMillis, callback);
+    }
+
+    /**
+     * Sends a request with {@link MQTTRpcClient#DEFAULT_TIMEOUT_MILLIS} timeout.
+     * @see MQTTRpcClient#call(String, byte[], long, MQTTServiceCallback)
+     */
+    public MQTTServiceFuture<byte[]> call(String topic, byte[] body, MQTTServiceCallback<byte[]> callback) {
+        return mClient.call(topic, body, callback);
+    }
+
+    public int getInFlightCount() {
+        return mClient.getInFlightCount();
+    }
+}
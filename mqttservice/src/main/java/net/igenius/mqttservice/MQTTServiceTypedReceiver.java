@@ -0,0 +1,148 @@
+package net.igenius.mqttservice;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import java.lang.reflect.Type;
+
+import static net.igenius.mqttservice.MQTTServiceCommand.BROADCAST_MESSAGE_ARRIVED;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_BROADCAST_TYPE;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_PAYLOAD;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_TOPIC;
+import static net.igenius.mqttservice.MQTTServiceCommand.PARAM_TOPIC_ID;
+import static net.igenius.mqttservice.MQTTServiceCommand.getBroadcastAction;
+
+/**
+ * Receives JSON messages arriving on one or more topic filters, already decoded as objects.
+ * Payloads are decoded with {@link MQTTJson} on a library managed background thread, and the
+ * decoded objects are delivered on the main thread.
+ * <pre>
+ * private MQTTServiceTypedReceiver&lt;Reply&gt; receiver =
+ *         new MQTTServiceTypedReceiver&lt;Reply&gt;(Reply.class, "/advisor/reply/#") {
+ *     &#64;Override
+ *     public void onObjectArrived(Context context, String topic, Reply reply) {
+ *         // use the reply
+ *     }
+ * };
+ * </pre>
+ * @param <T> type of the objects to receive
+ */
+public abstract class MQTTServiceTypedReceiver<T> extends BroadcastReceiver {
+
+    private final Type mType;
+    private final String[][] mTopicFilters;
+
+    /**
+     * Creates a new typed receiver.
+     * @param type type of the objects to receive. It can be a generic type obtained with Gson's
+     *             {@code TypeToken}
+     * @param topicFilters topic filters on which to receive messages. If none is given, messages
+     *                     arriving on all the topics are decoded
+     */
+    public MQTTServiceTypedReceiver(final Type type, final String... topicFilters) {
+        if (type == null)
+            throw new IllegalArgumentException("type MUST not be null!");
+
+        mType = type;
+        mTopicFilters = new String[topicFilters == null ? 0 : topicFilters.length][];
+
+        for (int i = 0; i < mTopicFilters.length; i++) {
+            mTopicFilters[i] = MQTTTopicCache.split(topicFilters[i]);
+        }
+    }
+
+    private boolean matches(MQTTInternedTopic topic) {
+        if (mTopicFilters.length == 0)
+            return true;
+
+        for (String[] topicFilter : mTopicFilters) {
+            if (topic.matches(topicFilter))
+                return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public void onReceive(final Context context, final Intent intent) {
+        if (intent == null || !getBroadcastAction().equals(intent.getAction())
+                || !BROADCAST_MESSAGE_ARRIVED.equals(intent.getStringExtra(PARAM_BROADCAST_TYPE)))
+            return;
+
+        MQTTInternedTopic interned = MQTTTopicCache.intern(intent.getIntExtra(PARAM_TOPIC_ID, 0),
+                intent.getStringExtra(PARAM_TOPIC));
+        if (interned == null || !matches(interned))
+            return;
+
+        final String topic = interned.getName();
+
+        final byte[] payload = intent.getByteArrayExtra(PARAM_PAYLOAD);
+
+        try {
+            final T object = MQTTJson.decode(payload, mType);
+
+            MQTTServiceDispatcher.getMainHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    onObjectArrived(context, topic, object);
+                }
+            });
+
+        } catch (final Exception exc) {
+            MQTTServiceDispatcher.getMainHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    onDecodeError(context, topic, payload, exc);
+                }
+            });
+        }
+    }
+
+    /**
+     * Register this receiver. Broadcasts are received and decoded on a library managed
+     * background thread.<br>
+     * If you use this receiver in an {@link android.app.Activity}, you have to call this method inside
+     * {@link android.app.Activity#onResume()}, after {@code super.onResume();}.
+     *
+     * @param context context in which to register this receiver
+     */
+    public void register(final Context context) {
+        context.registerReceiver(this, MQTTServiceReceiver.getIntentFilter(), null,
+                MQTTServiceDispatcher.getHandler());
+        MQTTInboundStore.onConsumerRegistered(context, this, MQTTServiceDispatcher.getHandler(),
+                                             mTopicFilters);
+    }
+
+    /**
+     * Unregister this receiver.<br>
+     * If you use this receiver in an {@link android.app.Activity}, you have to call this method inside
+     * {@link android.app.Activity#onPause()}, after {@code super.onPause();}.
+     *
+     * @param context context in which to unregister this receiver
+     */
+    public void unregister(final Context context) {
+        MQTTInboundStore.onConsumerUnregistered(this);
+        context.unregisterReceiver(this);
+    }
+
+    /**
+     * Called on the main thread when a message has arrived and has been decoded.
+     * @param context context
+     * @param topic topic on which the message arrived
+     * @param object decoded object
+     */
+    public abstract void onObjectArrived(Context context, String topic, T object);
+
+    /**
+     * Called on the main thread when a message has arrived but it can't be decoded.
+     * By default it logs the error.
+     * @param context context
+     * @param topic topic on which the message arrived
+     * @param payload raw payload
+     * @param exception decoding error
+     */
+    public void onDecodeError(Context context, String topic, byte[] payload, Exception exception) {
+        MQTTServiceLogger.error(getClass().getSimpleName(), "Can't decode message arrived on " + topic, exception);
+    }
+}
@@ -0,0 +1,450 @@
+package net.igenius.mqttservice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reduces the subscriptions made on the broker, by replacing groups of sibling topic filters
+ * with a single wildcard filter which covers them all, and by dropping the filters already
+ * covered by another one. For example, when subscribing to {@code devices/1/status},
+ * {@code devices/2/status}, {@code devices/3/status} and {@code devices/4/status}, only
+ * {@code devices/+/status} is subscribed.
+ * <p>
+ * Messages arriving through a wildcard filter are checked against the filters requested by
+ * the app, and the ones which have not been requested are dropped before being broadcast.
+ * If more than {@link #MAX_UNWANTED_RATIO} of the messages arriving through a wildcard filter
+ * have to be dropped, the wildcard is replaced again by the filters it covers.
+ * <p>
+ * Retained messages are sent by the broker only when a filter is subscribed. When a requested
+ * filter is already covered by a subscribed one, the covering filter is subscribed again, and
+ * for {@link #RETAINED_WINDOW_MILLIS} after each change of the subscriptions, retained messages
+ * are delivered only once for each topic matching a newly requested filter. The ones resent
+ * for filters requested before, e.g. when a wildcard replaces them, are dropped.
+ * While a wildcard replaces the filters it covers, or the other way round, both are subscribed
+ * for a moment, so a message published in the meantime may be delivered twice.
+ * <p>
+ * It's disabled by default. Enable it before connecting:
+ * <pre>
+ * MQTTSubscriptionOptimizer.ENABLED = true;
+ * </pre>
+ */
+public class MQTTSubscriptionOptimizer {
+
+    public static boolean ENABLED = false;
+
+    /**
+     * Minimum number of sibling filters which can be replaced by a wildcard filter.
+     */
+    public static int MIN_SIBLINGS = 4;
+
+    /**
+     * Maximum ratio of messages arriving through a wildcard filter which can be dropped because
+     * no requested filter matches them, between 0 and 1.
+     */
+    public static double MAX_UNWANTED_RATIO = 0.5;
+
+    /**
+     * Number of messages arriving through a wildcard filter after which
+     * {@link #MAX_UNWANTED_RATIO} is checked.
+     */
+    public static int MIN_SAMPLES = 50;
+
+    /**
+     * Time after the subscriptions have been changed, in which retained messages are expected.
+     */
+    public static long RETAINED_WINDOW_MILLIS = 10000;
+
+    private static final int MAX_DECISIONS = 4096;
+
+    private static class Cover {
+        final String[] levels;
+        long total;
+        long unwanted;
+
+        Cover(String topicFilter) {
+            levels = MQTTTopicCache.split(topicFilter);
+        }
+    }
+
+    /**
+     * Requested filter for which the retained messages have not been delivered yet.
+     */
+    private static class AwaitingRetained {
+        final String[] levels;
+        final Set<String> delivered = new HashSet<>();
+        boolean subscribed = false;
+
+        AwaitingRetained(String topicFilter) {
+            levels = MQTTTopicCache.split(topicFilter);
+        }
+    }
+
+    // topic filter -> QoS
+    private final LinkedHashMap<String, Integer> mRequested = new LinkedHashMap<>();
+    private final List<String[]> mRequestedLevels = new ArrayList<>();
+    private final LinkedHashMap<String, Integer> mSubscribed = new LinkedHashMap<>();
+    private final HashMap<String, Cover> mCovers = new HashMap<>();
+    private final Set<String> mExcluded = new HashSet<>();
+    private final IdentityHashMap<MQTTInternedTopic, Boolean> mDecisions = new IdentityHashMap<>();
+    private final LinkedHashMap<String, AwaitingRetained> mAwaitingRetained = new LinkedHashMap<>();
+    private long mRetainedWindowEnd = Long.MIN_VALUE;
+    private boolean mNeedsUpdate = false;
+
+    /**
+     * Adds a requested topic filter. Its retained messages are delivered once it's subscribed,
+     * also if it was already requested, as it happens when subscribing again without the
+     * optimizer.
+     * @param topicFilter topic filter
+     * @param qos requested QoS
+     */
+    synchronized void add(String topicFilter, int qos) {
+        put(mRequested, topicFilter, qos);
+        mAwaitingRetained.put(topicFilter, new AwaitingRetained(topicFilter));
+        onRequestedChanged();
+    }
+
+    /**
+     * Removes a requested topic filter, for example if it can't be subscribed.
+     * @param topicFilter topic filter
+     */
+    synchronized void remove(String topicFilter) {
+        mRequested.remove(topicFilter);
+        mAwaitingRetained.remove(topicFilter);
+        onRequestedChanged();
+    }
+
+    /**
+     * Replaces all the requested filters and forgets the current subscriptions, e.g. after
+     * connecting again with a clean session.
+     * @param requested requested topic filters and their QoS
+     */
+    synchronized void reset(Map<String, Integer> requested) {
+        mRequested.clear();
+        mRequested.putAll(requested);
+        mSubscribed.clear();
+        mCovers.clear();
+        mAwaitingRetained.clear();
+        for (String topicFilter : requested.keySet()) {
+            mAwaitingRetained.put(topicFilter, new AwaitingRetained(topicFilter));
+        }
+        onRequestedChanged();
+    }
+
+    synchronized void clear() {
+        reset(new HashMap<String, Integer>());
+        mExcluded.clear();
+        mRetainedWindowEnd = Long.MIN_VALUE;
+    }
+
+    private void onRequestedChanged() {
+        mRequestedLevels.clear();
+        for (String topicFilter : mRequested.keySet()) {
+            mRequestedLevels.add(MQTTTopicCache.split(topicFilter));
+        }
+        mDecisions.clear();
+    }
+
+    /**
+     * Gets the filters which have to be subscribed on the broker to get all the requested ones.
+     * The largest group of sibling filters is replaced by a wildcard first, until no group
+     * has at least {@link #MIN_SIBLINGS} filters.
+     * @return topic filters and their QoS
+     */
+    synchronized LinkedHashMap<String, Integer> compute() {
+        mNeedsUpdate = false;
+
+        LinkedHashMap<String, Integer> result = new LinkedHashMap<>();
+        List<String> remaining = new ArrayList<>(mRequested.keySet());
+
+        while (true) {
+            LinkedHashMap<String, List<String>> groups = new LinkedHashMap<>();
+            List<String> best = null;
+            String bestGroup = null;
+
+            for (String topicFilter : remaining) {
+                String[] levels = MQTTTopicCache.split(topicFilter);
+
+                for (int i = 1; i < levels.length; i++) {
+                    String group = getGroup(levels, i);
+                    if (group == null || mExcluded.contains(group))
+                        continue;
+
+                    List<String> members = groups.get(group);
+                    if (members == null) {
+                        members = new ArrayList<>();
+                        groups.put(group, members);
+                    }
+                    members.add(topicFilter);
+
+                    if (best == null || members.size() > best.size()) {
+                        best = members;
+                        bestGroup = group;
+                    }
+                }
+            }
+
+            if (best == null || best.size() < MIN_SIBLINGS)
+                break;
+
+            for (String member : best) {
+                put(result, bestGroup, mRequested.get(member));
+            }
+            remaining.removeAll(best);
+        }
+
+        for (String topicFilter : remaining) {
+            put(result, topicFilter, mRequested.get(topicFilter));
+        }
+
+        removeCovered(result);
+        return result;
+    }
+
+    private static void put(Map<String, Integer> filters, String topicFilter, int qos) {
+        Integer previous = filters.get(topicFilter);
+        filters.put(topicFilter, previous == null ? qos : Math.max(previous, qos));
+    }
+
+    /**
+     * Gets the wildcard filter which can replace a topic filter together with its siblings,
+     * by replacing one of its literal levels with +.
+     * @return wildcard filter, or null if the level is already a wildcard
+     */
+    private static String getGroup(String[] levels, int index) {
+        if ("+".equals(levels[index]) || "#".equals(levels[index]))
+            return null;
+
+        StringBuilder group = new StringBuilder();
+        for (int i = 0; i < levels.length; i++) {
+            if (i > 0) {
+                group.append('/');
+            }
+            group.append(i == index ? "+" : levels[i]);
+        }
+        return group.toString();
+    }
+
+    /**
+     * Removes the filters covered by another one, which gets the highest QoS of the two.
+     */
+    private static void removeCovered(LinkedHashMap<String, Integer> filters) {
+        List<String> keys = new ArrayList<>(filters.keySet());
+
+        for (String candidate : keys) {
+            String[] candidateLevels = MQTTTopicCache.split(candidate);
+
+            for (String other : keys) {
+                if (other.equals(candidate) || !filters.containsKey(other))
+                    continue;
+
+                if (covers(MQTTTopicCache.split(other), candidateLevels)) {
+                    filters.put(other, Math.max(filters.get(other), filters.get(candidate)));
+                    filters.remove(candidate);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if all the topics matching a filter match also another filter.
+     * @param general filter levels which may cover the other one
+     * @param specific filter levels which may be covered
+     * @return true if general covers specific
+     */
+    static boolean covers(String[] general, String[] specific) {
+        for (int i = 0; i < general.length; i++) {
+            if ("#".equals(general[i]))
+                return i > 0 || !specific[0].startsWith("$");
+
+            if (i >= specific.length || "#".equals(specific[i]))
+                return false;
+
+            if ("+".equals(general[i])) {
+                if (i == 0 && specific[0].startsWith("$"))
+                    return false;
+            } else if (!general[i].equals(specific[i])) {
+                return false;
+            }
+        }
+
+        return general.length == specific.length;
+    }
+
+    /**
+     * Starts bringing the broker subscriptions in line with the computed ones, and gets the
+     * filters to subscribe: the new ones, the ones with a higher QoS, and the ones covering a
+     * newly requested filter, which are subscribed again so the broker sends its retained
+     * messages. Until {@link #setSubscribed(Map)} is called, only the retained messages of the
+     * newly requested filters are delivered.
+     * @param target topic filters returned by {@link #compute()}
+     * @return topic filters to subscribe and their QoS
+     */
+    synchronized LinkedHashMap<String, Integer> startUpdate(Map<String, Integer> target) {
+        // forgets the filters of the previous update, if its window has already ended
+        isRetainedWindowOpen();
+
+        LinkedHashMap<String, Integer> toSubscribe = new LinkedHashMap<>();
+
+        for (Map.Entry<String, Integer> entry : target.entrySet()) {
+            Integer qos = mSubscribed.get(entry.getKey());
+            if (qos == null || qos < entry.getValue()) {
+                toSubscribe.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        for (Map.Entry<String, AwaitingRetained> awaiting : mAwaitingRetained.entrySet()) {
+            if (awaiting.getValue().subscribed)
+                continue;
+
+            for (Map.Entry<String, Integer> entry : target.entrySet()) {
+                if (entry.getKey().equals(awaiting.getKey())
+                        || covers(MQTTTopicCache.split(entry.getKey()), awaiting.getValue().levels)) {
+                    toSubscribe.put(entry.getKey(), entry.getValue());
+                    break;
+                }
+            }
+        }
+
+        mRetainedWindowEnd = Long.MAX_VALUE;
+        return toSubscribe;
+    }
+
+    /**
+     * Gets the filters currently subscribed on the broker.
+     */
+    synchronized Map<String, Integer> getSubscribed() {
+        return new LinkedHashMap<>(mSubscribed);
+    }
+
+    /**
+     * Sets the filters currently subscribed on the broker, also when the update failed, and
+     * starts the {@link #RETAINED_WINDOW_MILLIS} in which the retained messages are expected.
+     * @param subscribed topic filters and their QoS
+     */
+    synchronized void setSubscribed(Map<String, Integer> subscribed) {
+        mSubscribed.clear();
+        mSubscribed.putAll(subscribed);
+
+        for (AwaitingRetained awaiting : mAwaitingRetained.values()) {
+            awaiting.subscribed = true;
+        }
+        mRetainedWindowEnd = System.currentTimeMillis() + RETAINED_WINDOW_MILLIS;
+
+        Iterator<String> covers = mCovers.keySet().iterator();
+        while (covers.hasNext()) {
+            if (!subscribed.containsKey(covers.next())) {
+                covers.remove();
+            }
+        }
+
+        for (String topicFilter : subscribed.keySet()) {
+            if (!mRequested.containsKey(topicFilter) && !mCovers.containsKey(topicFilter)) {
+                mCovers.put(topicFilter, new Cover(topicFilter));
+            }
+        }
+    }
+
+    /**
+     * Checks if a message arrived on a topic has been requested, and updates the statistics of
+     * the wildcard filters through which it arrived.
+     * @param topic topic on which the message arrived
+     * @param retained true if the message has the retained flag, i.e. it has been sent because
+     *                 a filter has been subscribed
+     * @return true if the message has to be delivered
+     */
+    synchronized boolean accept(MQTTInternedTopic topic, boolean retained) {
+        if (retained && isRetainedWindowOpen())
+            return acceptRetained(topic);
+
+        if (mCovers.isEmpty())
+            return true;
+
+        Boolean wanted = mDecisions.get(topic);
+
+        if (wanted == null) {
+            wanted = false;
+            for (String[] levels : mRequestedLevels) {
+                if (topic.matches(levels)) {
+                    wanted = true;
+                    break;
+                }
+            }
+
+            if (mDecisions.size() >= MAX_DECISIONS) {
+                mDecisions.clear();
+            }
+            mDecisions.put(topic, wanted);
+        }
+
+        for (Map.Entry<String, Cover> entry : mCovers.entrySet()) {
+            Cover cover = entry.getValue();
+            if (!topic.matches(cover.levels))
+                continue;
+
+            cover.total++;
+            if (!wanted) {
+                cover.unwanted++;
+            }
+
+            if (cover.total >= MIN_SAMPLES && cover.unwanted > cover.total * MAX_UNWANTED_RATIO
+                    && mExcluded.add(entry.getKey())) {
+                MQTTServiceLogger.info(getClass().getSimpleName(), "Too many unwanted messages through "
+                        + entry.getKey() + ", subscribing to the filters it covers");
+                mNeedsUpdate = true;
+            }
+        }
+
+        return wanted;
+    }
+
+    private boolean isRetainedWindowOpen() {
+        if (mRetainedWindowEnd == Long.MIN_VALUE)
+            return false;
+
+        if (System.currentTimeMillis() <= mRetainedWindowEnd)
+            return true;
+
+        Iterator<AwaitingRetained> awaiting = mAwaitingRetained.values().iterator();
+        while (awaiting.hasNext()) {
+            if (awaiting.next().subscribed) {
+                awaiting.remove();
+            }
+        }
+
+        mRetainedWindowEnd = Long.MIN_VALUE;
+        return false;
+    }
+
+    /**
+     * Delivers a retained message once for each newly requested filter matching its topic.
+     * Retained messages of the other filters have already been delivered when they have been
+     * requested.
+     */
+    private boolean acceptRetained(MQTTInternedTopic topic) {
+        boolean wanted = false;
+
+        for (AwaitingRetained awaiting : mAwaitingRetained.values()) {
+            if (topic.matches(awaiting.levels) && awaiting.delivered.add(topic.getName())) {
+                wanted = true;
+            }
+        }
+
+        return wanted;
+    }
+
+    /**
+     * Checks if the subscriptions have to be computed again, because a wildcard filter let
+     * through too many unwanted messages.
+     */
+    synchronized boolean needsUpdate() {
+        return mNeedsUpdate;
+    }
+}
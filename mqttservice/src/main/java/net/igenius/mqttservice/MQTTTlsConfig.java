@@ -0,0 +1,297 @@
+package net.igenius.mqttservice;
+
+import android.net.http.X509TrustManagerExtensions;
+import android.os.Build;
+import android.util.Base64;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * TLS configuration used by {@link MQTTService} for ssl:// broker URLs.
+ * <p>
+ * All the connections share a single long-lived {@link SSLContext}, whose client session
+ * cache lets reconnections resume the previous TLS session with an abbreviated handshake,
+ * instead of doing a full one each time. The context is created again only when this
+ * configuration or the broker host changes. Optionally, the server certificate chain can be
+ * validated against a preloaded trust store instead of the system one, and its public keys
+ * pinned:
+ * <pre>
+ * MQTTTlsConfig.setTrustStore(keyStore);
+ * MQTTTlsConfig.addPin("sha256/AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+ * </pre>
+ * Pins are checked against the chain built by the platform from the server certificate to a
+ * trusted authority, not against the certificates sent by the server, which may contain
+ * anything. On API 16, where the platform doesn't expose that chain, only the public key of
+ * the server certificate can be pinned.
+ * Handshake times are reported by {@link MQTTServiceMetrics}.
+ */
+public class MQTTTlsConfig {
+
+    private static final String PIN_PREFIX = "sha256/";
+
+    private static int sSessionCacheSize = 10;
+    private static int sSessionTimeoutSeconds = 24 * 60 * 60;
+    private static KeyStore sTrustStore = null;
+    private static final List<byte[]> sPins = new ArrayList<>();
+    private static SSLSocketFactory sSocketFactory = null;
+    private static String sSocketFactoryHost = null;
+
+    private MQTTTlsConfig() { }
+
+    /**
+     * Sets the maximum number of TLS sessions kept in the cache. Default: 10.
+     * @param size maximum number of sessions, or 0 for no limit
+     */
+    public static synchronized void setSessionCacheSize(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("size MUST not be negative!");
+
+        sSessionCacheSize = size;
+        sSocketFactory = null;
+    }
+
+    /**
+     * Sets the seconds after which a cached TLS session can't be resumed anymore.
+     * Default: 24 hours.
+     * @param timeoutSeconds timeout in seconds, or 0 for no limit
+     */
+    public static synchronized void setSessionTimeoutSeconds(int timeoutSeconds) {
+        if (timeoutSeconds < 0)
+            throw new IllegalArgumentException("timeoutSeconds MUST not be negative!");
+
+        sSessionTimeoutSeconds = timeoutSeconds;
+        sSocketFactory = null;
+    }
+
+    /**
+     * Sets the trust store with the certificates of the authorities to trust, instead of the
+     * system ones.
+     * @param trustStore loaded trust store, or null to use the system one
+     */
+    public static synchronized void setTrustStore(KeyStore trustStore) {
+        sTrustStore = trustStore;
+        sSocketFactory = null;
+    }
+
+    /**
+     * Pins a public key. When at least one pin is set, the connection succeeds only if one of
+     * the certificates of the server chain has a pinned public key. On API 16 only the server
+     * certificate is checked. Always add a backup pin.
+     * @param pin base64 encoded SHA-256 hash of the Subject Public Key Info, in the form
+     *            {@code sha256/base64hash}
+     */
+    public static synchronized void addPin(String pin) {
+        if (pin == null || !pin.startsWith(PIN_PREFIX))
+            throw new IllegalArgumentException("pin MUST be in the form sha256/base64hash");
+
+        byte[] hash = Base64.decode(pin.substring(PIN_PREFIX.length()), Base64.DEFAULT);
+        if (hash.length != 32)
+            throw new IllegalArgumentException("pin MUST be a SHA-256 hash");
+
+        sPins.add(hash);
+        sSocketFactory = null;
+    }
+
+    /**
+     * Removes the trust store and all the pins.
+     */
+    public static synchronized void clear() {
+        sTrustStore = null;
+        sPins.clear();
+        sSocketFactory = null;
+    }
+
+    /**
+     * Gets the shared socket factory, creating it if needed.
+     * @param host host name of the broker, against which the pinned chain is validated
+     * @return socket factory
+     * @throws GeneralSecurityException if the TLS context can't be created
+     */
+    static synchronized SSLSocketFactory getSocketFactory(String host) throws GeneralSecurityException {
+        if (host == null)
+            throw new IllegalArgumentException("host MUST not be null!");
+
+        if (sSocketFactory == null || !host.equals(sSocketFactoryHost)) {
+            TrustManagerFactory trustManagerFactory =
+                    TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(sTrustStore);
+
+            TrustManager[] trustManagers = trustManagerFactory.getTrustManagers();
+
+            if (!sPins.isEmpty()) {
+                for (int i = 0; i < trustManagers.length; i++) {
+                    if (trustManagers[i] instanceof X509TrustManager) {
+                        trustManagers[i] = new PinningTrustManager((X509TrustManager) trustManagers[i],
+                                new ArrayList<>(sPins), host);
+                    }
+                }
+            }
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trustManagers, null);
+            context.getClientSessionContext().setSessionCacheSize(sSessionCacheSize);
+            context.getClientSessionContext().setSessionTimeout(sSessionTimeoutSeconds);
+
+            sSocketFactory = new MeasuringSocketFactory(context.getSocketFactory());
+            sSocketFactoryHost = host;
+        }
+
+        return sSocketFactory;
+    }
+
+    /**
+     * Validates the chain with the platform trust manager, then checks the pins against the
+     * validated chain.
+     */
+    private static class PinningTrustManager implements X509TrustManager {
+        private final X509TrustManager mDelegate;
+        private final List<byte[]> mPins;
+        private final String mHost;
+
+        PinningTrustManager(X509TrustManager delegate, List<byte[]> pins, String host) {
+            mDelegate = delegate;
+            mPins = pins;
+            mHost = host;
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            mDelegate.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            List<X509Certificate> trustedChain;
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                // the chain from the server certificate to a trusted root, without the extra
+                // certificates the server may have sent
+                trustedChain = new X509TrustManagerExtensions(mDelegate)
+                        .checkServerTrusted(chain, authType, mHost);
+            } else {
+                // the handshake proves only that the server has the key of its own certificate
+                mDelegate.checkServerTrusted(chain, authType);
+                trustedChain = Arrays.asList(chain[0]);
+            }
+
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (GeneralSecurityException exc) {
+                throw new CertificateException(exc);
+            }
+
+            for (X509Certificate certificate : trustedChain) {
+                byte[] hash = digest.digest(certificate.getPublicKey().getEncoded());
+
+                for (byte[] pin : mPins) {
+                    if (Arrays.equals(pin, hash))
+                        return;
+                }
+            }
+
+            throw new CertificateException("No pinned public key found in the certificate chain of "
+                    + chain[0].getSubjectX500Principal());
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return mDelegate.getAcceptedIssuers();
+        }
+    }
+
+    /**
+     * Reports to the metrics the time from the creation of each socket to the end of its
+     * handshake, and whether the session has been resumed.
+     */
+    private static class MeasuringSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mDelegate;
+
+        MeasuringSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        private Socket measure(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                final long createdAt = System.currentTimeMillis();
+
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    @Override
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        SSLSession session = event.getSession();
+                        // a resumed session has been created before this socket
+                        boolean resumed = session.getCreationTime() < createdAt;
+                        long elapsed = System.currentTimeMillis() - createdAt;
+
+                        MQTTServiceMetrics.onTlsHandshake(elapsed, resumed);
+                        MQTTServiceLogger.debug(MQTTTlsConfig.class.getSimpleName(), "TLS handshake completed in "
+                                + elapsed + "ms with " + session.getProtocol() + (resumed ? ", resumed" : ""));
+                    }
+                });
+            }
+
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return measure(mDelegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return measure(mDelegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return measure(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return measure(mDelegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return measure(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return measure(mDelegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package net.igenius.mqttservice;
+
+/**
+ * Token bucket, which refills continuously at a fixed rate up to its capacity.
+ * It's not thread safe.
+ */
+class MQTTTokenBucket {
+
+    private final double mTokensPerNano;
+    private final double mCapacity;
+    private double mTokens;
+    private long mLastRefill;
+
+    /**
+     * Creates a new full bucket.
+     * @param tokensPerSecond refill rate
+     * @param capacity maximum number of tokens, which is the maximum burst allowed
+     */
+    MQTTTokenBucket(double tokensPerSecond, int capacity) {
+        if (tokensPerSecond <= 0 || capacity < 1)
+            throw new IllegalArgumentException("rate MUST be greater than 0 and capacity at least 1!");
+
+        mTokensPerNano = tokensPerSecond / 1e9;
+        mCapacity = capacity;
+        mTokens = capacity;
+        mLastRefill = System.nanoTime();
+    }
+
+    /**
+     * Refills the bucket and checks if a token is available.
+     * @param now current {@link System#nanoTime()}
+     * @return true if a token can be taken
+     */
+    boolean hasToken(long now) {
+        if (now > mLastRefill) {
+            mTokens = Math.min(mCapacity, mTokens + (now - mLastRefill) * mTokensPerNano);
+            mLastRefill = now;
+        }
+
+        return mTokens >= 1;
+    }
+
+    void take() {
+        mTokens -= 1;
+    }
+
+    /**
+     * Gets the nanoseconds after which a token will be available, as of the last refill.
+     */
+    long getWaitNanos() {
+        return mTokens >= 1 ? 0 : (long) Math.ceil((1 - mTokens) / mTokensPerNano);
+    }
+}
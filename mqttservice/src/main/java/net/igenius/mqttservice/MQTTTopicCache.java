@@ -0,0 +1,130 @@
+package net.igenius.mqttservice;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded cache of the topic names of the messages arrived from the broker, which maps each
+ * name to a shared {@link MQTTInternedTopic}. Each message arriving from the broker has a new
+ * topic string, so interning it lets the rest of the library and the receivers use a single
+ * instance, already split in levels, for all the messages of the same topic. Topics used only
+ * to publish are not interned, so they don't take the place of the arriving ones.
+ * <p>
+ * IDs are assigned from 1 and never reused, so once the cache has {@link #MAX_SIZE} topics,
+ * new topics are not cached anymore and get ID 0.
+ */
+public class MQTTTopicCache {
+
+    /**
+     * Maximum number of cached topics. It must be set before the first topic is interned.
+     */
+    public static int MAX_SIZE = 1024;
+
+    private static final ConcurrentHashMap<String, MQTTInternedTopic> sTopics = new ConcurrentHashMap<>();
+    private static volatile AtomicReferenceArray<MQTTInternedTopic> sTopicsById = null;
+    private static int sNextId = 1;
+
+    private MQTTTopicCache() { }
+
+    /**
+     * Gets the canonical instance of a topic.
+     * @param topic topic name
+     * @return interned topic, or null if the topic is null
+     */
+    public static MQTTInternedTopic intern(String topic) {
+        if (topic == null)
+            return null;
+
+        MQTTInternedTopic interned = sTopics.get(topic);
+        if (interned != null)
+            return interned;
+
+        synchronized (MQTTTopicCache.class) {
+            interned = sTopics.get(topic);
+            if (interned != null)
+                return interned;
+
+            if (sTopicsById == null) {
+                sTopicsById = new AtomicReferenceArray<>(MAX_SIZE + 1);
+            }
+
+            if (sNextId >= sTopicsById.length())
+                return new MQTTInternedTopic(topic, 0);
+
+            interned = new MQTTInternedTopic(topic, sNextId);
+            sTopicsById.set(sNextId++, interned);
+            sTopics.put(topic, interned);
+            return interned;
+        }
+    }
+
+    /**
+     * Gets a cached topic without adding it to the cache.
+     * @param topic topic name
+     * @return interned topic, or null if the topic is not cached
+     */
+    static MQTTInternedTopic find(String topic) {
+        return topic == null ? null : sTopics.get(topic);
+    }
+
+    /**
+     * Gets a cached topic, or a new uncached one with ID 0, without adding it to the cache.
+     * Use it for topics which are not arriving from the broker, so they don't fill the cache.
+     * @param topic topic name
+     * @return cached or uncached topic, or null if the topic is null
+     */
+    static MQTTInternedTopic lookup(String topic) {
+        if (topic == null)
+            return null;
+
+        MQTTInternedTopic cached = sTopics.get(topic);
+        return cached != null ? cached : new MQTTInternedTopic(topic, 0);
+    }
+
+    /**
+     * Gets a cached topic by its ID.
+     * @param id topic ID
+     * @return interned topic, or null if there is no topic with the given ID
+     */
+    public static MQTTInternedTopic get(int id) {
+        AtomicReferenceArray<MQTTInternedTopic> topicsById = sTopicsById;
+
+        if (topicsById == null || id <= 0 || id >= topicsById.length())
+            return null;
+
+        return topicsById.get(id);
+    }
+
+    /**
+     * Gets the canonical instance of a topic, using its ID to skip the lookup by name.
+     * The ID is used only if it refers to the same topic name, so it's safe to use IDs received
+     * from another process.
+     * @param id topic ID, or 0 if unknown
+     * @param topic topic name
+     * @return interned topic, or null if the topic is null
+     */
+    static MQTTInternedTopic intern(int id, String topic) {
+        MQTTInternedTopic interned = get(id);
+
+        if (interned != null && interned.getName().equals(topic))
+            return interned;
+
+        return intern(topic);
+    }
+
+    /**
+     * Gets the number of cached topics.
+     */
+    public static int size() {
+        return sTopics.size();
+    }
+
+    /**
+     * Splits a topic name or filter in its levels.
+     * @param topic topic name or filter
+     * @return levels
+     */
+    static String[] split(String topic) {
+        return topic.split("/", -1);
+    }
+}
@@ -0,0 +1,251 @@
+package net.igenius.mqttservice;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MQTTChunkedReceiverTest {
+
+    private static final int CHUNK_SIZE = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class RecordingListener implements MQTTChunkedReceiver.Listener {
+        File file;
+        int started;
+        final List<Long> completed = new ArrayList<>();
+        final List<Exception> failures = new ArrayList<>();
+
+        @Override
+        public File onTransferStarted(String topic, long transferId, long totalLength) {
+            started++;
+            return file;
+        }
+
+        @Override
+        public void onTransferProgress(long transferId, int receivedChunks, int totalChunks) {
+        }
+
+        @Override
+        public void onTransferCompleted(long transferId, File file) {
+            completed.add(transferId);
+        }
+
+        @Override
+        public void onTransferFailed(long transferId, Exception exception) {
+            failures.add(exception);
+        }
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+
+    private static byte[][] chunks(long transferId, byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        byte[][] chunks = new byte[MQTTChunk.getTotalChunks(content.length, CHUNK_SIZE)][];
+
+        for (int index = 0; index < chunks.length; index++) {
+            byte[] chunk = MQTTChunk.allocate(transferId, index, CHUNK_SIZE, content.length, (int) crc.getValue());
+            System.arraycopy(content, index * CHUNK_SIZE, chunk, MQTTChunk.HEADER_SIZE,
+                             chunk.length - MQTTChunk.HEADER_SIZE);
+            MQTTChunk.seal(chunk);
+            chunks[index] = chunk;
+        }
+
+        return chunks;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] content = new byte[(int) input.length()];
+            input.readFully(content);
+            return content;
+        } finally {
+            input.close();
+        }
+    }
+
+    @Test
+    public void chunksArrivingInAnyOrderAreReassembled() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        listener.file = folder.newFile();
+        MQTTChunkedReceiver receiver = new MQTTChunkedReceiver(listener);
+
+        byte[] content = content(450);
+        byte[][] chunks = chunks(1, content);
+
+        assertTrue(receiver.onMessageArrived("t", chunks[4]));
+        assertTrue(receiver.onMessageArrived("t", chunks[1]));
+        assertArrayEquals(new int[]{0, 2, 3}, receiver.getMissingChunks(1));
+
+        assertTrue(receiver.onMessageArrived("t", chunks[1]));
+        assertTrue(receiver.onMessageArrived("t", chunks[0]));
+        assertTrue(receiver.onMessageArrived("t", chunks[3]));
+        assertTrue(receiver.onMessageArrived("t", chunks[2]));
+
+        assertEquals(1, listener.started);
+        assertEquals(1, listener.completed.size());
+        assertTrue(listener.failures.isEmpty());
+        assertNull(receiver.getMissingChunks(1));
+        assertArrayEquals(content, read(listener.file));
+    }
+
+    @Test
+    public void corruptedChunksAreDiscarded() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        listener.file = folder.newFile();
+        MQTTChunkedReceiver receiver = new MQTTChunkedReceiver(listener);
+
+        byte[][] chunks = chunks(1, content(150));
+        chunks[0][MQTTChunk.HEADER_SIZE] ^= 1;
+
+        assertTrue(receiver.onMessageArrived("t", chunks[0]));
+        assertEquals(0, listener.started);
+        assertFalse(receiver.onMessageArrived("t", new byte[]{1, 2, 3}));
+    }
+
+    @Test
+    public void ignoredTransfersAreNotAskedAgain() {
+        RecordingListener listener = new RecordingListener();
+        MQTTChunkedReceiver receiver = new MQTTChunkedReceiver(listener);
+
+        for (byte[] chunk : chunks(1, content(450))) {
+            assertTrue(receiver.onMessageArrived("t", chunk));
+        }
+
+        assertEquals(1, listener.started);
+        assertNull(receiver.getMissingChunks(1));
+    }
+
+    @Test
+    public void ignoredTransfersAreBounded() {
+        int maxIgnored = MQTTChunkedReceiver.MAX_IGNORED_TRANSFERS;
+        MQTTChunkedReceiver.MAX_IGNORED_TRANSFERS = 2;
+
+        try {
+            RecordingListener listener = new RecordingListener();
+            MQTTChunkedReceiver receiver = new MQTTChunkedReceiver(listener);
+
+            for (long transferId = 1; transferId <= 3; transferId++) {
+                receiver.onMessageArrived("t", chunks(transferId, content(50))[0]);
+            }
+            assertEquals(3, listener.started);
+
+            // the oldest one has been forgotten
+            receiver.onMessageArrived("t", chunks(3, content(50))[0]);
+            receiver.onMessageArrived("t", chunks(1, content(50))[0]);
+            assertEquals(4, listener.started);
+
+        } finally {
+            MQTTChunkedReceiver.MAX_IGNORED_TRANSFERS = maxIgnored;
+        }
+    }
+
+    @Test
+    public void cancelledTransfersAreIgnored() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        listener.file = folder.newFile();
+        MQTTChunkedReceiver receiver = new MQTTChunkedReceiver(listener);
+
+        byte[][] chunks = chunks(1, content(450));
+        receiver.onMessageArrived("t", chunks[0]);
+        receiver.cancel(1);
+        receiver.onMessageArrived("t", chunks[1]);
+
+        assertEquals(1, listener.started);
+        assertNull(receiver.getMissingChunks(1));
+    }
+
+    @Test
+    public void duplicatesOfCompletedTransfersAreDiscarded() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        listener.file = folder.newFile();
+        MQTTChunkedReceiver receiver = new MQTTChunkedReceiver(listener);
+
+        byte[] content = content(450);
+        byte[][] chunks = chunks(1, content);
+        for (byte[] chunk : chunks) {
+            receiver.onMessageArrived("t", chunk);
+        }
+        assertEquals(1, listener.completed.size());
+
+        // redelivered by the broker, or published again by the sender after a timeout
+        assertTrue(receiver.onMessageArrived("t", chunks[2]));
+
+        assertEquals(1, listener.started);
+        assertNull(receiver.getMissingChunks(1));
+        assertEquals(0, receiver.expire(-1));
+        assertTrue(listener.failures.isEmpty());
+        assertArrayEquals(content, read(listener.file));
+    }
+
+    @Test
+    public void duplicatesOfMismatchingTransfersAreDiscarded() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        listener.file = folder.newFile();
+        MQTTChunkedReceiver receiver = new MQTTChunkedReceiver(listener);
+
+        byte[][] chunks = chunks(1, content(150));
+        // valid chunk, but its content doesn't match the checksum of the whole file
+        byte[] tampered = chunks[1].clone();
+        tampered[MQTTChunk.HEADER_SIZE] ^= 1;
+        MQTTChunk.seal(tampered);
+
+        receiver.onMessageArrived("t", chunks[0]);
+        receiver.onMessageArrived("t", tampered);
+        assertEquals(1, listener.failures.size());
+
+        receiver.onMessageArrived("t", chunks[1]);
+
+        assertEquals(1, listener.started);
+        assertEquals(1, listener.failures.size());
+        assertTrue(listener.completed.isEmpty());
+        assertNull(receiver.getMissingChunks(1));
+    }
+
+    @Test
+    public void idleTransfersExpire() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        listener.file = folder.newFile();
+        MQTTChunkedReceiver receiver = new MQTTChunkedReceiver(listener);
+
+        byte[][] chunks = chunks(1, content(450));
+        receiver.onMessageArrived("t", chunks[0]);
+
+        assertEquals(0, receiver.expire(60000));
+        assertTrue(listener.failures.isEmpty());
+
+        Thread.sleep(20);
+        assertEquals(1, receiver.expire(10));
+        assertEquals(1, listener.failures.size());
+        assertTrue(listener.failures.get(0) instanceof TimeoutException);
+        assertNull(receiver.getMissingChunks(1));
+
+        // late chunks start the transfer again
+        receiver.onMessageArrived("t", chunks[1]);
+        assertEquals(2, listener.started);
+        assertArrayEquals(new int[]{0, 2, 3, 4}, receiver.getMissingChunks(1));
+    }
+}
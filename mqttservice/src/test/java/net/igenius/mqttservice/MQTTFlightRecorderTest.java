@@ -0,0 +1,122 @@
+package net.igenius.mqttservice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MQTTFlightRecorderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int capacity;
+
+    @Before
+    public void setUp() {
+        capacity = MQTTFlightRecorder.getCapacity();
+        MQTTFlightRecorder.setCapacity(16);
+    }
+
+    @After
+    public void tearDown() {
+        MQTTFlightRecorder.setEnabled(true);
+        MQTTFlightRecorder.setCapacity(capacity);
+    }
+
+    /**
+     * Dumps the recorded events and decodes them.
+     * @return header lines followed by one line per event, without the timestamp
+     */
+    private List<String> dumpAndDecode() throws IOException {
+        File file = folder.newFile();
+        MQTTFlightRecorder.dump(file);
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            MQTTFlightRecorderDecoder.decode(in, new PrintStream(text, true, "UTF-8"));
+        } finally {
+            in.close();
+        }
+
+        List<String> lines = new ArrayList<>();
+        for (String line : text.toString("UTF-8").split("\\r?\\n")) {
+            // yyyy-MM-dd HH:mm:ss.SSS
+            lines.add(line.startsWith("#") ? line : line.substring(24));
+        }
+        return lines;
+    }
+
+    private static String requestId(String requestId) {
+        return String.format(Locale.US, "%08x", requestId.hashCode());
+    }
+
+    @Test
+    public void recordedEventsAreDecoded() throws IOException {
+        String cached = "recorder/test/cached";
+        String uncached = "recorder/test/uncached";
+        MQTTTopicCache.intern(cached);
+        assertNull(MQTTTopicCache.find(uncached));
+
+        MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_CONNECT, 0, 0, null, 0, "connect-1");
+        MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_PUBLISH, 1, 0, uncached, 128, "publish-1");
+        MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_DELIVERY_COMPLETE, 0, 40000, uncached, 0, null);
+        MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_DELIVERY_COMPLETE, 0, 65535, null, 0, null);
+        MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_MESSAGE_ARRIVED, 2, 0, cached, 42, null);
+
+        assertEquals(Arrays.asList(
+                "# capacity: 16, total events: 5, dumped: 5",
+                "# timestamp type flags code topic size requestId",
+                "CONNECT 0 0 - 0 " + requestId("connect-1"),
+                "PUBLISH 1 0 " + uncached + " 128 " + requestId("publish-1"),
+                "DELIVERY_COMPLETE 0 40000 " + uncached + " 0 -",
+                "DELIVERY_COMPLETE 0 65535 - 0 -",
+                "MESSAGE_ARRIVED 2 0 " + cached + " 42 -"),
+                dumpAndDecode());
+    }
+
+    @Test
+    public void onlyTheMostRecentEventsAreKept() throws IOException {
+        MQTTFlightRecorder.setCapacity(3);
+
+        for (int i = 1; i <= 5; i++) {
+            MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_PUBLISH, 0, 0, null, i, null);
+        }
+
+        assertEquals(Arrays.asList(
+                "# capacity: 3, total events: 5, dumped: 3",
+                "# timestamp type flags code topic size requestId",
+                "PUBLISH 0 0 - 3 -",
+                "PUBLISH 0 0 - 4 -",
+                "PUBLISH 0 0 - 5 -"),
+                dumpAndDecode());
+    }
+
+    @Test
+    public void nothingIsRecordedWhenDisabled() throws IOException {
+        MQTTFlightRecorder.setEnabled(false);
+        MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_CONNECT, 0, 0, null, 0, null);
+
+        assertEquals(Arrays.asList(
+                "# capacity: 16, total events: 0, dumped: 0",
+                "# timestamp type flags code topic size requestId"),
+                dumpAndDecode());
+    }
+}
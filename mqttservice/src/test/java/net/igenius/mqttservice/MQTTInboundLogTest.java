@@ -0,0 +1,291 @@
+package net.igenius.mqttservice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MQTTInboundLogTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private long maxSizeBytes;
+    private long maxAgeMillis;
+    private File directory;
+
+    @Before
+    public void setUp() {
+        maxSizeBytes = MQTTInboundStore.MAX_SIZE_BYTES;
+        maxAgeMillis = MQTTInboundStore.MAX_AGE_MILLIS;
+        directory = new File(folder.getRoot(), "inbound");
+    }
+
+    @After
+    public void tearDown() {
+        MQTTInboundStore.MAX_SIZE_BYTES = maxSizeBytes;
+        MQTTInboundStore.MAX_AGE_MILLIS = maxAgeMillis;
+    }
+
+    private static byte[] payload(String value) {
+        return value.getBytes(UTF_8);
+    }
+
+    private static String[][] filters(String... topicFilters) {
+        String[][] levels = new String[topicFilters.length][];
+        for (int i = 0; i < topicFilters.length; i++) {
+            levels[i] = MQTTTopicCache.split(topicFilters[i]);
+        }
+        return levels;
+    }
+
+    /**
+     * Reads and commits all the messages matching the filters, as a replay does.
+     */
+    private static List<String> replay(MQTTInboundLog log, String[][] topicFilters, int batchSize) {
+        List<String> replayed = new ArrayList<>();
+
+        for (File segment : log.startReading()) {
+            MQTTInboundLog.Batch batch = null;
+
+            while (true) {
+                batch = batch == null ? log.read(segment, topicFilters, batchSize)
+                                      : log.readNext(batch, topicFilters, batchSize);
+                for (MQTTInboundLog.Message message : batch.messages) {
+                    replayed.add(message.topic + "=" + new String(message.payload, UTF_8));
+                }
+                log.commit(batch);
+
+                if (batch.endOfSegment)
+                    break;
+            }
+        }
+
+        return replayed;
+    }
+
+    private static List<String> messages(String topic, int from, int to) {
+        List<String> messages = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            messages.add(topic + "=" + i);
+        }
+        return messages;
+    }
+
+    @Test
+    public void messagesAreReplayedInOrderAndRemoved() throws IOException {
+        MQTTInboundLog log = new MQTTInboundLog(directory);
+        for (int i = 0; i < 10; i++) {
+            log.append("a/b", payload(String.valueOf(i)));
+        }
+
+        assertEquals(messages("a/b", 0, 10), replay(log, null, 3));
+        assertTrue(replay(log, null, 3).isEmpty());
+        assertEquals(0, log.startReading().size());
+    }
+
+    @Test
+    public void segmentsRotateAndOldestAreDeleted() throws IOException {
+        // each record is 8 + 4 + 3 + 4 + 4 + 4 = 27 bytes, so a segment holds 4 of them
+        MQTTInboundStore.MAX_SIZE_BYTES = 4 * 100;
+
+        MQTTInboundLog log = new MQTTInboundLog(directory);
+        for (int i = 1000; i < 1040; i++) {
+            log.append("a/b", payload(String.valueOf(i)));
+        }
+
+        List<File> segments = log.startReading();
+        long totalSize = 0;
+        for (File segment : segments) {
+            totalSize += segment.length();
+        }
+
+        assertTrue("segments: " + segments.size(), segments.size() > 1);
+        // the segment being written may exceed its share by the last record
+        assertTrue("total size: " + totalSize, totalSize <= MQTTInboundStore.MAX_SIZE_BYTES + 27);
+
+        List<String> replayed = replay(log, null, 50);
+        assertFalse(replayed.isEmpty());
+        // only the newest messages are kept, without holes
+        assertEquals(messages("a/b", 1040 - replayed.size(), 1040), replayed);
+    }
+
+    @Test
+    public void corruptedRecordsAreSkipped() throws IOException {
+        MQTTInboundLog log = new MQTTInboundLog(directory);
+        log.append("a/b", payload("0"));
+        log.append("a/b", payload("1"));
+        log.append("a/b", payload("2"));
+
+        File segment = log.startReading().get(0);
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            // payload of the second record, which starts after the first 24 bytes long one
+            long position = 24 + 8 + 4 + 3 + 4;
+            file.seek(position);
+            file.write('x');
+        } finally {
+            file.close();
+        }
+
+        assertEquals(payloads("a/b", "0", "2"), replay(log, null, 50));
+    }
+
+    @Test
+    public void truncatedLastRecordIsSkipped() throws IOException {
+        MQTTInboundLog log = new MQTTInboundLog(directory);
+        log.append("a/b", payload("0"));
+        log.append("a/b", payload("1"));
+
+        File segment = log.startReading().get(0);
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.setLength(file.length() - 2);
+        } finally {
+            file.close();
+        }
+
+        assertEquals(payloads("a/b", "0"), replay(log, null, 50));
+        assertEquals(0, log.startReading().size());
+    }
+
+    @Test
+    public void expiredMessagesAreSkipped() throws IOException {
+        MQTTInboundLog log = new MQTTInboundLog(directory);
+        log.append(System.currentTimeMillis() - 2 * MQTTInboundStore.MAX_AGE_MILLIS, "a/b", payload("old"));
+        log.append("a/b", payload("new"));
+
+        assertEquals(payloads("a/b", "new"), replay(log, null, 50));
+    }
+
+    @Test
+    public void uncommittedBatchIsReadAgain() throws IOException {
+        MQTTInboundLog log = new MQTTInboundLog(directory);
+        for (int i = 0; i < 5; i++) {
+            log.append("a/b", payload(String.valueOf(i)));
+        }
+
+        // the receiver gets unregistered before the batch is delivered
+        File segment = log.startReading().get(0);
+        MQTTInboundLog.Batch batch = log.read(segment, null, 2);
+        assertEquals(2, batch.messages.size());
+
+        // the next receiver gets the same messages, and the replay continues from there
+        segment = log.startReading().get(0);
+        batch = log.read(segment, null, 2);
+        assertEquals("0", new String(batch.messages.get(0).payload, UTF_8));
+        log.commit(batch);
+
+        batch = log.readNext(batch, null, 2);
+        assertEquals("2", new String(batch.messages.get(0).payload, UTF_8));
+        log.commit(batch);
+
+        // consumed records are skipped also after a restart of the process
+        log = new MQTTInboundLog(directory);
+        assertEquals(payloads("a/b", "4"), replay(log, null, 2));
+    }
+
+    @Test
+    public void messagesOfOtherTopicsAreKeptForOtherReceivers() throws IOException {
+        MQTTInboundLog log = new MQTTInboundLog(directory);
+        log.append("a/1", payload("0"));
+        log.append("b/1", payload("1"));
+        log.append("a/2", payload("2"));
+        log.append("$SYS/a", payload("3"));
+
+        List<String> replayed = replay(log, filters("a/#"), 50);
+        assertEquals(2, replayed.size());
+        assertEquals("a/1=0", replayed.get(0));
+        assertEquals("a/2=2", replayed.get(1));
+
+        replayed = replay(log, filters("+/1", "#"), 50);
+        assertEquals(1, replayed.size());
+        assertEquals("b/1=1", replayed.get(0));
+
+        replayed = replay(log, null, 50);
+        assertEquals(1, replayed.size());
+        assertEquals("$SYS/a=3", replayed.get(0));
+    }
+
+    @Test
+    public void messagesOfOtherTopicsAreNotMovedOrCopied() throws IOException {
+        MQTTInboundLog log = new MQTTInboundLog(directory);
+        for (int i = 0; i < 4; i++) {
+            log.append("a/" + i, payload(String.valueOf(i)));
+            log.append("b/" + i, payload(String.valueOf(i)));
+        }
+
+        File segment = log.startReading().get(0);
+        long length = segment.length();
+
+        assertEquals(4, replay(log, filters("a/#"), 3).size());
+
+        // nothing has been appended, and the segment is kept for the other receivers
+        assertEquals(1, log.startReading().size());
+        assertEquals(length, segment.length());
+
+        // a new message arrives after the first replay
+        log.append("b/4", payload("4"));
+
+        // arrival order is kept, and the segment is deleted once all its records are consumed
+        assertEquals(messagesOfTopics("b/", 0, 5), replay(log, filters("b/#"), 2));
+        assertFalse(segment.exists());
+        assertEquals(0, log.startReading().size());
+    }
+
+    @Test
+    public void segmentsWithExpiredAndConsumedRecordsAreDeleted() throws IOException {
+        MQTTInboundLog log = new MQTTInboundLog(directory);
+        log.append(System.currentTimeMillis() - 2 * MQTTInboundStore.MAX_AGE_MILLIS, "b/1", payload("old"));
+        log.append("a/1", payload("new"));
+
+        assertEquals(payloads("a/1", "new"), replay(log, filters("a/#"), 50));
+        assertEquals(0, log.startReading().size());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void clearDeletesEverything() throws IOException {
+        MQTTInboundLog log = new MQTTInboundLog(directory);
+        log.append("a/b", payload("0"));
+        log.append("a/b", payload("1"));
+
+        File segment = log.startReading().get(0);
+        log.commit(log.read(segment, null, 1));
+        log.append("a/b", payload("2"));
+        log.clear();
+
+        assertTrue(replay(log, null, 50).isEmpty());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    private static List<String> messagesOfTopics(String prefix, int from, int to) {
+        List<String> messages = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            messages.add(prefix + i + "=" + i);
+        }
+        return messages;
+    }
+
+    private static List<String> payloads(String topic, String... payloads) {
+        List<String> messages = new ArrayList<>();
+        for (String payload : payloads) {
+            messages.add(topic + "=" + payload);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,74 @@
+package net.igenius.mqttservice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MQTTInternedTopicTest {
+
+    private static boolean matches(String topicFilter, String topic) {
+        return new MQTTInternedTopic(topic, 0).matches(MQTTTopicCache.split(topicFilter));
+    }
+
+    @Test
+    public void exactFilters() {
+        assertTrue(matches("a/b/c", "a/b/c"));
+        assertFalse(matches("a/b/c", "a/b"));
+        assertFalse(matches("a/b", "a/b/c"));
+        assertFalse(matches("a/b/c", "a/b/d"));
+        assertFalse(matches("A/b", "a/b"));
+    }
+
+    @Test
+    public void singleLevelWildcard() {
+        assertTrue(matches("a/+/c", "a/b/c"));
+        assertTrue(matches("+/+", "a/b"));
+        assertTrue(matches("a/+", "a/b"));
+        assertFalse(matches("a/+", "a"));
+        assertFalse(matches("a/+", "a/b/c"));
+        assertFalse(matches("a/+/c", "a/b/d"));
+    }
+
+    @Test
+    public void multiLevelWildcard() {
+        assertTrue(matches("#", "a"));
+        assertTrue(matches("#", "a/b/c"));
+        assertTrue(matches("a/#", "a/b"));
+        assertTrue(matches("a/#", "a/b/c"));
+        assertTrue(matches("a/+/#", "a/b/c/d"));
+        assertFalse(matches("a/#", "b/a"));
+    }
+
+    @Test
+    public void multiLevelWildcardMatchesTheParentLevel() {
+        // unlike MqttTopic.isMatched, but as the MQTT 3.1.1 specification requires
+        assertTrue(matches("a/#", "a"));
+        assertTrue(matches("a/b/#", "a/b"));
+        assertFalse(matches("a/b/#", "a"));
+    }
+
+    @Test
+    public void emptyLevels() {
+        assertTrue(matches("+/a", "/a"));
+        assertTrue(matches("a/+/b", "a//b"));
+        assertTrue(matches("a//b", "a//b"));
+        assertTrue(matches("a/+", "a/"));
+        assertTrue(matches("#", "/"));
+        assertFalse(matches("a/b", "a/b/"));
+    }
+
+    @Test
+    public void dollarTopicsAreNotMatchedByFirstLevelWildcards() {
+        assertFalse(matches("#", "$SYS/broker/uptime"));
+        assertFalse(matches("+/broker/uptime", "$SYS/broker/uptime"));
+        assertFalse(matches("+/#", "$SYS/broker"));
+        assertTrue(matches("$SYS/#", "$SYS/broker/uptime"));
+        assertTrue(matches("$SYS/+/uptime", "$SYS/broker/uptime"));
+        assertTrue(matches("$SYS", "$SYS"));
+
+        // only the first level matters
+        assertTrue(matches("a/+", "a/$b"));
+        assertTrue(matches("a/#", "a/$b/c"));
+    }
+}
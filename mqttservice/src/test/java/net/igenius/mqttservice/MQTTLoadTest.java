@@ -0,0 +1,532 @@
+package net.igenius.mqttservice;
+
+import android.content.Intent;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sustained load and soak test of the library engine against a {@link MQTTLocalBroker}.
+ * Publishers generate messages at a fixed rate on their own topic, which go through the same
+ * path as in {@link MQTTService}: a {@link MQTTPublishScheduler} within the limits of
+ * {@link MQTTRateLimits}, then {@link MQTTPayloadCodecs} before being published. Every
+ * subscriber receives the messages of all the publishers, interns their topic in the
+ * {@link MQTTTopicCache} and decodes them, and the first subscriber, as if the app had no
+ * registered receiver, appends them to the {@link MQTTInboundLog} which backs
+ * {@link MQTTInboundStore}, replayed at the end. The clients use the same Paho engine and
+ * connection options as {@link MQTTService}, including automatic reconnection and
+ * resubscription, while the broker periodically drops all the connections. It reports
+ * throughput, end-to-end latency percentiles, publish queue delays, heap growth and the time
+ * needed to recover from each connection drop. Run it longer to use it as a soak test:
+ * <pre>
+ * ./gradlew :mqttservice:testDebugUnitTest --tests '*MQTTLoadTest' \
+ *     -Dmqtt.load.publishers=4 -Dmqtt.load.subscribers=4 -Dmqtt.load.payloadSize=256 \
+ *     -Dmqtt.load.qos=0 -Dmqtt.load.rate=100 -Dmqtt.load.globalLimit=0 -Dmqtt.load.codec=lz \
+ *     -Dmqtt.load.durationSeconds=3600 -Dmqtt.load.dropSeconds=20
+ * </pre>
+ * The rate is in messages per second for each publisher, the global limit in messages per
+ * second for all of them, or 0 for no limit, the codec is lz, deflate or none, and 0 drop
+ * seconds disable the connection drops.
+ */
+public class MQTTLoadTest {
+
+    private static final int PUBLISHERS = Integer.getInteger("mqtt.load.publishers", 4);
+    private static final int SUBSCRIBERS = Integer.getInteger("mqtt.load.subscribers", 4);
+    private static final int PAYLOAD_SIZE = Integer.getInteger("mqtt.load.payloadSize", 256);
+    private static final int QOS = Integer.getInteger("mqtt.load.qos", 0);
+    private static final int RATE = Integer.getInteger("mqtt.load.rate", 100);
+    private static final int GLOBAL_LIMIT = Integer.getInteger("mqtt.load.globalLimit", 0);
+    private static final String CODEC = System.getProperty("mqtt.load.codec", "lz");
+    private static final int DURATION_SECONDS = Integer.getInteger("mqtt.load.durationSeconds", 10);
+    private static final int DROP_SECONDS = Integer.getInteger("mqtt.load.dropSeconds", 4);
+
+    private static final String TOPIC_PREFIX = "load/";
+    private static final String TOPIC_FILTER = "load/#";
+    private static final int TIMESTAMP_SIZE = 8;
+    private static final long REPORT_INTERVAL_MILLIS = 10000;
+    private static final long RECOVERY_TIMEOUT_MILLIS = 60000;
+    private static final long DRAIN_MILLIS = 2000;
+
+    /**
+     * Lock-free log-linear histogram of latencies in microseconds, with 32 buckets for each
+     * power of two, so percentiles are within about 3% of the real value.
+     */
+    private static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 32;
+        private final AtomicLongArray mCounts = new AtomicLongArray(59 * SUB_BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(nanos / 1000, 0);
+            mCounts.incrementAndGet(indexOf(micros));
+            mCount.incrementAndGet();
+
+            long max = mMax.get();
+            while (micros > max && !mMax.compareAndSet(max, micros)) {
+                max = mMax.get();
+            }
+        }
+
+        private static int indexOf(long micros) {
+            if (micros < SUB_BUCKETS)
+                return (int) micros;
+
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            return (exponent - 4) * SUB_BUCKETS + (int) ((micros >> (exponent - 5)) & (SUB_BUCKETS - 1));
+        }
+
+        private static long valueOf(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+
+            int exponent = index / SUB_BUCKETS + 4;
+            return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - 5);
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        long getMaxMicros() {
+            return mMax.get();
+        }
+
+        /**
+         * Gets a percentile.
+         * @param percentile percentile, between 0 and 100
+         * @return lower bound of the bucket containing the percentile, in microseconds
+         */
+        long getPercentileMicros(double percentile) {
+            long rank = (long) Math.ceil(mCount.get() * percentile / 100);
+            long seen = 0;
+
+            for (int i = 0; i < mCounts.length(); i++) {
+                seen += mCounts.get(i);
+                if (seen >= rank && seen > 0)
+                    return valueOf(i);
+            }
+
+            return 0;
+        }
+    }
+
+    /**
+     * Message generated by a publisher, waiting in the scheduler.
+     */
+    private static class Publish {
+        final MqttAsyncClient client;
+        final String topic;
+        final byte[] payload;
+
+        Publish(MqttAsyncClient client, String topic, byte[] payload) {
+            this.client = client;
+            this.topic = topic;
+            this.payload = payload;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String mBrokerUrl;
+    private MQTTInboundLog mInboundLog;
+    private final LatencyHistogram mLatencies = new LatencyHistogram();
+    private final AtomicLong mPublished = new AtomicLong();
+    private final AtomicLong mNotPublished = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mPublishedBytes = new AtomicLong();
+    private final AtomicLong mEncodedBytes = new AtomicLong();
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mReceivedBytes = new AtomicLong();
+    private final AtomicLong mDecodeErrors = new AtomicLong();
+    private final AtomicLong mStored = new AtomicLong();
+    private final AtomicInteger mConnected = new AtomicInteger();
+    private final List<MqttAsyncClient> mClients = new ArrayList<>();
+    private volatile boolean mRunning = true;
+
+    @After
+    public void tearDown() {
+        MQTTRateLimits.clear();
+        MQTTPayloadCodecs.clear();
+        MQTTInboundStore.clearTopicFilters();
+        MQTTServiceMetrics.reset();
+    }
+
+    /**
+     * Connects a client with the same options used by {@link MQTTService}.
+     * @param subscribe true to subscribe to all the publishers topics on each connection
+     * @param store true to store the arrived messages in the inbound log
+     */
+    private MqttAsyncClient connect(String clientId, final boolean subscribe, final boolean store)
+            throws Exception {
+        final MqttAsyncClient client = new MqttAsyncClient(mBrokerUrl, clientId, new MemoryPersistence());
+
+        client.setCallback(new MqttCallbackExtended() {
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                if (subscribe) {
+                    try {
+                        // clean session, so subscriptions are lost with the connection
+                        client.subscribe(TOPIC_FILTER, QOS).waitForCompletion();
+                    } catch (MqttException exc) {
+                        System.err.println(client.getClientId() + " can't subscribe: " + exc);
+                        return;
+                    }
+                }
+                mConnected.incrementAndGet();
+            }
+
+            @Override
+            public void connectionLost(Throwable cause) {
+                mConnected.decrementAndGet();
+            }
+
+            @Override
+            public void messageArrived(String topicName, MqttMessage message) throws Exception {
+                MQTTInternedTopic topic = MQTTTopicCache.intern(topicName);
+
+                byte[] payload;
+                try {
+                    payload = MQTTPayloadCodecs.decode(topic, message.getPayload());
+                } catch (IllegalArgumentException exc) {
+                    mDecodeErrors.incrementAndGet();
+                    return;
+                }
+
+                long sent = 0;
+                for (int i = 0; i < TIMESTAMP_SIZE; i++) {
+                    sent = sent << 8 | (payload[i] & 0xff);
+                }
+
+                mLatencies.record(System.nanoTime() - sent);
+                mReceived.incrementAndGet();
+                mReceivedBytes.addAndGet(payload.length);
+
+                if (store && MQTTInboundStore.accepts(topic)) {
+                    mInboundLog.append(topic.getName(), payload);
+                    mStored.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setAutomaticReconnect(true);
+        options.setKeepAliveInterval(MQTTService.KEEP_ALIVE_INTERVAL);
+        options.setConnectionTimeout(MQTTService.CONNECT_TIMEOUT);
+        options.setMaxInflight(1000);
+        client.connect(options).waitForCompletion();
+
+        mClients.add(client);
+        return client;
+    }
+
+    /**
+     * Starts the thread which generates the messages of all the publishers and dispatches them
+     * through a {@link MQTTPublishScheduler}, like the worker thread of {@link MQTTService}.
+     */
+    private Thread startPublishing(final List<MqttAsyncClient> clients, final int payloadSize, final int rate) {
+        Thread publisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final Map<Intent, Publish> pending = new IdentityHashMap<>();
+
+                MQTTPublishScheduler scheduler = new MQTTPublishScheduler(new MQTTPublishScheduler.Dispatcher() {
+                    @Override
+                    public void dispatch(Intent intent) {
+                        Publish publish = pending.remove(intent);
+                        byte[] encoded = MQTTPayloadCodecs.encode(publish.topic, publish.payload);
+
+                        try {
+                            publish.client.publish(publish.topic, encoded, QOS, false);
+                            mPublished.incrementAndGet();
+                            mPublishedBytes.addAndGet(publish.payload.length);
+                            mEncodedBytes.addAndGet(encoded.length);
+                        } catch (MqttException exc) {
+                            // not connected or too many messages in flight
+                            mNotPublished.incrementAndGet();
+                        }
+                    }
+                });
+
+                byte[] template = MQTTPayloadCodecBenchmark.generateTelemetry(
+                        Math.max(payloadSize - TIMESTAMP_SIZE, 16), new Random(payloadSize));
+                long period = 1000000000L / rate;
+                long next = System.nanoTime();
+
+                while (mRunning) {
+                    long now = System.nanoTime();
+
+                    while (next <= now) {
+                        for (int i = 0; i < clients.size(); i++) {
+                            byte[] payload = new byte[TIMESTAMP_SIZE + template.length];
+                            System.arraycopy(template, 0, payload, TIMESTAMP_SIZE, template.length);
+                            long timestamp = System.nanoTime();
+                            for (int j = TIMESTAMP_SIZE - 1; j >= 0; j--) {
+                                payload[j] = (byte) timestamp;
+                                timestamp >>>= 8;
+                            }
+
+                            String topic = TOPIC_PREFIX + i;
+                            Intent intent = new Intent();
+                            if (scheduler.enqueue(topic, intent, false)) {
+                                pending.put(intent, new Publish(clients.get(i), topic, payload));
+                            } else {
+                                mRejected.incrementAndGet();
+                            }
+                        }
+                        next += period;
+                    }
+
+                    long delayMillis = scheduler.dispatch();
+                    long waitNanos = next - System.nanoTime();
+                    if (delayMillis >= 0) {
+                        waitNanos = Math.min(waitNanos, delayMillis * 1000000);
+                    }
+
+                    if (waitNanos > 0) {
+                        try {
+                            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                        } catch (InterruptedException exc) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "MQTTLoadTest-publisher");
+
+        publisher.start();
+        return publisher;
+    }
+
+    private long replayInboundLog() {
+        long replayed = 0;
+
+        for (File segment : mInboundLog.startReading()) {
+            MQTTInboundLog.Batch batch = null;
+
+            while (true) {
+                batch = batch == null
+                        ? mInboundLog.read(segment, null, MQTTInboundStore.REPLAY_BATCH_SIZE)
+                        : mInboundLog.readNext(batch, null, MQTTInboundStore.REPLAY_BATCH_SIZE);
+                replayed += batch.messages.size();
+                mInboundLog.commit(batch);
+
+                if (batch.endOfSegment)
+                    break;
+            }
+        }
+
+        return replayed;
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long getUsedHeapAfterGc() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return getUsedHeap();
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.US, "%.2f ms", micros / 1000.0);
+    }
+
+    private void printProgress(long startNanos, long peakHeap) {
+        System.out.println(String.format(Locale.US,
+                "%5.0f s: published %d, not published %d, received %d, connected %d, heap %s (peak %s), p99 %s",
+                (System.nanoTime() - startNanos) / 1e9, mPublished.get(), mNotPublished.get(), mReceived.get(),
+                mConnected.get(), megabytes(getUsedHeap()), megabytes(peakHeap),
+                millis(mLatencies.getPercentileMicros(99))));
+    }
+
+    @Test
+    public void load() throws Exception {
+        final int payloadSize = Math.max(PAYLOAD_SIZE, TIMESTAMP_SIZE);
+
+        if ("lz".equals(CODEC)) {
+            MQTTPayloadCodecs.register(TOPIC_FILTER, new MQTTLZCodec());
+        } else if ("deflate".equals(CODEC)) {
+            MQTTPayloadCodecs.register(TOPIC_FILTER, new MQTTDeflateCodec());
+        }
+
+        if (GLOBAL_LIMIT > 0) {
+            MQTTRateLimits.setGlobalLimit(GLOBAL_LIMIT, GLOBAL_LIMIT);
+        }
+
+        MQTTInboundStore.addTopicFilter(TOPIC_FILTER);
+        mInboundLog = new MQTTInboundLog(folder.newFolder("inbound"));
+        MQTTServiceMetrics.reset();
+
+        MQTTLocalBroker broker = new MQTTLocalBroker(0);
+        broker.start();
+        mBrokerUrl = broker.getUrl();
+
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            connect("load-subscriber-" + i, true, i == 0);
+        }
+
+        List<MqttAsyncClient> publisherClients = new ArrayList<>();
+        for (int i = 0; i < PUBLISHERS; i++) {
+            publisherClients.add(connect("load-publisher-" + i, false, false));
+        }
+
+        // measured with all the clients connected, so the growth is only due to the load
+        long initialHeap = getUsedHeapAfterGc();
+
+        Thread publishing = startPublishing(publisherClients, payloadSize, RATE);
+
+        System.out.println(String.format(Locale.US,
+                "publishers: %d, subscribers: %d, payload: %d bytes, QoS %d, %d messages/s per publisher, "
+                        + "global limit: %d messages/s, codec: %s, %d s, connections dropped every %d s",
+                PUBLISHERS, SUBSCRIBERS, payloadSize, QOS, RATE, GLOBAL_LIMIT, CODEC,
+                DURATION_SECONDS, DROP_SECONDS));
+
+        int clients = PUBLISHERS + SUBSCRIBERS;
+        List<Long> recoveries = new ArrayList<>();
+        int notRecovered = 0;
+        long peakHeap = 0;
+        long start = System.nanoTime();
+        long end = start + DURATION_SECONDS * 1000000000L;
+        long nextDrop = DROP_SECONDS > 0 ? start + DROP_SECONDS * 1000000000L : Long.MAX_VALUE;
+        long nextReport = start + REPORT_INTERVAL_MILLIS * 1000000L;
+
+        while (System.nanoTime() < end) {
+            Thread.sleep(10);
+            peakHeap = Math.max(peakHeap, getUsedHeap());
+
+            long now = System.nanoTime();
+
+            if (now >= nextReport) {
+                printProgress(start, peakHeap);
+                nextReport += REPORT_INTERVAL_MILLIS * 1000000L;
+            }
+
+            if (now >= nextDrop) {
+                broker.dropConnections();
+                long dropped = System.nanoTime();
+
+                // wait for all the clients to lose the connection, then to get it back
+                while (mConnected.get() == clients
+                        && System.nanoTime() - dropped < RECOVERY_TIMEOUT_MILLIS * 1000000L) {
+                    Thread.sleep(1);
+                }
+                while (mConnected.get() < clients
+                        && System.nanoTime() - dropped < RECOVERY_TIMEOUT_MILLIS * 1000000L) {
+                    Thread.sleep(1);
+                }
+
+                long recovery = (System.nanoTime() - dropped) / 1000000;
+                if (mConnected.get() < clients) {
+                    System.err.println("Clients not recovered after " + recovery + " ms");
+                    notRecovered++;
+                } else {
+                    recoveries.add(recovery);
+                }
+                nextDrop = System.nanoTime() + DROP_SECONDS * 1000000000L;
+            }
+        }
+
+        mRunning = false;
+        publishing.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        Thread.sleep(DRAIN_MILLIS);
+        long finalHeap = getUsedHeapAfterGc();
+
+        for (MqttAsyncClient client : mClients) {
+            client.disconnect().waitForCompletion();
+            client.close();
+        }
+        broker.stop();
+
+        long replayed = replayInboundLog();
+        long expected = mPublished.get() * SUBSCRIBERS;
+
+        System.out.println(String.format(Locale.US,
+                "published: %d (%.0f msg/s), not published: %d, rejected: %d, received: %d of %d "
+                        + "(%.0f msg/s, %.2f MB/s), decode errors: %d",
+                mPublished.get(), mPublished.get() / elapsed, mNotPublished.get(), mRejected.get(),
+                mReceived.get(), expected, mReceived.get() / elapsed,
+                mReceivedBytes.get() / elapsed / (1024 * 1024), mDecodeErrors.get()));
+
+        if (mEncodedBytes.get() > 0) {
+            System.out.println(String.format(Locale.US, "codec %s: %s published as %s (ratio %.2f)",
+                    CODEC, megabytes(mPublishedBytes.get()), megabytes(mEncodedBytes.get()),
+                    (double) mPublishedBytes.get() / mEncodedBytes.get()));
+        }
+
+        System.out.println("publish queue delay p50: " + MQTTServiceMetrics.getPublishQueueDelayMillis(50)
+                + " ms, p99: " + MQTTServiceMetrics.getPublishQueueDelayMillis(99)
+                + " ms, max: " + MQTTServiceMetrics.getMaxPublishQueueDelayMillis()
+                + " ms, throttled: " + MQTTServiceMetrics.getThrottledPublishes());
+
+        if (mLatencies.getCount() > 0) {
+            System.out.println("latency p50: " + millis(mLatencies.getPercentileMicros(50))
+                    + ", p99: " + millis(mLatencies.getPercentileMicros(99))
+                    + ", p999: " + millis(mLatencies.getPercentileMicros(99.9))
+                    + ", max: " + millis(mLatencies.getMaxMicros()));
+        }
+
+        System.out.println("stored: " + mStored.get() + ", replayed: " + replayed
+                + " (the oldest are dropped beyond " + megabytes(MQTTInboundStore.MAX_SIZE_BYTES)
+                + "), cached topics: " + MQTTTopicCache.size());
+
+        System.out.println("heap before: " + megabytes(initialHeap) + ", after: " + megabytes(finalHeap)
+                + ", growth: " + megabytes(finalHeap - initialHeap) + ", peak: " + megabytes(peakHeap));
+
+        if (!recoveries.isEmpty()) {
+            long total = 0;
+            long max = 0;
+            for (long recovery : recoveries) {
+                total += recovery;
+                max = Math.max(max, recovery);
+            }
+            System.out.println(String.format(Locale.US,
+                    "connection drops: %d, recovery average: %d ms, max: %d ms",
+                    recoveries.size(), total / recoveries.size(), max));
+        }
+
+        assertEquals("connection drops not recovered", 0, notRecovered);
+        assertEquals("decode errors", 0, mDecodeErrors.get());
+        assertTrue("no messages received", mReceived.get() > 0);
+        assertTrue("no messages replayed", replayed > 0);
+    }
+}
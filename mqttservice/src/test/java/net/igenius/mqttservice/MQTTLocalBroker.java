@@ -0,0 +1,350 @@
+package net.igenius.mqttservice;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal in-process MQTT 3.1.1 broker, listening on the loopback interface, to be used as a
+ * local stand-in broker by the JVM tests, like {@link MQTTRpcThroughputTest} and
+ * {@link MQTTLoadTest}.
+ * It supports QoS 0 and 1 (QoS 2 publishes are accepted and delivered with QoS 1), wildcard
+ * subscriptions, keep alive pings and forced connection drops. It does not support retained
+ * messages, wills and persistent sessions.
+ */
+public class MQTTLocalBroker {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int CONNECT = 1;
+    private static final int PUBLISH = 3;
+    private static final int PUBREL = 6;
+    private static final int SUBSCRIBE = 8;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int PINGREQ = 12;
+    private static final int DISCONNECT = 14;
+
+    private static class Subscription {
+        final String topicFilter;
+        final int qos;
+
+        Subscription(String topicFilter, int qos) {
+            this.topicFilter = topicFilter;
+            this.qos = qos;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final CopyOnWriteArrayList<Session> mSessions = new CopyOnWriteArrayList<>();
+    private final AtomicLong mRoutedMessages = new AtomicLong();
+    private volatile boolean mRunning = false;
+
+    /**
+     * Creates a new broker.
+     * @param port port on which to listen, or 0 to use any free port
+     * @throws IOException if the port can't be opened
+     */
+    public MQTTLocalBroker(int port) throws IOException {
+        mServerSocket = new ServerSocket(port, 128, InetAddress.getByName("127.0.0.1"));
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Gets the URL to use to connect to this broker.
+     * @return broker URL
+     */
+    public String getUrl() {
+        return "tcp://127.0.0.1:" + getPort();
+    }
+
+    public int getConnectionCount() {
+        return mSessions.size();
+    }
+
+    /**
+     * Gets the number of messages delivered to subscribers since the broker started.
+     * @return number of delivered messages
+     */
+    public long getRoutedMessages() {
+        return mRoutedMessages.get();
+    }
+
+    /**
+     * Starts accepting connections on a background thread.
+     */
+    public void start() {
+        mRunning = true;
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mRunning) {
+                    try {
+                        Socket socket = mServerSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        Session session = new Session(socket);
+                        mSessions.add(session);
+                        session.start();
+                    } catch (IOException exc) {
+                        if (mRunning) {
+                            MQTTServiceLogger.error("MQTTLocalBroker", "Error while accepting connection", exc);
+                        }
+                    }
+                }
+            }
+        }, "MQTTLocalBroker-acceptor");
+
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Abruptly closes all the client connections, to simulate network failures.
+     */
+    public void dropConnections() {
+        for (Session session : mSessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * Stops the broker and closes all the client connections.
+     */
+    public void stop() {
+        mRunning = false;
+
+        try {
+            mServerSocket.close();
+        } catch (IOException exc) {
+            MQTTServiceLogger.error("MQTTLocalBroker", "Error while closing server socket", exc);
+        }
+
+        dropConnections();
+    }
+
+    private void route(String topic, byte[] topicBytes, int qos, byte[] payload, int offset, int length) {
+        for (Session session : mSessions) {
+            int deliveryQos = -1;
+
+            for (Subscription subscription : session.mSubscriptions) {
+                if (MqttTopic.isMatched(subscription.topicFilter, topic)) {
+                    deliveryQos = Math.max(deliveryQos, Math.min(qos, subscription.qos));
+                }
+            }
+
+            if (deliveryQos >= 0) {
+                session.deliver(topicBytes, Math.min(deliveryQos, 1), payload, offset, length);
+                mRoutedMessages.incrementAndGet();
+            }
+        }
+    }
+
+    private static int readUnsignedShort(byte[] data, int index) {
+        return (data[index] & 0xff) << 8 | (data[index + 1] & 0xff);
+    }
+
+    private class Session implements Runnable {
+
+        private final Socket mSocket;
+        private final DataInputStream mIn;
+        private final OutputStream mOut;
+        private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+        private int mNextPacketId = 1;
+
+        Session(Socket socket) throws IOException {
+            mSocket = socket;
+            mIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            mOut = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void start() {
+            Thread thread = new Thread(this, "MQTTLocalBroker-session");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void close() {
+            mSessions.remove(this);
+
+            try {
+                mSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    int header = mIn.read();
+                    if (header < 0)
+                        break;
+
+                    byte[] body = new byte[readRemainingLength()];
+                    mIn.readFully(body);
+
+                    if (!onPacket(header, body))
+                        break;
+                }
+            } catch (IOException ignored) {
+                // connection closed or dropped
+            } finally {
+                close();
+            }
+        }
+
+        private int readRemainingLength() throws IOException {
+            int length = 0;
+            int multiplier = 1;
+            int b;
+
+            do {
+                b = mIn.read();
+                if (b < 0)
+                    throw new EOFException();
+                length += (b & 0x7f) * multiplier;
+                multiplier *= 128;
+            } while ((b & 0x80) != 0);
+
+            return length;
+        }
+
+        private boolean onPacket(int header, byte[] body) throws IOException {
+            switch (header >>> 4) {
+                case CONNECT:
+                    send(new byte[]{0x20, 2, 0, 0});
+                    return true;
+
+                case PUBLISH: {
+                    int qos = (header >>> 1) & 0x03;
+                    int topicLength = readUnsignedShort(body, 0);
+                    String topic = new String(body, 2, topicLength, UTF_8);
+                    int index = 2 + topicLength;
+
+                    if (qos > 0) {
+                        int packetId = readUnsignedShort(body, index);
+                        index += 2;
+                        // PUBACK for QoS 1, PUBREC for QoS 2
+                        send(new byte[]{(byte) (qos == 1 ? 0x40 : 0x50), 2,
+                                (byte) (packetId >>> 8), (byte) packetId});
+                    }
+
+                    byte[] topicBytes = new byte[topicLength];
+                    System.arraycopy(body, 2, topicBytes, 0, topicLength);
+                    route(topic, topicBytes, qos, body, index, body.length - index);
+                    return true;
+                }
+
+                case PUBREL:
+                    send(new byte[]{0x70, 2, body[0], body[1]});
+                    return true;
+
+                case SUBSCRIBE: {
+                    int index = 2;
+                    int count = 0;
+                    byte[] granted = new byte[body.length];
+
+                    while (index < body.length) {
+                        int length = readUnsignedShort(body, index);
+                        String topicFilter = new String(body, index + 2, length, UTF_8);
+                        int qos = Math.min(body[index + 2 + length] & 0x03, 1);
+                        index += 3 + length;
+
+                        mSubscriptions.add(new Subscription(topicFilter, qos));
+                        granted[count++] = (byte) qos;
+                    }
+
+                    byte[] suback = new byte[4 + count];
+                    suback[0] = (byte) 0x90;
+                    suback[1] = (byte) (2 + count);
+                    suback[2] = body[0];
+                    suback[3] = body[1];
+                    System.arraycopy(granted, 0, suback, 4, count);
+                    send(suback);
+                    return true;
+                }
+
+                case UNSUBSCRIBE: {
+                    int index = 2;
+
+                    while (index < body.length) {
+                        int length = readUnsignedShort(body, index);
+                        String topicFilter = new String(body, index + 2, length, UTF_8);
+                        index += 2 + length;
+
+                        for (Subscription subscription : mSubscriptions) {
+                            if (subscription.topicFilter.equals(topicFilter)) {
+                                mSubscriptions.remove(subscription);
+                            }
+                        }
+                    }
+
+                    send(new byte[]{(byte) 0xB0, 2, body[0], body[1]});
+                    return true;
+                }
+
+                case PINGREQ:
+                    send(new byte[]{(byte) 0xD0, 0});
+                    return true;
+
+                case DISCONNECT:
+                    return false;
+
+                default:
+                    // acknowledgements of messages delivered to this client
+                    return true;
+            }
+        }
+
+        private synchronized void send(byte[] packet) throws IOException {
+            mOut.write(packet);
+            mOut.flush();
+        }
+
+        synchronized void deliver(byte[] topic, int qos, byte[] payload, int offset, int length) {
+            int remainingLength = 2 + topic.length + (qos > 0 ? 2 : 0) + length;
+
+            try {
+                mOut.write(0x30 | (qos << 1));
+
+                int value = remainingLength;
+                do {
+                    int b = value % 128;
+                    value /= 128;
+                    mOut.write(value > 0 ? b | 0x80 : b);
+                } while (value > 0);
+
+                mOut.write(topic.length >>> 8);
+                mOut.write(topic.length);
+                mOut.write(topic);
+
+                if (qos > 0) {
+                    int packetId = mNextPacketId;
+                    mNextPacketId = mNextPacketId == 0xffff ? 1 : mNextPacketId + 1;
+                    mOut.write(packetId >>> 8);
+                    mOut.write(packetId);
+                }
+
+                mOut.write(payload, offset, length);
+                mOut.flush();
+
+            } catch (IOException exc) {
+                close();
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package net.igenius.mqttservice;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Measures bytes saved against CPU time spent by the built-in payload codecs, on JSON
+ * telemetry-like payloads of different sizes. Set more iterations for stable numbers:
+ * <pre>
+ * ./gradlew :mqttservice:testDebugUnitTest --tests '*MQTTPayloadCodecBenchmark' -Dmqtt.benchmark.iterations=5000
+ * </pre>
+ */
+public class MQTTPayloadCodecBenchmark {
+
+    private static final int ITERATIONS = Integer.getInteger("mqtt.benchmark.iterations", 500);
+    private static final int WARMUP_ITERATIONS = ITERATIONS / 2;
+
+    @Test
+    public void benchmark() {
+        MQTTPayloadCodec[] codecs = {new MQTTDeflateCodec(), new MQTTLZCodec()};
+        int[] sizes = {128, 1024, 8 * 1024, 64 * 1024};
+
+        System.out.println(String.format(Locale.US, "%-8s %8s %10s %8s %12s %12s %14s",
+                "codec", "size", "encoded", "ratio", "enc us/op", "dec us/op", "saved KB/cpu s"));
+
+        for (int size : sizes) {
+            byte[] payload = generateTelemetry(size, new Random(size));
+
+            for (MQTTPayloadCodec codec : codecs) {
+                run(codec, payload);
+            }
+        }
+    }
+
+    private static void run(MQTTPayloadCodec codec, byte[] payload) {
+        MQTTPayloadBuffer buffer = MQTTPayloadBuffer.obtain();
+        byte[] decoded = new byte[payload.length];
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            buffer.reset();
+            codec.encode(payload, 0, payload.length, buffer);
+            codec.decode(buffer.getBuffer(), 0, buffer.size(), decoded);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            buffer.reset();
+            codec.encode(payload, 0, payload.length, buffer);
+        }
+        long encodeNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        int encodedSize = buffer.size();
+        byte[] encoded = buffer.toByteArray();
+        buffer.recycle();
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            codec.decode(encoded, 0, encoded.length, decoded);
+        }
+        long decodeNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        assertArrayEquals(codec.getClass().getSimpleName() + " round trip", payload, decoded);
+
+        double savedKbPerCpuSecond = (payload.length - encodedSize) / 1024.0
+                / ((encodeNanos + decodeNanos) / 1e9);
+
+        System.out.println(String.format(Locale.US, "%-8s %8d %10d %8.2f %12.1f %12.1f %14.0f",
+                codec.getClass().getSimpleName().replace("MQTT", "").replace("Codec", ""),
+                payload.length, encodedSize, (double) payload.length / encodedSize,
+                encodeNanos / 1000.0, decodeNanos / 1000.0, savedKbPerCpuSecond));
+    }
+
+    static byte[] generateTelemetry(int size, Random random) {
+        StringBuilder json = new StringBuilder(size + 128);
+        json.append("{\"device\":\"sensor-0042\",\"samples\":[");
+        long timestamp = 1500000000000L;
+
+        while (json.length() < size - 2) {
+            timestamp += 1000 + random.nextInt(10);
+            json.append("{\"ts\":").append(timestamp)
+                .append(",\"temperature\":").append(20 + random.nextInt(50) / 10.0)
+                .append(",\"humidity\":").append(40 + random.nextInt(20))
+                .append(",\"status\":\"").append(random.nextInt(10) == 0 ? "warning" : "ok")
+                .append("\"},");
+        }
+
+        json.setLength(Math.min(json.length(), size - 2));
+        json.append("]}");
+        return json.toString().getBytes(Charset.forName("UTF-8"));
+    }
+}
@@ -0,0 +1,235 @@
+package net.igenius.mqttservice;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class MQTTPayloadCodecsTest {
+
+    private static final MQTTPayloadCodec[] CODECS = {new MQTTDeflateCodec(), new MQTTLZCodec()};
+
+    @After
+    public void tearDown() {
+        MQTTPayloadCodecs.clear();
+    }
+
+    private static byte[] telemetry(int size) {
+        return MQTTPayloadCodecBenchmark.generateTelemetry(size, new Random(size));
+    }
+
+    private static byte[] random(int size) {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+
+    private static byte[] encode(MQTTPayloadCodec codec, byte[] payload) {
+        MQTTPayloadBuffer buffer = MQTTPayloadBuffer.obtain();
+        try {
+            codec.encode(payload, 0, payload.length, buffer);
+            return buffer.toByteArray();
+        } finally {
+            buffer.recycle();
+        }
+    }
+
+    private static byte[] decode(MQTTPayloadCodec codec, byte[] encoded, int length) {
+        byte[] decoded = new byte[length];
+        codec.decode(encoded, 0, encoded.length, decoded);
+        return decoded;
+    }
+
+    @Test
+    public void codecsRoundTrip() {
+        byte[] repeated = new byte[5000];
+        Arrays.fill(repeated, (byte) 'a');
+
+        byte[][] payloads = {new byte[0], new byte[]{42}, "abc".getBytes(Charset.forName("UTF-8")),
+                telemetry(128), telemetry(64 * 1024), random(1000), repeated};
+
+        for (MQTTPayloadCodec codec : CODECS) {
+            for (byte[] payload : payloads) {
+                byte[] decoded = decode(codec, encode(codec, payload), payload.length);
+                assertArrayEquals(codec.getClass().getSimpleName(), payload, decoded);
+            }
+        }
+    }
+
+    @Test
+    public void codecsRoundTripAtAnOffset() {
+        byte[] payload = telemetry(2048);
+
+        for (MQTTPayloadCodec codec : CODECS) {
+            MQTTPayloadBuffer buffer = MQTTPayloadBuffer.obtain();
+            buffer.write(new byte[]{1, 2, 3}, 0, 3);
+            codec.encode(payload, 0, payload.length, buffer);
+
+            byte[] decoded = new byte[payload.length];
+            codec.decode(buffer.getBuffer(), 3, buffer.size() - 3, decoded);
+            buffer.recycle();
+
+            assertArrayEquals(codec.getClass().getSimpleName(), payload, decoded);
+        }
+    }
+
+    @Test
+    public void truncatedFramesAreRejected() {
+        byte[] payload = telemetry(1024);
+
+        for (MQTTPayloadCodec codec : CODECS) {
+            byte[] encoded = encode(codec, payload);
+
+            for (int length = 0; length < encoded.length; length++) {
+                try {
+                    decode(codec, Arrays.copyOf(encoded, length), payload.length);
+                    fail(codec.getClass().getSimpleName() + " decoded a frame truncated at " + length);
+                } catch (IllegalArgumentException expected) {
+                }
+            }
+        }
+    }
+
+    @Test
+    public void corruptFramesAreRejected() {
+        byte[] payload = telemetry(1024);
+
+        for (MQTTPayloadCodec codec : CODECS) {
+            byte[] encoded = encode(codec, payload);
+
+            // a longer decoded length than the real one
+            try {
+                decode(codec, encoded, payload.length + 1);
+                fail(codec.getClass().getSimpleName() + " decoded more bytes than encoded");
+            } catch (IllegalArgumentException expected) {
+            }
+
+            // trailing garbage
+            try {
+                decode(codec, Arrays.copyOf(encoded, encoded.length + 1), payload.length);
+                fail(codec.getClass().getSimpleName() + " decoded a frame with trailing bytes");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+
+        // LZ match pointing before the start of the output
+        try {
+            decode(new MQTTLZCodec(), new byte[]{0x10, 'a', 0x10, 0x00}, 10);
+            fail("LZ decoded a match out of bounds");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        // not a deflate stream
+        try {
+            decode(new MQTTDeflateCodec(), new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff}, 10);
+            fail("Deflate decoded an invalid stream");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void encodedPayloadsHaveTheCodecHeader() {
+        MQTTPayloadCodecs.register("telemetry/#", new MQTTLZCodec());
+        MQTTPayloadCodecs.register("logs/+", new MQTTDeflateCodec());
+
+        byte[] payload = telemetry(4096);
+
+        byte[] lz = MQTTPayloadCodecs.encode("telemetry/device/1", payload);
+        assertEquals((byte) MQTTPayloadCodecs.MAGIC, lz[0]);
+        assertEquals(MQTTLZCodec.ID, lz[1]);
+        assertArrayEquals(payload, MQTTPayloadCodecs.decode("telemetry/device/1", lz));
+
+        byte[] deflate = MQTTPayloadCodecs.encode("logs/app", payload);
+        assertEquals((byte) MQTTPayloadCodecs.MAGIC, deflate[0]);
+        assertEquals(MQTTDeflateCodec.ID, deflate[1]);
+        assertArrayEquals(payload, MQTTPayloadCodecs.decode("logs/app", deflate));
+
+        // the codec is detected from the header, not from the topic
+        assertArrayEquals(payload, MQTTPayloadCodecs.decode("logs/app", lz));
+    }
+
+    @Test
+    public void payloadsAreSentAsTheyAreWhenNotWorthEncoding() {
+        MQTTPayloadCodecs.register("telemetry/#", new MQTTDeflateCodec());
+
+        byte[] small = telemetry(MQTTPayloadCodecs.MIN_PAYLOAD_SIZE - 1);
+        assertSame(small, MQTTPayloadCodecs.encode("telemetry/1", small));
+
+        byte[] incompressible = random(4096);
+        assertSame(incompressible, MQTTPayloadCodecs.encode("telemetry/1", incompressible));
+
+        byte[] other = telemetry(4096);
+        assertSame(other, MQTTPayloadCodecs.encode("other/1", other));
+
+        byte[] empty = new byte[0];
+        assertSame(empty, MQTTPayloadCodecs.encode("telemetry/1", empty));
+        assertSame(empty, MQTTPayloadCodecs.decode("telemetry/1", empty));
+    }
+
+    @Test
+    public void payloadsWithoutHeaderAreDeliveredAsTheyAre() {
+        MQTTPayloadCodecs.register("telemetry/#", new MQTTDeflateCodec());
+
+        byte[] text = telemetry(4096);
+        assertSame(text, MQTTPayloadCodecs.decode("telemetry/1", text));
+
+        // encoded payloads arriving on topics without codecs are not touched
+        byte[] encoded = MQTTPayloadCodecs.encode("telemetry/1", text);
+        assertSame(encoded, MQTTPayloadCodecs.decode("other/1", encoded));
+    }
+
+    @Test
+    public void invalidHeadersAreRejected() {
+        MQTTPayloadCodecs.register("telemetry/#", new MQTTDeflateCodec());
+
+        byte[][] invalid = {
+                // unknown codec ID
+                {(byte) MQTTPayloadCodecs.MAGIC, 99, 10, 0},
+                // length without end
+                {(byte) MQTTPayloadCodecs.MAGIC, MQTTDeflateCodec.ID, (byte) 0x80},
+                // length over the limit
+                {(byte) MQTTPayloadCodecs.MAGIC, MQTTDeflateCodec.ID, (byte) 0xff, (byte) 0xff,
+                        (byte) 0xff, (byte) 0x7f},
+        };
+
+        for (byte[] payload : invalid) {
+            try {
+                MQTTPayloadCodecs.decode("telemetry/1", payload);
+                fail("Decoded invalid header " + Arrays.toString(payload));
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void codecIdsMustBeUnique() {
+        MQTTPayloadCodecs.register("a/#", new MQTTDeflateCodec());
+        MQTTPayloadCodecs.register("b/#", new MQTTDeflateCodec(9));
+
+        try {
+            MQTTPayloadCodecs.register("c/#", new MQTTPayloadCodec() {
+                @Override
+                public int getId() {
+                    return MQTTDeflateCodec.ID;
+                }
+
+                @Override
+                public void encode(byte[] input, int offset, int length, MQTTPayloadBuffer output) {
+                }
+
+                @Override
+                public void decode(byte[] input, int offset, int length, byte[] output) {
+                }
+            });
+            fail("Registered two different codecs with the same ID");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package net.igenius.mqttservice;
+
+import android.content.Intent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MQTTPublishSchedulerTest {
+
+    private final List<Intent> dispatched = new ArrayList<>();
+    private final Map<Intent, String> labels = new IdentityHashMap<>();
+    private MQTTPublishScheduler scheduler;
+    private int maxQueuedPerTopic;
+
+    @Before
+    public void setUp() {
+        maxQueuedPerTopic = MQTTRateLimits.MAX_QUEUED_PER_TOPIC;
+        MQTTServiceMetrics.reset();
+        MQTTDeferredPublishing.addTopicFilter("telemetry/#");
+        scheduler = new MQTTPublishScheduler(new MQTTPublishScheduler.Dispatcher() {
+            @Override
+            public void dispatch(Intent intent) {
+                dispatched.add(intent);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        MQTTDeferredPublishing.clearTopicFilters();
+        MQTTRateLimits.clear();
+        MQTTRateLimits.MAX_QUEUED_PER_TOPIC = maxQueuedPerTopic;
+    }
+
+    /**
+     * Queues publishes whose intents are labeled with the given letter.
+     */
+    private void enqueue(String topic, String label, int count) {
+        for (int i = 0; i < count; i++) {
+            Intent intent = new Intent();
+            labels.put(intent, label);
+            assertTrue(scheduler.enqueue(topic, intent, false));
+        }
+    }
+
+    private String getDispatchedLabels() {
+        StringBuilder result = new StringBuilder();
+        for (Intent intent : dispatched) {
+            result.append(labels.get(intent));
+        }
+        return result.toString();
+    }
+
+    // limits of 1 message per second don't refill while a test runs, so only the burst is sent
+
+    @Test
+    public void topicLimitHoldsBackOnlyItsTopics() {
+        MQTTRateLimits.addTopicRule("limited/#", 1, 2, 1);
+
+        enqueue("limited/1", "l", 5);
+        enqueue("free/1", "f", 3);
+
+        long waitMillis = scheduler.dispatch();
+
+        // the limited topic sends its burst, then the free one goes on alone
+        assertEquals("lflff", getDispatchedLabels());
+        assertTrue("wait: " + waitMillis, waitMillis > 500 && waitMillis <= 1000);
+        assertEquals(1, MQTTServiceMetrics.getThrottledPublishes());
+
+        // still no tokens, and the same publish is not counted as throttled again
+        scheduler.dispatch();
+        assertEquals(5, dispatched.size());
+        assertEquals(1, MQTTServiceMetrics.getThrottledPublishes());
+    }
+
+    @Test
+    public void globalLimitHoldsBackAllTopics() {
+        MQTTRateLimits.setGlobalLimit(1, 3);
+
+        enqueue("a/1", "a", 5);
+        enqueue("b/1", "b", 5);
+
+        long waitMillis = scheduler.dispatch();
+
+        assertEquals("aba", getDispatchedLabels());
+        assertTrue("wait: " + waitMillis, waitMillis > 500 && waitMillis <= 1000);
+        assertEquals(1, MQTTServiceMetrics.getThrottledPublishes());
+    }
+
+    @Test
+    public void topicsTakeTurnsByWeight() {
+        MQTTRateLimits.addTopicRule("heavy/#", 0, 0, 3);
+
+        // the chatty topic is queued first, but can't starve the others
+        enqueue("chatty/1", "c", 100);
+        enqueue("heavy/1", "h", 6);
+        enqueue("light/1", "l", 4);
+
+        assertEquals(-1, scheduler.dispatch());
+        assertEquals(110, dispatched.size());
+        assertEquals("chhhlchhhlclcl", getDispatchedLabels().substring(0, 14));
+    }
+
+    @Test
+    public void fullTopicQueuesRejectPublishes() {
+        MQTTRateLimits.MAX_QUEUED_PER_TOPIC = 3;
+
+        enqueue("a/1", "a", 3);
+        assertFalse(scheduler.enqueue("a/1", new Intent(), false));
+        assertEquals(1, MQTTServiceMetrics.getRejectedPublishes());
+
+        // other topics have their own queue
+        enqueue("b/1", "b", 1);
+
+        assertEquals(-1, scheduler.dispatch());
+        assertEquals("abaa", getDispatchedLabels());
+
+        // the queue accepts publishes again once dispatched
+        enqueue("a/1", "a", 1);
+    }
+
+    @Test
+    public void changedRulesApplyToQueuedPublishes() {
+        enqueue("a/1", "a", 3);
+
+        // added after the publishes have been queued
+        MQTTRateLimits.addTopicRule("a/#", 1, 1, 1);
+        assertTrue(scheduler.dispatch() > 0);
+        assertEquals(1, dispatched.size());
+
+        MQTTRateLimits.clear();
+        assertEquals(-1, scheduler.dispatch());
+        assertEquals(3, dispatched.size());
+    }
+
+    @Test
+    public void deferredPublishesAreHeldBack() {
+        assertTrue(scheduler.enqueue("telemetry/1", new Intent(), false));
+
+        long waitMillis = scheduler.dispatch();
+
+        assertTrue(dispatched.isEmpty());
+        assertTrue("wait: " + waitMillis, waitMillis > MQTTDeferredPublishing.MAX_DELAY_MILLIS / 2);
+    }
+
+    @Test
+    public void awaitedPublishesAreNotDeferred() {
+        Intent buffered = new Intent();
+        Intent awaited = new Intent();
+
+        assertTrue(scheduler.enqueue("telemetry/1", buffered, false));
+        assertTrue(scheduler.enqueue("telemetry/1", awaited, true));
+
+        assertEquals(-1, scheduler.dispatch());
+        assertEquals(2, dispatched.size());
+        assertSame(buffered, dispatched.get(0));
+        assertSame(awaited, dispatched.get(1));
+    }
+
+    @Test
+    public void urgentPublishesAreSentRightAway() {
+        Intent urgent = new Intent();
+        assertTrue(scheduler.enqueue("commands/1", urgent, false));
+
+        assertEquals(-1, scheduler.dispatch());
+        assertEquals(1, dispatched.size());
+        assertSame(urgent, dispatched.get(0));
+    }
+}
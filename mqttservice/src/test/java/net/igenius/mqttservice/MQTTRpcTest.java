@@ -0,0 +1,271 @@
+package net.igenius.mqttservice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MQTTRpcTest {
+
+    private static final String REQUEST_TOPIC = "rpc/test/requests";
+    private static final String REPLY_TOPIC = "rpc/test/client/reply";
+
+    private static class Message {
+        final String topic;
+        final byte[] payload;
+        final MQTTServiceCallback<String> callback;
+
+        Message(String topic, byte[] payload, MQTTServiceCallback<String> callback) {
+            this.topic = topic;
+            this.payload = payload;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Keeps the published messages until the test delivers them.
+     */
+    private static class InMemoryTransport implements MQTTRpcTransport {
+        final List<Message> published = new ArrayList<>();
+        final List<String> subscribed = new ArrayList<>();
+        Exception publishException;
+
+        @Override
+        public void publish(String topic, byte[] payload, int qos,
+                            MQTTServiceCallback<String> callback) throws Exception {
+            if (publishException != null)
+                throw publishException;
+
+            published.add(new Message(topic, payload, callback));
+        }
+
+        @Override
+        public void subscribe(String topicFilter, int qos) {
+            subscribed.add(topicFilter);
+        }
+
+        Message take() {
+            assertFalse("nothing published", published.isEmpty());
+            return published.remove(0);
+        }
+    }
+
+    private InMemoryTransport transport;
+    private MQTTRpcClient client;
+    private MQTTRpcServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new InMemoryTransport();
+        client = new MQTTRpcClient(transport, REPLY_TOPIC, 1);
+        client.start();
+
+        server = new MQTTRpcServer(transport, 1, new MQTTRpcHandler() {
+            @Override
+            public byte[] onRequest(String topic, byte[] body) throws Exception {
+                String request = new String(body, "UTF-8");
+                if (request.startsWith("fail"))
+                    throw new Exception("failed " + request);
+
+                return (topic + ":" + request).getBytes("UTF-8");
+            }
+        });
+    }
+
+    private static byte[] bytes(String string) {
+        return MQTTRpcMessage.toBytes(string);
+    }
+
+    private static Exception getFailure(MQTTServiceFuture<byte[]> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException exc) {
+            return (Exception) exc.getCause();
+        }
+        fail("request " + future.getRequestId() + " did not fail");
+        return null;
+    }
+
+    /**
+     * Delivers the oldest request to the server and its reply to the client.
+     */
+    private void serveOne() {
+        Message request = transport.take();
+        assertEquals(REQUEST_TOPIC, request.topic);
+        assertTrue(server.onMessageArrived(request.topic, request.payload));
+
+        Message reply = transport.take();
+        assertEquals(REPLY_TOPIC, reply.topic);
+        assertTrue(client.onMessageArrived(reply.topic, reply.payload));
+    }
+
+    @Test
+    public void clientSubscribesToItsReplyTopic() {
+        assertEquals(Arrays.asList(REPLY_TOPIC), transport.subscribed);
+    }
+
+    @Test
+    public void repliesAreMatchedToTheirRequests() throws Exception {
+        MQTTServiceFuture<byte[]> first = client.call(REQUEST_TOPIC, bytes("first"), 5000, null);
+        MQTTServiceFuture<byte[]> second = client.call(REQUEST_TOPIC, bytes("second"), 5000, null);
+        assertEquals(2, client.getInFlightCount());
+
+        // the server answers in reverse order
+        Message firstRequest = transport.take();
+        serveOne();
+        assertTrue(second.isDone());
+        assertFalse(first.isDone());
+
+        transport.published.add(firstRequest);
+        serveOne();
+
+        assertArrayEquals(bytes(REQUEST_TOPIC + ":first"), first.get(5, TimeUnit.SECONDS));
+        assertArrayEquals(bytes(REQUEST_TOPIC + ":second"), second.get(5, TimeUnit.SECONDS));
+        assertEquals(0, client.getInFlightCount());
+    }
+
+    @Test
+    public void callbacksReceiveTheRequestId() {
+        final List<String> results = new ArrayList<>();
+        MQTTServiceFuture<byte[]> future = client.call(REQUEST_TOPIC, bytes("hello"), 5000,
+                new MQTTServiceCallback<byte[]>() {
+                    @Override
+                    public void onSuccess(String requestId, byte[] result) {
+                        results.add(requestId + " " + new String(result));
+                    }
+
+                    @Override
+                    public void onError(String requestId, Exception exception) {
+                        results.add(requestId + " " + exception);
+                    }
+                });
+
+        serveOne();
+
+        assertEquals(Arrays.asList(future.getRequestId() + " " + REQUEST_TOPIC + ":hello"), results);
+    }
+
+    @Test
+    public void callsWithoutReplyTimeOut() throws Exception {
+        MQTTServiceFuture<byte[]> future = client.call(REQUEST_TOPIC, bytes("lost"), 50, null);
+
+        assertTrue(getFailure(future) instanceof TimeoutException);
+        assertEquals(0, client.getInFlightCount());
+
+        // the late reply is recognized but discarded
+        Message request = transport.take();
+        server.onMessageArrived(request.topic, request.payload);
+        Message reply = transport.take();
+        assertTrue(client.onMessageArrived(reply.topic, reply.payload));
+        assertTrue(future.isDone());
+    }
+
+    @Test
+    public void handlerErrorsAreSentBack() throws Exception {
+        MQTTServiceFuture<byte[]> future = client.call(REQUEST_TOPIC, bytes("fail now"), 5000, null);
+        serveOne();
+
+        Exception failure = getFailure(future);
+        assertTrue(failure instanceof MQTTRpcException);
+        assertEquals("failed fail now", failure.getMessage());
+        assertEquals(0, client.getInFlightCount());
+    }
+
+    @Test
+    public void requestsWhichCantBePublishedFail() throws Exception {
+        Exception disconnected = new Exception("not connected");
+        transport.publishException = disconnected;
+
+        MQTTServiceFuture<byte[]> future = client.call(REQUEST_TOPIC, bytes("hello"), 5000, null);
+
+        assertSame(disconnected, getFailure(future));
+        assertEquals(0, client.getInFlightCount());
+    }
+
+    @Test
+    public void publishFailuresReportedLaterFailTheRequest() throws Exception {
+        MQTTServiceFuture<byte[]> future = client.call(REQUEST_TOPIC, bytes("hello"), 5000, null);
+        MQTTServiceFuture<byte[]> other = client.call(REQUEST_TOPIC, bytes("other"), 5000, null);
+
+        Exception brokerError = new Exception("publish failed");
+        Message request = transport.take();
+        request.callback.onError("publish-1", brokerError);
+
+        assertSame(brokerError, getFailure(future));
+        assertFalse(other.isDone());
+        assertEquals(1, client.getInFlightCount());
+
+        // a successful publish doesn't complete the request, the reply does
+        transport.published.get(0).callback.onSuccess("publish-2", null);
+        assertFalse(other.isDone());
+        serveOne();
+        assertArrayEquals(bytes(REQUEST_TOPIC + ":other"), other.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void clientIgnoresMalformedAndForeignMessages() {
+        MQTTServiceFuture<byte[]> future = client.call(REQUEST_TOPIC, bytes("hello"), 5000, null);
+        long correlationId = Long.parseLong(future.getRequestId(), 16);
+        byte[] reply = MQTTRpcMessage.encodeReply(correlationId, MQTTRpcMessage.STATUS_OK, bytes("ok"));
+
+        // a valid reply on another topic
+        assertFalse(client.onMessageArrived("other/reply", reply));
+        // not a reply
+        assertFalse(client.onMessageArrived(REPLY_TOPIC, null));
+        assertFalse(client.onMessageArrived(REPLY_TOPIC, new byte[0]));
+        assertFalse(client.onMessageArrived(REPLY_TOPIC, bytes("plain text message")));
+        assertFalse(client.onMessageArrived(REPLY_TOPIC, Arrays.copyOf(reply, 9)));
+        assertFalse(client.onMessageArrived(REPLY_TOPIC,
+                MQTTRpcMessage.encodeRequest(correlationId, REPLY_TOPIC, bytes("ok"))));
+        // a reply to a request of someone else
+        assertTrue(client.onMessageArrived(REPLY_TOPIC,
+                MQTTRpcMessage.encodeReply(correlationId + 1, MQTTRpcMessage.STATUS_OK, bytes("ok"))));
+
+        assertFalse(future.isDone());
+        assertEquals(1, client.getInFlightCount());
+
+        assertTrue(client.onMessageArrived(REPLY_TOPIC, reply));
+        assertTrue(future.isDone());
+    }
+
+    @Test
+    public void serverIgnoresMalformedAndForeignMessages() {
+        byte[] request = MQTTRpcMessage.encodeRequest(1, REPLY_TOPIC, bytes("hello"));
+
+        assertFalse(server.onMessageArrived(REQUEST_TOPIC, null));
+        assertFalse(server.onMessageArrived(REQUEST_TOPIC, bytes("plain text message")));
+        assertFalse(server.onMessageArrived(REQUEST_TOPIC, Arrays.copyOf(request, 12)));
+        assertFalse(server.onMessageArrived(REQUEST_TOPIC,
+                MQTTRpcMessage.encodeReply(1, MQTTRpcMessage.STATUS_OK, bytes("hello"))));
+
+        // a request without reply topic
+        byte[] noReplyTopic = request.clone();
+        noReplyTopic[9] = 0;
+        noReplyTopic[10] = 0;
+        assertFalse(server.onMessageArrived(REQUEST_TOPIC, noReplyTopic));
+
+        assertTrue(transport.published.isEmpty());
+    }
+
+    @Test
+    public void closeCancelsTheInFlightRequests() {
+        MQTTServiceFuture<byte[]> future = client.call(REQUEST_TOPIC, bytes("hello"), 5000, null);
+
+        client.close();
+
+        assertTrue(future.isCancelled());
+        assertEquals(0, client.getInFlightCount());
+    }
+}
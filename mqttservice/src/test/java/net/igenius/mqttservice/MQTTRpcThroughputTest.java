@@ -0,0 +1,203 @@
+package net.igenius.mqttservice;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures {@link MQTTRpcClient} throughput and latency against a {@link MQTTLocalBroker},
+ * with an echo {@link MQTTRpcServer} on the other side. Set more requests for stable numbers:
+ * <pre>
+ * ./gradlew :mqttservice:testDebugUnitTest --tests '*MQTTRpcThroughputTest' \
+ *     -Dmqtt.rpc.requests=20000 -Dmqtt.rpc.maxInFlight=256 -Dmqtt.rpc.payloadSize=256 -Dmqtt.rpc.qos=0
+ * </pre>
+ */
+public class MQTTRpcThroughputTest {
+
+    private static final String REQUEST_TOPIC = "rpc/test/requests";
+    private static final String REPLY_TOPIC = "rpc/test/client/reply";
+
+    private static final int REQUESTS = Integer.getInteger("mqtt.rpc.requests", 2000);
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("mqtt.rpc.maxInFlight", 256);
+    private static final int PAYLOAD_SIZE = Integer.getInteger("mqtt.rpc.payloadSize", 256);
+    private static final int QOS = Integer.getInteger("mqtt.rpc.qos", 0);
+
+    /**
+     * Transport over a Paho async client.
+     */
+    private static class PahoTransport implements MQTTRpcTransport {
+        private final MqttAsyncClient mClient;
+
+        PahoTransport(MqttAsyncClient client) {
+            mClient = client;
+        }
+
+        @Override
+        public void publish(String topic, byte[] payload, int qos,
+                            final MQTTServiceCallback<String> callback) throws Exception {
+            mClient.publish(topic, payload, qos, false, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    callback.onSuccess(null, null);
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable exception) {
+                    callback.onError(null, exception instanceof Exception
+                            ? (Exception) exception : new Exception(exception));
+                }
+            });
+        }
+
+        @Override
+        public void subscribe(String topicFilter, int qos) throws Exception {
+            mClient.subscribe(topicFilter, qos).waitForCompletion();
+        }
+    }
+
+    private static MqttAsyncClient connect(MQTTLocalBroker broker, String clientId, int maxInflight)
+            throws Exception {
+        MqttAsyncClient client = new MqttAsyncClient(broker.getUrl(), clientId, new MemoryPersistence());
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setMaxInflight(maxInflight);
+        client.connect(options).waitForCompletion();
+        return client;
+    }
+
+    private static MqttCallback messageCallback(final MessageListener listener) {
+        return new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+                System.err.println("Connection lost: " + cause);
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                listener.onMessage(topic, message.getPayload());
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        };
+    }
+
+    private interface MessageListener {
+        void onMessage(String topic, byte[] payload);
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        final int requests = REQUESTS;
+        final int window = MAX_IN_FLIGHT;
+        final int payloadSize = PAYLOAD_SIZE;
+        final int qos = QOS;
+
+        MQTTLocalBroker broker = new MQTTLocalBroker(0);
+        broker.start();
+
+        MqttAsyncClient serverConnection = connect(broker, "rpc-server", window * 2 + 10);
+        MqttAsyncClient clientConnection = connect(broker, "rpc-client", window * 2 + 10);
+
+        final MQTTRpcServer server = new MQTTRpcServer(new PahoTransport(serverConnection), qos,
+                new MQTTRpcHandler() {
+                    @Override
+                    public byte[] onRequest(String topic, byte[] body) {
+                        return body;
+                    }
+                });
+        serverConnection.setCallback(messageCallback(new MessageListener() {
+            @Override
+            public void onMessage(String topic, byte[] payload) {
+                server.onMessageArrived(topic, payload);
+            }
+        }));
+        serverConnection.subscribe(REQUEST_TOPIC, qos).waitForCompletion();
+
+        final MQTTRpcClient client = new MQTTRpcClient(new PahoTransport(clientConnection), REPLY_TOPIC, qos);
+        clientConnection.setCallback(messageCallback(new MessageListener() {
+            @Override
+            public void onMessage(String topic, byte[] payload) {
+                client.onMessageArrived(topic, payload);
+            }
+        }));
+        client.start();
+
+        byte[] body = new byte[payloadSize];
+        Arrays.fill(body, (byte) 'x');
+
+        final long[] latencies = new long[requests];
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final Semaphore inFlight = new Semaphore(window);
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < requests; i++) {
+            inFlight.acquire();
+            final int index = i;
+            final long sent = System.nanoTime();
+
+            client.call(REQUEST_TOPIC, body, 10000, new MQTTServiceCallback<byte[]>() {
+                @Override
+                public void onSuccess(String requestId, byte[] result) {
+                    latencies[index] = System.nanoTime() - sent;
+                    completed.incrementAndGet();
+                    inFlight.release();
+                }
+
+                @Override
+                public void onError(String requestId, Exception exception) {
+                    failed.incrementAndGet();
+                    inFlight.release();
+                }
+            });
+        }
+
+        inFlight.acquire(window);
+        long elapsed = System.nanoTime() - start;
+
+        long[] done = new long[completed.get()];
+        int count = 0;
+        for (long latency : latencies) {
+            if (latency > 0 && count < done.length) {
+                done[count++] = latency;
+            }
+        }
+        Arrays.sort(done);
+
+        System.out.println(String.format(Locale.US,
+                "requests: %d, max in flight: %d, payload: %d bytes, QoS %d",
+                requests, window, payloadSize, qos));
+        System.out.println(String.format(Locale.US, "completed: %d, failed: %d, elapsed: %.2f s, throughput: %.0f req/s",
+                completed.get(), failed.get(), elapsed / 1e9, completed.get() / (elapsed / 1e9)));
+        if (done.length > 0) {
+            System.out.println(String.format(Locale.US, "latency p50: %.2f ms, p99: %.2f ms, max: %.2f ms",
+                    done[done.length / 2] / 1e6, done[(int) (done.length * 0.99)] / 1e6,
+                    done[done.length - 1] / 1e6));
+        }
+
+        clientConnection.disconnect().waitForCompletion();
+        serverConnection.disconnect().waitForCompletion();
+        clientConnection.close();
+        serverConnection.close();
+        broker.stop();
+
+        assertEquals("failed requests", 0, failed.get());
+        assertEquals("completed requests", requests, completed.get());
+    }
+}
@@ -0,0 +1,198 @@
+package net.igenius.mqttservice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MQTTSubscriptionOptimizerTest {
+
+    private int minSiblings;
+    private double maxUnwantedRatio;
+    private int minSamples;
+    private long retainedWindowMillis;
+
+    private MQTTSubscriptionOptimizer optimizer;
+
+    @Before
+    public void setUp() {
+        minSiblings = MQTTSubscriptionOptimizer.MIN_SIBLINGS;
+        maxUnwantedRatio = MQTTSubscriptionOptimizer.MAX_UNWANTED_RATIO;
+        minSamples = MQTTSubscriptionOptimizer.MIN_SAMPLES;
+        retainedWindowMillis = MQTTSubscriptionOptimizer.RETAINED_WINDOW_MILLIS;
+
+        MQTTSubscriptionOptimizer.MIN_SIBLINGS = 4;
+        MQTTSubscriptionOptimizer.MAX_UNWANTED_RATIO = 0.5;
+        MQTTSubscriptionOptimizer.MIN_SAMPLES = 10;
+        optimizer = new MQTTSubscriptionOptimizer();
+    }
+
+    @After
+    public void tearDown() {
+        MQTTSubscriptionOptimizer.MIN_SIBLINGS = minSiblings;
+        MQTTSubscriptionOptimizer.MAX_UNWANTED_RATIO = maxUnwantedRatio;
+        MQTTSubscriptionOptimizer.MIN_SAMPLES = minSamples;
+        MQTTSubscriptionOptimizer.RETAINED_WINDOW_MILLIS = retainedWindowMillis;
+    }
+
+    private static boolean covers(String general, String specific) {
+        return MQTTSubscriptionOptimizer.covers(MQTTTopicCache.split(general),
+                                                MQTTTopicCache.split(specific));
+    }
+
+    private static MQTTInternedTopic topic(String name) {
+        return new MQTTInternedTopic(name, 0);
+    }
+
+    private Map<String, Integer> update() {
+        Map<String, Integer> target = optimizer.compute();
+        Map<String, Integer> toSubscribe = optimizer.startUpdate(target);
+        optimizer.setSubscribed(target);
+        return toSubscribe;
+    }
+
+    @Test
+    public void siblingsAreReplacedByAWildcard() {
+        for (int i = 1; i <= 3; i++) {
+            optimizer.add("devices/" + i + "/status", 1);
+        }
+        assertEquals(3, optimizer.compute().size());
+
+        optimizer.add("devices/4/status", 2);
+        optimizer.add("alerts", 0);
+
+        Map<String, Integer> expected = new LinkedHashMap<>();
+        expected.put("devices/+/status", 2);
+        expected.put("alerts", 0);
+        assertEquals(expected, optimizer.compute());
+    }
+
+    @Test
+    public void coveredFiltersAreRemoved() {
+        optimizer.add("a/b", 2);
+        optimizer.add("a/#", 1);
+        optimizer.add("$SYS/broker", 0);
+        optimizer.add("#", 0);
+
+        Map<String, Integer> expected = new LinkedHashMap<>();
+        expected.put("$SYS/broker", 0);
+        expected.put("#", 2);
+        assertEquals(expected, optimizer.compute());
+    }
+
+    @Test
+    public void coverRules() {
+        assertTrue(covers("a/#", "a/b"));
+        assertTrue(covers("a/#", "a"));
+        assertTrue(covers("a/#", "a/+/c"));
+        assertTrue(covers("a/+", "a/b"));
+        assertTrue(covers("#", "a/#"));
+        assertTrue(covers("$SYS/#", "$SYS/broker"));
+        assertTrue(covers("$SYS/+", "$SYS/broker"));
+
+        assertFalse(covers("a/+", "a/b/c"));
+        assertFalse(covers("a/+", "a/#"));
+        assertFalse(covers("+", "#"));
+        assertFalse(covers("a/b", "a/+"));
+        assertFalse(covers("#", "$SYS/broker"));
+        assertFalse(covers("+/broker", "$SYS/broker"));
+    }
+
+    @Test
+    public void unwantedMessagesAreDroppedUntilTheWildcardIsExcluded() {
+        for (int i = 1; i <= 4; i++) {
+            optimizer.add("devices/" + i + "/status", 1);
+        }
+        update();
+
+        assertTrue(optimizer.accept(topic("devices/1/status"), false));
+        assertFalse(optimizer.accept(topic("devices/5/status"), false));
+        assertFalse(optimizer.needsUpdate());
+
+        for (int i = 0; i < 10; i++) {
+            optimizer.accept(topic("devices/other/status"), false);
+        }
+        assertTrue(optimizer.needsUpdate());
+
+        Map<String, Integer> target = optimizer.compute();
+        assertEquals(new HashSet<>(Arrays.asList("devices/1/status", "devices/2/status",
+                                                 "devices/3/status", "devices/4/status")),
+                     target.keySet());
+        assertFalse(optimizer.needsUpdate());
+    }
+
+    @Test
+    public void coveringFilterIsSubscribedAgainForANewFilter() {
+        optimizer.add("a/#", 1);
+        assertEquals(Collections.singletonMap("a/#", 1), update());
+        assertTrue(optimizer.accept(topic("a/b"), true));
+        assertTrue(optimizer.accept(topic("a/c"), true));
+
+        optimizer.add("a/b", 1);
+        assertEquals(Collections.singletonMap("a/#", 1), update());
+
+        // the broker resends the retained messages of a/#, only the new filter wants them
+        assertTrue(optimizer.accept(topic("a/b"), true));
+        assertFalse(optimizer.accept(topic("a/c"), true));
+        assertFalse(optimizer.accept(topic("a/b"), true));
+
+        // live messages are not affected
+        assertTrue(optimizer.accept(topic("a/c"), false));
+    }
+
+    @Test
+    public void retainedMessagesAreNotResentWhenMerging() {
+        for (int i = 1; i <= 3; i++) {
+            optimizer.add("devices/" + i + "/status", 1);
+        }
+        update();
+
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(optimizer.accept(topic("devices/" + i + "/status"), true));
+        }
+
+        // a new sibling merges the filters into the wildcard, which resends all of them
+        optimizer.add("devices/4/status", 1);
+        assertEquals(Collections.singletonMap("devices/+/status", 1), update());
+
+        assertTrue(optimizer.accept(topic("devices/4/status"), true));
+        for (int i = 1; i <= 4; i++) {
+            assertFalse(optimizer.accept(topic("devices/" + i + "/status"), true));
+        }
+        assertFalse(optimizer.accept(topic("devices/5/status"), true));
+    }
+
+    @Test
+    public void retainedMessagesAreFilteredNormallyAfterTheWindow() {
+        MQTTSubscriptionOptimizer.RETAINED_WINDOW_MILLIS = -1;
+
+        for (int i = 1; i <= 4; i++) {
+            optimizer.add("devices/" + i + "/status", 1);
+        }
+        update();
+
+        assertTrue(optimizer.accept(topic("devices/1/status"), true));
+        assertTrue(optimizer.accept(topic("devices/1/status"), true));
+        assertFalse(optimizer.accept(topic("devices/5/status"), true));
+    }
+
+    @Test
+    public void subscribingAgainResendsTheRetainedMessages() {
+        optimizer.add("a/b", 0);
+        update();
+        assertTrue(optimizer.accept(topic("a/b"), true));
+
+        optimizer.add("a/b", 0);
+        assertEquals(Collections.singletonMap("a/b", 0), update());
+        assertTrue(optimizer.accept(topic("a/b"), true));
+    }
+}
@@ -0,0 +1,78 @@
+package net.igenius.mqttservice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MQTTTokenBucketTest {
+
+    private static final long MILLIS = 1000000;
+
+    @Test
+    public void startsFullAndAllowsABurst() {
+        MQTTTokenBucket bucket = new MQTTTokenBucket(10, 3);
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bucket.hasToken(now));
+            assertEquals(0, bucket.getWaitNanos());
+            bucket.take();
+        }
+
+        assertFalse(bucket.hasToken(now));
+    }
+
+    @Test
+    public void refillsAtItsRate() {
+        MQTTTokenBucket bucket = new MQTTTokenBucket(10, 1);
+        long now = System.nanoTime();
+
+        assertTrue(bucket.hasToken(now));
+        bucket.take();
+
+        // one token every 100ms
+        assertFalse(bucket.hasToken(now));
+        assertWait(100 * MILLIS, bucket.getWaitNanos());
+
+        assertFalse(bucket.hasToken(now + 40 * MILLIS));
+        assertWait(60 * MILLIS, bucket.getWaitNanos());
+
+        assertTrue(bucket.hasToken(now + 101 * MILLIS));
+    }
+
+    @Test
+    public void doesNotRefillBeyondItsCapacity() {
+        MQTTTokenBucket bucket = new MQTTTokenBucket(10, 2);
+        long now = System.nanoTime() + 60000 * MILLIS;
+
+        assertTrue(bucket.hasToken(now));
+        bucket.take();
+        bucket.take();
+
+        assertFalse(bucket.hasToken(now));
+    }
+
+    @Test
+    public void timeGoingBackDoesNotRefill() {
+        MQTTTokenBucket bucket = new MQTTTokenBucket(10, 1);
+        long now = System.nanoTime() + 1000 * MILLIS;
+
+        assertTrue(bucket.hasToken(now));
+        bucket.take();
+
+        assertFalse(bucket.hasToken(now - 500 * MILLIS));
+        assertFalse(bucket.hasToken(now));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rateMustBePositive() {
+        new MQTTTokenBucket(0, 1);
+    }
+
+    private static void assertWait(long expectedNanos, long waitNanos) {
+        // the bucket has been created a few microseconds before now
+        assertTrue("wait: " + waitNanos, Math.abs(expectedNanos - waitNanos) < MILLIS);
+    }
+}
@@ -0,0 +1,82 @@
+package net.igenius.mqttservice;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MQTTTopicCacheTest {
+
+    @After
+    public void tearDown() {
+        MQTTPayloadCodecs.clear();
+    }
+
+    @Test
+    public void internedTopicsAreShared() {
+        MQTTInternedTopic topic = MQTTTopicCache.intern("cache/test/shared");
+
+        assertSame(topic, MQTTTopicCache.intern(new String("cache/test/shared")));
+        assertSame(topic, MQTTTopicCache.find("cache/test/shared"));
+        assertSame(topic, MQTTTopicCache.lookup("cache/test/shared"));
+        assertSame(topic, MQTTTopicCache.get(topic.getId()));
+        assertSame(topic, MQTTTopicCache.intern(topic.getId(), "cache/test/shared"));
+
+        assertEquals(3, topic.getLevelCount());
+        assertEquals("test", topic.getLevel(1));
+        assertNull(MQTTTopicCache.intern(null));
+    }
+
+    @Test
+    public void idsOfOtherTopicsAreNotUsed() {
+        MQTTInternedTopic first = MQTTTopicCache.intern("cache/test/first");
+        MQTTInternedTopic second = MQTTTopicCache.intern(first.getId(), "cache/test/second");
+
+        assertEquals("cache/test/second", second.getName());
+        assertSame(second, MQTTTopicCache.find("cache/test/second"));
+    }
+
+    @Test
+    public void lookupDoesNotFillTheCache() {
+        int size = MQTTTopicCache.size();
+
+        MQTTInternedTopic topic = MQTTTopicCache.lookup("cache/test/lookup");
+
+        assertNotNull(topic);
+        assertEquals(0, topic.getId());
+        assertNull(MQTTTopicCache.find("cache/test/lookup"));
+        assertNull(MQTTTopicCache.lookup(null));
+        assertEquals(size, MQTTTopicCache.size());
+    }
+
+    @Test
+    public void publishingDoesNotFillTheCache() {
+        MQTTPayloadCodecs.register("cache/#", new MQTTDeflateCodec());
+
+        byte[] payload = new byte[1024];
+        Arrays.fill(payload, (byte) 'a');
+        int size = MQTTTopicCache.size();
+
+        for (int i = 0; i < 100; i++) {
+            String topic = "cache/test/outbound/" + i;
+            byte[] encoded = MQTTPayloadCodecs.encode(topic, payload);
+            assertArrayEquals(payload, MQTTPayloadCodecs.decode(topic, encoded));
+            MQTTFlightRecorder.record(MQTTFlightRecorder.EVENT_PUBLISH, 1, 0, topic, payload.length, null);
+        }
+
+        assertEquals(size, MQTTTopicCache.size());
+        assertNull(MQTTTopicCache.find("cache/test/outbound/0"));
+    }
+
+    @Test
+    public void splitKeepsEmptyLevels() {
+        assertArrayEquals(new String[]{"", "a", ""}, MQTTTopicCache.split("/a/"));
+        assertArrayEquals(new String[]{"a"}, MQTTTopicCache.split("a"));
+    }
+}